@@ -0,0 +1,97 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import middleware.AbstractTagReader;
+import middleware.BibTag;
+import middleware.Configuration;
+import middleware.LoggerImpl;
+import middleware.TagListenerInterface;
+import middleware.TagSetDelta;
+import middleware.TagStore;
+
+/**
+ * BenchmarkTagReader.
+ *
+ * A tag reader without a device, which exposes the processing steps of
+ * AbstractTagReader to the benchmarks. Events are only counted.
+ */
+public class BenchmarkTagReader extends AbstractTagReader implements TagListenerInterface {
+	public int events;
+
+	public BenchmarkTagReader() {
+		super(new LoggerImpl("", "off", false, false), null, 1, 200, new Configuration());
+		this.tagListener = this;
+	}
+
+	@Override
+	public void processTags(HashMap<String, BibTag> tags) {
+		super.processTags(tags);
+	}
+
+	@Override
+	public boolean compareTags(TagStore current, TagStore next) {
+		return super.compareTags(current, next);
+	}
+
+	@Override
+	protected HashMap<String, BibTag> getTags() {
+		return new HashMap<String, BibTag>();
+	}
+
+	@Override
+	public boolean connect() {
+		return true;
+	}
+
+	@Override
+	public boolean closeConnection() {
+		return true;
+	}
+
+	@Override
+	public boolean writeAFI(String uid, String afi) {
+		return true;
+	}
+
+	@Override
+	public int readAFI(String uid) {
+		return 7;
+	}
+
+	@Override
+	public boolean clearReader() {
+		return true;
+	}
+
+	@Override
+	public void tagDetected(BibTag bibTag) {
+		events++;
+	}
+
+	@Override
+	public void tagRemoved(BibTag bibTag) {
+		events++;
+	}
+
+	@Override
+	public void tagsChanged(TagSetDelta delta) {
+		events++;
+	}
+
+	@Override
+	public void tagsDetected(ArrayList<BibTag> bibTags) {
+		events++;
+	}
+
+	@Override
+	public void tagAFISet(BibTag bibTag, boolean success, int attempts, long durationInMillis) {
+		events++;
+	}
+
+	@Override
+	public void processingNewTags() {
+		events++;
+	}
+}
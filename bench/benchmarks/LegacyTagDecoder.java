@@ -0,0 +1,132 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import middleware.BibTag;
+
+/**
+ * LegacyTagDecoder.
+ *
+ * The hex string based decoding from AbstractTagReader 1.3.0, kept as the
+ * reference the current decoder is measured against. Logging is left out.
+ */
+public final class LegacyTagDecoder {
+	private LegacyTagDecoder() {
+	}
+
+	/**
+	 * Convert raw data to hex, as FeigReader.getTags did.
+	 */
+	public static String hex(byte[] data) {
+		return DatatypeConverter.printHexBinary(data);
+	}
+
+	public static String reverseData(String data) {
+		return data.substring(6, 8) + data.substring(4, 6) + data.substring(2, 4) + data.substring(0, 2)
+				+ data.substring(14, 16) + data.substring(12, 14) + data.substring(10, 12) + data.substring(8, 10)
+				+ data.substring(22, 24) + data.substring(20, 22) + data.substring(18, 20) + data.substring(16, 18)
+				+ data.substring(30, 32) + data.substring(28, 30) + data.substring(26, 28) + data.substring(24, 26)
+				+ data.substring(38, 40) + data.substring(36, 38) + data.substring(34, 36) + data.substring(32, 34)
+				+ data.substring(46, 48) + data.substring(44, 46) + data.substring(42, 44) + data.substring(40, 42)
+				+ data.substring(54, 56) + data.substring(52, 54) + data.substring(50, 52) + data.substring(48, 50)
+				+ data.substring(62, 64) + data.substring(60, 62) + data.substring(58, 60) + data.substring(56, 58);
+	}
+
+	public static String utf8decode(String str, boolean breakAtNull) throws UnsupportedEncodingException {
+		ByteArrayOutputStream bOutput = new ByteArrayOutputStream(12);
+
+		for (int i = 0; i < str.length(); i += 2) {
+			int b = Integer.parseInt(str.substring(i, i + 2), 16);
+
+			if (breakAtNull && b == 0) {
+				break;
+			}
+
+			bOutput.write(b);
+		}
+
+		return new String(bOutput.toByteArray(), "UTF-8");
+	}
+
+	public static int crc16(byte[] data) {
+		int crc = 0xFFFF;
+		int polynomial = 0x1021;
+
+		for (byte b : data) {
+			for (int i = 0; i < 8; i++) {
+				boolean bit = ((b >> (7 - i) & 1) == 1);
+				boolean c15 = ((crc >> 15 & 1) == 1);
+				crc <<= 1;
+				if (c15 ^ bit)
+					crc ^= polynomial;
+			}
+		}
+
+		crc &= 0xffff;
+		return crc;
+	}
+
+	public static boolean crc(String crc, String data) {
+		data = data.substring(0, 38) + data.substring(42, 64) + "0000";
+		byte[] buffer = DatatypeConverter.parseHexBinary(data);
+
+		String calculatedCrc = Integer.toHexString(crc16(buffer));
+
+		crc = (crc.substring(2, 4) + crc.substring(0, 2)).replaceFirst("^0+(?!$)", "");
+
+		return crc.equals(calculatedCrc);
+	}
+
+	public static boolean checkOwnerInstitution(String ownerInstitution) {
+		return ownerInstitution.matches("^[A-Z]{2}[0-9]{5}$");
+	}
+
+	/**
+	 * processTags as it was, working on the hex data of the tags.
+	 */
+	public static void processTags(HashMap<String, BibTag> tags) {
+		Iterator<Map.Entry<String, BibTag>> iterator = tags.entrySet().iterator();
+		Map.Entry<String, BibTag> entry;
+		BibTag tag;
+		String data;
+		String mid;
+
+		while (iterator.hasNext()) {
+			entry = iterator.next();
+			tag = entry.getValue();
+			data = tag.getData();
+
+			if (data.substring(6, 8).equals("11")) {
+				data = reverseData(data);
+			}
+
+			if (!data.substring(0, 2).equals("11") || data.length() != 64) {
+				iterator.remove();
+				continue;
+			}
+
+			try {
+				if (!crc(data.substring(38, 42).toLowerCase(), data)
+						&& checkOwnerInstitution(utf8decode(data.substring(42, 64), false))) {
+					iterator.remove();
+					continue;
+				}
+
+				mid = utf8decode(data.substring(6, 38), true);
+			} catch (UnsupportedEncodingException e) {
+				iterator.remove();
+				continue;
+			}
+
+			// Tags are immutable now, so the decoded tag replaces the tag read.
+			entry.setValue(new BibTag(tag.getUID(), tag.getData(), mid, tag.getAFI(),
+					Integer.parseInt(data.substring(2, 4)), Integer.parseInt(data.substring(4, 6))));
+		}
+	}
+}
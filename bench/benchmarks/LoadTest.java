@@ -0,0 +1,223 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.Map;
+
+import middleware.Client;
+import middleware.Configuration;
+import middleware.LoggerImpl;
+import middleware.ReaderMetrics;
+import middleware.TagReaderInterface;
+import middleware.TaskExecutors;
+import readers.SimulatedReader;
+
+/**
+ * LoadTest.
+ *
+ * Runs the whole pipeline, from SimulatedReaders through Client to a
+ * WebSocket server on localhost, and reports the time from a tag arriving or
+ * leaving until its event is received, the poll cycle time, the events per
+ * second and the allocation rate.
+ *
+ * Options are given as key=value, as for the client, e.g.
+ *   bench/loadtest.sh readers=a,b sim_tags=500 sim_arrivals_per_second=20 sim_departures_per_second=20
+ *
+ * Besides the client and SimulatedReader options:
+ *   duration_in_seconds: Time measured, after the warm-up. Default 30.
+ *   warmup_in_seconds: Time before measuring. Default 5.
+ *   port: Port of the WebSocket server. Default 3011.
+ *
+ * The allocation rate is that of all platform threads of the process, which
+ * includes the server. Virtual threads are off by default, as their
+ * allocations are not counted.
+ */
+public class LoadTest {
+	public static void main(String[] args) throws Exception {
+		Configuration configuration = new Configuration();
+
+		// Defaults for the load test.
+		configuration.set("reader", "simulated");
+		configuration.set("readers", "sim");
+		configuration.set("port", "3011");
+		configuration.set("loglevel", "error");
+		configuration.set("metrics_port", "0");
+		configuration.set("virtual_threads", "false");
+
+		for (String arg : args) {
+			String[] split = arg.split("=", 2);
+
+			if (split.length == 2) {
+				configuration.set(split[0], split[1]);
+			}
+		}
+
+		long duration = configuration.getLong("duration_in_seconds", 30) * 1000L;
+		long warmup = configuration.getLong("warmup_in_seconds", 5) * 1000L;
+		int port = configuration.getInt("port", 3011);
+		LoggerImpl logger = new LoggerImpl("", configuration.getString("loglevel", "error"), false, true);
+
+		TaskExecutors.setVirtualThreadsEnabled(configuration.getBoolean("virtual_threads", false));
+
+		WebSocketStandIn server = new WebSocketStandIn(port);
+		server.start();
+
+		Client client = new Client(
+			configuration.getString("reader", "simulated"),
+			new URI("ws://localhost:" + port),
+			logger,
+			configuration.getInt("successful_reads_threshold", 2),
+			configuration.getInt("thread_sleep_in_millis", 200),
+			configuration
+		);
+
+		server.setClient(client);
+		client.start();
+
+		if (!server.awaitReady(30000)) {
+			System.out.println("Not ready after 30 s, stopping.");
+			client.shutdown(2000);
+			server.stop();
+			logger.close();
+			return;
+		}
+
+		Thread.sleep(warmup);
+
+		server.reset();
+
+		Snapshot start = new Snapshot(client);
+
+		for (long elapsed = 0; elapsed < duration; elapsed += 5000) {
+			Thread.sleep(Math.min(5000, duration - elapsed));
+			System.out.println(progress(client, server, start));
+		}
+
+		Snapshot end = new Snapshot(client);
+
+		client.shutdown(2000);
+		server.stop();
+		logger.close();
+
+		report(configuration, server, start, end);
+	}
+
+	/**
+	 * A line with the events so far, and the tags on the readers.
+	 */
+	private static String progress(Client client, WebSocketStandIn server, Snapshot start) {
+		long events = 0;
+		int tags = 0;
+
+		for (long count : server.getEvents().values()) {
+			events += count;
+		}
+
+		for (String id : client.getReaderIds()) {
+			TagReaderInterface reader = client.getReader(id);
+
+			if (reader instanceof SimulatedReader) {
+				tags += ((SimulatedReader) reader).getTagCount();
+			}
+		}
+
+		return String.format("%6.1f s: %d events, %d tags on the readers", (System.nanoTime() - start.time) / 1e9, events, tags);
+	}
+
+	/**
+	 * Print the results.
+	 */
+	private static void report(Configuration configuration, WebSocketStandIn server, Snapshot start, Snapshot end) {
+		double seconds = (end.time - start.time) / 1e9;
+		long[] latencies = server.getLatencies();
+		long events = 0;
+
+		System.out.println();
+		System.out.println("Options: " + configuration);
+		System.out.println(String.format("Java %s, %d cores", System.getProperty("java.version"), Runtime.getRuntime().availableProcessors()));
+		System.out.println(String.format("Measured: %.1f s", seconds));
+		System.out.println();
+
+		for (Map.Entry<String, Long> entry : server.getEvents().entrySet()) {
+			events += entry.getValue();
+			System.out.println(String.format("%-24s %10d %10.1f/s", entry.getKey(), entry.getValue(), entry.getValue() / seconds));
+		}
+
+		System.out.println(String.format("%-24s %10d %10.1f/s", "events", events, events / seconds));
+		System.out.println();
+
+		if (latencies.length > 0) {
+			System.out.println(String.format(
+				"Tag change to event (ms): n=%d p50=%.2f p95=%.2f p99=%.2f max=%.2f",
+				latencies.length,
+				percentile(latencies, 0.50) / 1e6,
+				percentile(latencies, 0.95) / 1e6,
+				percentile(latencies, 0.99) / 1e6,
+				latencies[latencies.length - 1] / 1e6
+			));
+		}
+
+		long cycles = end.cycles - start.cycles;
+
+		System.out.println(String.format(
+			"Poll cycle (ms): n=%d mean=%.2f, %.1f cycles/s",
+			cycles,
+			cycles == 0 ? 0 : (end.cycleNanos - start.cycleNanos) / 1e6 / cycles,
+			cycles / seconds
+		));
+
+		if (start.allocated >= 0 && end.allocated >= 0) {
+			System.out.println(String.format("Allocation: %.1f MB/s", (end.allocated - start.allocated) / 1e6 / seconds));
+		}
+	}
+
+	/**
+	 * A percentile of sorted values.
+	 */
+	private static long percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	/**
+	 * Counters at a point in time.
+	 */
+	private static class Snapshot {
+		private final long time = System.nanoTime();
+		private long cycles = 0;
+		private long cycleNanos = 0;
+		private long allocated;
+
+		Snapshot(Client client) {
+			for (String id : client.getReaderIds()) {
+				ReaderMetrics metrics = client.getReader(id).getMetrics();
+
+				cycles += metrics.cycle.getCount();
+				cycleNanos += metrics.cycle.getSumInNanos();
+			}
+
+			allocated = allocatedBytes();
+		}
+
+		/**
+		 * Bytes allocated by the live threads, -1 if not supported.
+		 */
+		private static long allocatedBytes() {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+			if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+				return -1;
+			}
+
+			long total = 0;
+
+			for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+				if (bytes > 0) {
+					total += bytes;
+				}
+			}
+
+			return total;
+		}
+	}
+}
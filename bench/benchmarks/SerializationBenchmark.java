@@ -0,0 +1,133 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.Gson;
+
+import middleware.BibTag;
+import middleware.MessageCodec;
+import middleware.WebSocketMessage;
+
+/**
+ * SerializationBenchmark.
+ *
+ * Measures the JSON serialization done in Client.sendMessage, for one event
+ * per tag (rfid.tag.detected) and for one list of all tags
+ * (rfid.tags.detected), with the full and the compact profile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	@Param({ "1", "20", "100", "500" })
+	public int tagCount;
+
+	private ArrayList<BibTag> tags;
+	private ArrayList<LegacyTag> legacyTags;
+	private MessageCodec codec;
+	private MessageCodec compactCodec;
+	private Gson legacyGson;
+
+	@Setup
+	public void setup() {
+		HashMap<String, BibTag> map = TagFixtures.tags(0, tagCount, TagFixtures.Mix.VALID);
+		new BenchmarkTagReader().processTags(map);
+
+		tags = new ArrayList<BibTag>(map.values());
+		legacyTags = new ArrayList<LegacyTag>();
+
+		for (BibTag tag : tags) {
+			legacyTags.add(new LegacyTag(tag));
+		}
+
+		codec = new MessageCodec(MessageCodec.PROFILE_FULL);
+		compactCodec = new MessageCodec(MessageCodec.PROFILE_COMPACT);
+		legacyGson = new Gson();
+	}
+
+	@Benchmark
+	public void tagDetected(Blackhole bh) {
+		for (BibTag tag : tags) {
+			WebSocketMessage msg = new WebSocketMessage();
+			msg.setTag(tag);
+			msg.setEvent("rfid.tag.detected");
+			bh.consume(codec.encode(msg));
+		}
+	}
+
+	@Benchmark
+	public void tagDetectedCompact(Blackhole bh) {
+		for (BibTag tag : tags) {
+			WebSocketMessage msg = new WebSocketMessage();
+			msg.setTag(tag);
+			msg.setEvent("rfid.tag.detected");
+			bh.consume(compactCodec.encode(msg));
+		}
+	}
+
+	@Benchmark
+	public void tagDetectedReflective(Blackhole bh) {
+		for (LegacyTag tag : legacyTags) {
+			LegacyMessage msg = new LegacyMessage();
+			msg.tag = tag;
+			msg.event = "rfid.tag.detected";
+			bh.consume(legacyGson.toJson(msg));
+		}
+	}
+
+	@Benchmark
+	public String tagsDetected() {
+		WebSocketMessage msg = new WebSocketMessage();
+		msg.setTags(tags);
+		msg.setEvent("rfid.tags.detected");
+
+		return codec.encode(msg);
+	}
+
+	/**
+	 * A tag with the fields BibTag had, which Gson serialized by reflection.
+	 */
+	private static class LegacyTag {
+		private String uid, mid, afi, data;
+		private int seriesLength, numberInSeries;
+		private long timestamp;
+
+		private LegacyTag(BibTag tag) {
+			uid = tag.getUID();
+			mid = tag.getMID();
+			afi = tag.getAFI();
+			data = tag.getData();
+			seriesLength = tag.getSeriesLength();
+			numberInSeries = tag.getNumberInSeries();
+			timestamp = tag.getTimestamp();
+		}
+	}
+
+	/**
+	 * The fields of WebSocketMessage used by a tag event.
+	 */
+	private static class LegacyMessage {
+		private LegacyTag tag;
+		private boolean success;
+		private String event;
+		private long timestamp = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,151 @@
+package benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import middleware.BibTag;
+import middleware.TagDecoder;
+
+/**
+ * TagDecodeBenchmark.
+ *
+ * Measures the decode steps of AbstractTagReader.processTags for a set of
+ * tags, against the hex string based decoding in LegacyTagDecoder.
+ *
+ * Each benchmark handles the whole set of tags, i.e. one poll cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagDecodeBenchmark {
+	@Param({ "1", "20", "100", "500" })
+	public int tagCount;
+
+	@Param({ "VALID", "REVERSED", "INVALID_CRC", "MIXED" })
+	public TagFixtures.Mix mix;
+
+	private byte[][] raw;
+	private String[] rawHex;
+	private byte[][] normalized;
+	private String[] normalizedHex;
+	private String[] uids;
+	private TagDecoder decoder;
+	private BenchmarkTagReader reader;
+
+	@Setup
+	public void setup() {
+		raw = TagFixtures.blocks(tagCount, mix);
+		rawHex = new String[tagCount];
+		normalized = new byte[tagCount][];
+		normalizedHex = new String[tagCount];
+		uids = new String[tagCount];
+		decoder = new TagDecoder();
+		reader = new BenchmarkTagReader();
+
+		for (int i = 0; i < tagCount; i++) {
+			rawHex[i] = LegacyTagDecoder.hex(raw[i]);
+			normalized[i] = TagFixtures.normalizedBlock(i, mix);
+			normalizedHex[i] = LegacyTagDecoder.hex(normalized[i]);
+			uids[i] = TagFixtures.uid(i);
+		}
+	}
+
+	@Benchmark
+	public void reverseLegacy(Blackhole bh) {
+		for (int i = 0; i < tagCount; i++) {
+			bh.consume(LegacyTagDecoder.reverseData(rawHex[i]));
+		}
+	}
+
+	@Benchmark
+	public void reverse(Blackhole bh) {
+		for (int i = 0; i < tagCount; i++) {
+			bh.consume(decoder.load(raw[i]));
+		}
+	}
+
+	@Benchmark
+	public void utf8decodeLegacy(Blackhole bh) throws UnsupportedEncodingException {
+		for (int i = 0; i < tagCount; i++) {
+			bh.consume(LegacyTagDecoder.utf8decode(normalizedHex[i].substring(6, 38), true));
+		}
+	}
+
+	@Benchmark
+	public void utf8decode(Blackhole bh) {
+		for (int i = 0; i < tagCount; i++) {
+			decoder.load(normalized[i]);
+			bh.consume(decoder.getPrimaryItemIdentifier());
+		}
+	}
+
+	@Benchmark
+	public void crcLegacy(Blackhole bh) {
+		for (int i = 0; i < tagCount; i++) {
+			bh.consume(LegacyTagDecoder.crc(normalizedHex[i].substring(38, 42).toLowerCase(), normalizedHex[i]));
+		}
+	}
+
+	@Benchmark
+	public void crc16Bitwise(Blackhole bh) {
+		for (int i = 0; i < tagCount; i++) {
+			bh.consume(LegacyTagDecoder.crc16(normalized[i]));
+		}
+	}
+
+	@Benchmark
+	public void crc(Blackhole bh) {
+		for (int i = 0; i < tagCount; i++) {
+			bh.consume(TagDecoder.readCrc(normalized[i]) == TagDecoder.calculateCrc(normalized[i]));
+		}
+	}
+
+	/**
+	 * getTags and processTags as they were: hex per tag, then string decoding.
+	 */
+	@Benchmark
+	public HashMap<String, BibTag> processTagsLegacy() {
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
+
+		for (int i = 0; i < tagCount; i++) {
+			tags.put(uids[i], new BibTag(uids[i], LegacyTagDecoder.hex(raw[i]), "7"));
+		}
+
+		LegacyTagDecoder.processTags(tags);
+
+		return tags;
+	}
+
+	/**
+	 * getTags and processTags as they are: raw data per tag, then byte decoding.
+	 */
+	@Benchmark
+	public HashMap<String, BibTag> processTags() {
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
+
+		for (int i = 0; i < tagCount; i++) {
+			tags.put(uids[i], new BibTag(uids[i], raw[i].clone(), "7"));
+		}
+
+		reader.processTags(tags);
+
+		return tags;
+	}
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import middleware.BibTag;
+import middleware.TagPresenceTracker;
+import middleware.TagStore;
+
+/**
+ * TagDiffBenchmark.
+ *
+ * Measures the comparison of current and new tags in AbstractTagReader.run,
+ * with a share of the tags replaced between the two cycles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagDiffBenchmark {
+	@Param({ "1", "20", "100", "500" })
+	public int tagCount;
+
+	/**
+	 * Percentage of the tags that are replaced between the cycles.
+	 */
+	@Param({ "0", "10", "100" })
+	public int churn;
+
+	private TagStore current;
+	private TagStore next;
+	private HashMap<String, BibTag> currentReads;
+	private HashMap<String, BibTag> nextReads;
+	private TagStore confirmed;
+	private TagPresenceTracker presence;
+	private boolean odd;
+	private BenchmarkTagReader reader;
+
+	@Setup
+	public void setup() {
+		current = TagFixtures.store(0, tagCount, TagFixtures.Mix.VALID);
+		next = TagFixtures.store(tagCount * churn / 100, tagCount, TagFixtures.Mix.VALID);
+		currentReads = TagFixtures.tags(0, tagCount, TagFixtures.Mix.VALID);
+		nextReads = TagFixtures.tags(tagCount * churn / 100, tagCount, TagFixtures.Mix.VALID);
+		confirmed = new TagStore();
+		presence = new TagPresenceTracker(1, 1, 1);
+		reader = new BenchmarkTagReader();
+	}
+
+	@Benchmark
+	public int compareTags() {
+		reader.compareTags(current, next);
+
+		return reader.events;
+	}
+
+	/**
+	 * The presence tracking, comparison and swap of the current and new
+	 * tags, as done in each cycle. The tags read alternate between the two
+	 * sets, so each cycle has the churn.
+	 */
+	@Benchmark
+	public TagStore cycle() {
+		TagStore previous;
+
+		odd = !odd;
+		next.clear();
+		presence.update(odd ? nextReads : currentReads, next);
+		reader.compareTags(confirmed, next);
+
+		previous = confirmed;
+		confirmed = next;
+		next = previous;
+
+		return confirmed;
+	}
+}
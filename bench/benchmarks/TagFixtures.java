@@ -0,0 +1,140 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import middleware.BibTag;
+import middleware.TagDecoder;
+import middleware.TagStore;
+
+/**
+ * TagFixtures.
+ *
+ * Generates the raw tag data the benchmarks run on.
+ */
+public final class TagFixtures {
+	/**
+	 * The mix of tags in a generated set.
+	 */
+	public enum Mix {
+		VALID, REVERSED, INVALID_CRC, MIXED
+	}
+
+	private TagFixtures() {
+	}
+
+	/**
+	 * Create the UID of tag number i.
+	 */
+	public static String uid(int i) {
+		return String.format("E0040150%08X", i);
+	}
+
+	/**
+	 * Create a valid basic block for tag number i.
+	 */
+	public static byte[] block(int i) {
+		byte[] data = new byte[TagDecoder.BLOCK_LENGTH];
+		byte[] mid = ("5000" + i).getBytes(StandardCharsets.UTF_8);
+		byte[] owner = "DK761500".getBytes(StandardCharsets.UTF_8);
+
+		data[0] = 0x11;
+		data[TagDecoder.SERIES_LENGTH_OFFSET] = 0x01;
+		data[TagDecoder.NUMBER_IN_SERIES_OFFSET] = 0x01;
+		System.arraycopy(mid, 0, data, TagDecoder.PRIMARY_ITEM_IDENTIFIER_OFFSET, mid.length);
+		System.arraycopy(owner, 0, data, TagDecoder.OWNER_INSTITUTION_OFFSET, owner.length);
+		TagDecoder.writeCrc(data);
+
+		return data;
+	}
+
+	/**
+	 * Create the raw data for tag number i, as the reader would return it.
+	 */
+	public static byte[] block(int i, Mix mix) {
+		byte[] data = block(i);
+
+		if (mix == Mix.MIXED) {
+			mix = Mix.values()[i % 3];
+		}
+
+		switch (mix) {
+			case REVERSED:
+				for (int j = 0; j < data.length; j += 4) {
+					byte b = data[j];
+					data[j] = data[j + 3];
+					data[j + 3] = b;
+					b = data[j + 1];
+					data[j + 1] = data[j + 2];
+					data[j + 2] = b;
+				}
+				break;
+
+			case INVALID_CRC:
+				data[TagDecoder.CRC_OFFSET] ^= 0x5A;
+				break;
+
+			default:
+				break;
+		}
+
+		return data;
+	}
+
+	/**
+	 * Create the data for tag number i, as it is after the order has been
+	 * corrected.
+	 */
+	public static byte[] normalizedBlock(int i, Mix mix) {
+		if (mix == Mix.MIXED) {
+			mix = Mix.values()[i % 3];
+		}
+
+		return block(i, mix == Mix.REVERSED ? Mix.VALID : mix);
+	}
+
+	/**
+	 * Create the raw data for a set of tags.
+	 */
+	public static byte[][] blocks(int count, Mix mix) {
+		byte[][] blocks = new byte[count][];
+
+		for (int i = 0; i < count; i++) {
+			blocks[i] = block(i, mix);
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Create a set of tags as returned from getTags().
+	 *
+	 * @param offset
+	 *   Number of the first tag.
+	 */
+	public static HashMap<String, BibTag> tags(int offset, int count, Mix mix) {
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
+
+		for (int i = offset; i < offset + count; i++) {
+			tags.put(uid(i), new BibTag(uid(i), block(i, mix), "7"));
+		}
+
+		return tags;
+	}
+
+	/**
+	 * Create a set of tags as kept by the reader between cycles.
+	 *
+	 * @param offset
+	 *   Number of the first tag.
+	 */
+	public static TagStore store(int offset, int count, Mix mix) {
+		TagStore store = new TagStore();
+
+		for (BibTag tag : tags(offset, count, mix).values()) {
+			store.put(tag.getKey(), tag);
+		}
+
+		return store;
+	}
+}
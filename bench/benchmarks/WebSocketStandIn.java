@@ -0,0 +1,174 @@
+package benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import middleware.Client;
+import middleware.TagReaderInterface;
+import readers.SimulatedReader;
+
+/**
+ * WebSocketStandIn.
+ *
+ * A WebSocket server on localhost in place of the library system, for the
+ * load test. Counts the events received, and measures the time from a tag
+ * arriving on or leaving a SimulatedReader until its event is received.
+ *
+ * Messages are received on the thread of the server. The counts are read by
+ * the load test, so all access is synchronized.
+ */
+public class WebSocketStandIn extends WebSocketServer {
+	private final JsonParser parser = new JsonParser();
+	private volatile Client client;
+	private TreeMap<String, Long> events = new TreeMap<String, Long>();
+	private long[] latencies = new long[4096];
+	private int latencyCount = 0;
+	private boolean ready = false;
+
+	public WebSocketStandIn(int port) {
+		super(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Set the client, to find the readers the events are from.
+	 */
+	public void setClient(Client client) {
+		this.client = client;
+	}
+
+	@Override
+	public void onOpen(WebSocket conn, ClientHandshake handshake) {
+	}
+
+	@Override
+	public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+	}
+
+	@Override
+	public void onError(WebSocket conn, Exception ex) {
+		System.err.println("Stand-in server: " + ex.getMessage());
+	}
+
+	@Override
+	public void onMessage(WebSocket conn, String message) {
+		long receivedAt = System.nanoTime();
+		JsonObject msg = parser.parse(message).getAsJsonObject();
+		String event = msg.get("event").getAsString();
+		SimulatedReader reader = getReader(msg);
+
+		synchronized (this) {
+			Long count = events.get(event);
+			events.put(event, count == null ? 1 : count + 1);
+
+			if (event.equals("rfid.ready")) {
+				ready = true;
+				notifyAll();
+			}
+
+			if (reader == null) {
+				return;
+			}
+
+			if (msg.has("tag") && msg.get("tag").isJsonObject()) {
+				measure(reader, msg.getAsJsonObject("tag"), receivedAt);
+			}
+
+			for (String list : new String[] {"added", "removed"}) {
+				if (msg.has(list) && msg.get(list).isJsonArray()) {
+					for (JsonElement tag : (JsonArray) msg.get(list)) {
+						measure(reader, tag.getAsJsonObject(), receivedAt);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The simulated reader a message is from, or null.
+	 */
+	private SimulatedReader getReader(JsonObject msg) {
+		Client current = client;
+
+		if (current == null || !msg.has("reader") || msg.get("reader").isJsonNull()) {
+			return null;
+		}
+
+		TagReaderInterface reader = current.getReader(msg.get("reader").getAsString());
+
+		return reader instanceof SimulatedReader ? (SimulatedReader) reader : null;
+	}
+
+	/**
+	 * Add the time from the change of a tag until now.
+	 */
+	private void measure(SimulatedReader reader, JsonObject tag, long receivedAt) {
+		if (!tag.has("uid")) {
+			return;
+		}
+
+		long changedAt = reader.takeChangedAt(tag.get("uid").getAsString());
+
+		if (changedAt < 0) {
+			return;
+		}
+
+		if (latencyCount == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+
+		latencies[latencyCount++] = receivedAt - changedAt;
+	}
+
+	/**
+	 * Wait for the rfid.ready event.
+	 *
+	 * @return
+	 *   False if not received in time.
+	 */
+	public synchronized boolean awaitReady(long timeoutInMillis) throws InterruptedException {
+		long until = System.currentTimeMillis() + timeoutInMillis;
+
+		while (!ready && System.currentTimeMillis() < until) {
+			wait(Math.max(1, until - System.currentTimeMillis()));
+		}
+
+		return ready;
+	}
+
+	/**
+	 * Forget the events received, e.g. after the warm-up.
+	 */
+	public synchronized void reset() {
+		events.clear();
+		latencyCount = 0;
+	}
+
+	/**
+	 * Number of events received, by event.
+	 */
+	public synchronized TreeMap<String, Long> getEvents() {
+		return new TreeMap<String, Long>(events);
+	}
+
+	/**
+	 * The latencies measured in nanoseconds, sorted.
+	 */
+	public synchronized long[] getLatencies() {
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+
+		Arrays.sort(sorted);
+
+		return sorted;
+	}
+}
@@ -0,0 +1,23 @@
+#!/bin/sh
+#
+# Build and run the load test: simulated readers, the client and a
+# WebSocket server on localhost, in one process.
+#
+# Needs the project jars in lib/ and the JMH jars in lib/bench/, as run.sh.
+#
+# Arguments are options as key=value, e.g.
+#   bench/loadtest.sh sim_tags=500 sim_arrivals_per_second=20 sim_departures_per_second=20
+#   bench/loadtest.sh readers=a,b,c tag_events=delta duration_in_seconds=60
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+OUT=bench/out
+CP="lib/*:lib/bench/*"
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+
+javac -cp "$CP" -proc:none -d "$OUT" $(find src bench -name "*.java")
+java -cp "$OUT:$CP" benchmarks.LoadTest "$@"
@@ -0,0 +1,24 @@
+#!/bin/sh
+#
+# Build and run the JMH benchmarks.
+#
+# Needs the project jars in lib/ and the JMH jars in lib/bench/:
+# jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3.
+# On Java 11 and later also add jaxb-api to lib/bench/.
+#
+# Arguments are passed to JMH, e.g.
+#   bench/run.sh -prof gc TagDecodeBenchmark
+#   bench/run.sh -prof gc -rf json -rff bench/results/baseline.json
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+OUT=bench/out
+CP="lib/*:lib/bench/*"
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+
+javac -cp "$CP" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d "$OUT" $(find src bench -name "*.java")
+java -cp "$OUT:$CP" org.openjdk.jmh.Main "$@"
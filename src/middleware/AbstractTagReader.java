@@ -1,49 +1,219 @@
 package middleware;
 
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-
-import javax.xml.bind.DatatypeConverter;
-
-import de.feig.FePortDriverException;
-import de.feig.FeReaderDriverException;
-import de.feig.FedmException;
+import java.util.function.DoubleSupplier;
 
 /**
  * AbstractTagReader.
  * 
- * Supplies basic logic for a TagReader, with a Thread run-method that
+ * Supplies basic logic for a TagReader, with a run-method (the poll task) that
  * reads/writes tags according to which state it is in.
  * 
  * This class should be extended for a new TagReader, and at least the abstract
  * methods need to be overridden.
+ *
+ * Threads: the poll task runs on a platform thread in the task scope of the
+ * reader, and is the only thread that talks to the device, so tags are read
+ * and AFIs written from it. The reader can be started again after it has
+ * stopped; the same object and device handle are used.
+ * - Only used by the poll task: newTags, currentTags, presence, cycle,
+ *   processingNotified and the device handle of the subclass.
+ * - currentTags and the tags of the next cycle are two TagStores, which are
+ *   swapped at the end of each cycle, so a cycle where the same tags are
+ *   read does not allocate in the presence tracking and comparison.
+ * - Set from other threads: running, connected and detectCurrentTags, which
+ *   are volatile, and eventsSetAFI and scheduler, which are thread-safe.
+ * - Set in the constructor, and read only after: all other fields. Starting
+ *   the poll task makes them visible to it.
+ * - Updated from the poll task, and read from any thread: metrics and
+ *   journal, which are thread-safe.
+ *
+ * With journal_dir set, tag and AFI events are journaled (TagJournal). When
+ * the poll task starts, the tags on the reader are restored from the journal,
+ * so tags that stayed on the reader are not detected again, and AFI commands
+ * that were waiting when the process stopped are queued again.
  */
-public abstract class AbstractTagReader extends Thread implements TagReaderInterface {
-	protected boolean connected = false;
-	protected boolean running = false;
-	protected boolean detectCurrentTags = false;
+public abstract class AbstractTagReader implements TagReaderInterface, Runnable {
+	protected volatile boolean connected = false;
+	protected volatile boolean running = false;
+	protected volatile boolean detectCurrentTags = false;
 	protected HashMap<String, BibTag> newTags = new HashMap<String, BibTag>();
-	protected HashMap<String, BibTag> currentTags = new HashMap<String, BibTag>();
-	protected ArrayList<EventSetAFI> eventsSetAFI = new ArrayList<EventSetAFI>();
+	protected TagStore currentTags = new TagStore();
+	protected EventSetAFIQueue eventsSetAFI;
 	protected LoggerImpl logger;
+	protected Configuration configuration;
 	protected TagListenerInterface tagListener;
 	protected int successfulReadsThreshold;
 	protected int threadSleepInMillis;
+	protected PollScheduler scheduler;
+	protected TagPresenceTracker presence;
+	protected long afiWriteDeadlineInMillis;
+	protected int afiWriteMaxAttempts;
+	protected boolean afiWriteRfReset;
+	protected boolean deltaEvents;
+	protected long cycle = 0;
+	protected String readerId;
+	protected TaskScope scope;
+	protected int maxFailedCycles;
+	protected volatile ReaderStateListener stateListener;
+	protected ReaderMetrics metrics;
+	protected TagJournal journal;
+	protected ProtocolRecorder recorder;
+	private final TagDecoder decoder = new TagDecoder();
+	private final ArrayList<EventSetAFI> events = new ArrayList<EventSetAFI>();
+	private final ArrayList<AFIWrite> writes = new ArrayList<AFIWrite>();
+	private final ArrayList<BibTag> added = new ArrayList<BibTag>();
+	private final ArrayList<BibTag> removed = new ArrayList<BibTag>();
+	private final ArrayList<BibTag> changed = new ArrayList<BibTag>();
+	private final ArrayList<BibTag> changedFrom = new ArrayList<BibTag>();
+	private TagStore nextTags = new TagStore();
+	private long flaps = 0;
+	private boolean pendingRestored = false;
+	// rfid.processing has been sent, and the reader has not been empty since.
+	private boolean processingNotified = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param logger
+	 *   The logger implementation.
+	 * @param tagListener
+	 *   The tag listener where reader events are passed to.
+	 * @param successfulReadsThreshold
+	 *   Reads needed before a tag is detected.
+	 * @param threadSleepInMillis
+	 *   The period between poll cycles.
+	 * @param configuration
+	 *   The options, see config.properties.
+	 */
+	protected AbstractTagReader(LoggerImpl logger, TagListenerInterface tagListener, int successfulReadsThreshold, int threadSleepInMillis, Configuration configuration) {
+		this.logger = logger;
+		this.tagListener = tagListener;
+		this.successfulReadsThreshold = successfulReadsThreshold;
+		this.threadSleepInMillis = threadSleepInMillis;
+		this.configuration = configuration;
+		this.readerId = configuration.getString("reader_id", "default");
+		this.scope = new TaskScope("rfid-reader-" + readerId, logger);
+		this.scheduler = new PollScheduler(
+			threadSleepInMillis,
+			configuration.getLong("poll_max_period_in_millis", 2000),
+			configuration.getInt("poll_idle_cycles", 25)
+		);
+		this.deltaEvents = configuration.getString("tag_events", "tag").equals("delta");
+		this.afiWriteDeadlineInMillis = configuration.getLong("afi_write_deadline_in_millis", 2000);
+		this.afiWriteMaxAttempts = configuration.getInt("afi_write_max_attempts", 3);
+		this.afiWriteRfReset = configuration.getBoolean("afi_write_rf_reset", false);
+		this.maxFailedCycles = configuration.getInt("reader_max_failed_cycles", 5);
+		this.eventsSetAFI = new EventSetAFIQueue(configuration.getInt("afi_queue_capacity", 100));
+		this.presence = new TagPresenceTracker(
+			successfulReadsThreshold,
+			configuration.getInt("arrival_window_cycles", 3),
+			configuration.getInt("removal_miss_threshold", 2)
+		);
+		this.metrics = new ReaderMetrics(Metrics.DEFAULT, readerId);
+
+		if (!configuration.getString("journal_dir", "").isEmpty()) {
+			try {
+				this.journal = new TagJournal(
+					new File(configuration.getString("journal_dir", ""), readerId),
+					configuration.getInt("journal_segment_records", 16384),
+					configuration.getInt("journal_max_segments", 16),
+					configuration.getLong("journal_snapshot_interval_in_millis", 60000),
+					logger
+				);
+			} catch (IOException e) {
+				logger.error("Could not open journal, tags are not journaled: " + e.getMessage());
+			}
+		}
+
+		// {reader} is replaced by the reader id, so each reader can record.
+		if (!configuration.getString("record_file", "").isEmpty()) {
+			File file = new File(configuration.getString("record_file", "").replace("{reader}", readerId));
+
+			try {
+				this.recorder = new ProtocolRecorder(file, readerId, logger);
+				logger.info("Recording reader {} to {}", readerId, file);
+			} catch (IOException e) {
+				logger.error("Could not open recording, not recording: " + e.getMessage());
+			}
+		}
+
+		Metrics.DEFAULT.counter("rfid_afi_rejected_total", "AFI commands rejected because too many were waiting.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return eventsSetAFI.getRejected();
+			}
+		}, "reader", readerId);
+		Metrics.DEFAULT.gauge("rfid_poll_period_seconds", "The current period between poll cycles.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return scheduler.getCurrentPeriod() / 1000.0;
+			}
+		}, "reader", readerId);
+	}
 
 	/**
 	 * Get the tags on the device.
 	 * 
 	 * @return
 	 *   ArrayList of BibTags.
-	 * @throws FedmException 
-	 * @throws FeReaderDriverException 
-	 * @throws FePortDriverException 
+	 * @throws Exception
+	 *   If the device could not be read. The cycle has failed.
 	 */
-	protected abstract HashMap<String, BibTag> getTags() throws FedmException, FePortDriverException, FeReaderDriverException;
+	protected abstract HashMap<String, BibTag> getTags() throws Exception;
+
+	/**
+	 * Create a tag read in this cycle, for getTags().
+	 *
+	 * If the tag was read with the same data and AFI in the last cycle, that
+	 * tag is returned instead, so tags that stay on the reader are not created
+	 * again each cycle.
+	 *
+	 * @param uid
+	 * @param data
+	 *   The raw data read from the tag. Must not be modified afterwards.
+	 * @param afi
+	 *   The AFI, or BibTag.NO_AFI.
+	 */
+	protected BibTag readTag(String uid, byte[] data, int afi) {
+		BibTag last = presence.getTag(TagStore.key(uid));
+
+		if (last != null && last.isSameRead(uid, data, afi)) {
+			return last;
+		}
+
+		return new BibTag(uid, data, afi);
+	}
+
+	/**
+	 * Read the AFI of a tag, for getTags().
+	 *
+	 * If the read fails, the AFI of the tag last read is used, the same way the
+	 * data last read is kept for a tag that misses a cycle. Otherwise a single
+	 * failed read would detect the tag again without an AFI, and once more
+	 * when the AFI is read again.
+	 *
+	 * @param uid
+	 * @return
+	 *   The AFI, or BibTag.NO_AFI if it could not be read and the tag is not
+	 *   tracked. The tag is then left out of the cycle.
+	 */
+	protected int readTagAFI(String uid) {
+		int afi = readAFI(uid);
+
+		if (afi < 0) {
+			BibTag last = presence.getTag(TagStore.key(uid));
+
+			return last != null ? last.getAFIValue() : BibTag.NO_AFI;
+		}
+
+		return afi;
+	}
 
 	/**
 	 * Connect to the device.
@@ -97,165 +267,171 @@ public abstract class AbstractTagReader extends Thread implements TagReaderInter
 
 	/**
 	 * Start reading.
+	 *
+	 * Connects, if not connected, and starts the poll task. Blocks while
+	 * connecting, so it should be called from a task in the scope of the
+	 * reader.
 	 */
 	@Override
-	public void startReading() {
+	public synchronized void startReading() {
+		if (running) {
+			return;
+		}
+
+		// Let the previous poll task release the device.
+		try {
+			scope.join("poll", 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
 		if (!connected) {
 			connect();
 		}
 
 		if (connected && !running) {
-			logger.info("Starting reader thread");
+			logger.info("Starting reader thread: " + readerId);
 
 			running = true;
-			start();
+
+			// The previous poll task has not ended yet.
+			if (!scope.forkPlatform("poll", this)) {
+				logger.warning("Reader thread still stopping: " + readerId);
+				running = false;
+			}
 		}
 	}
 
 	/**
 	 * Stop reading.
+	 *
+	 * The poll task ends after the current cycle, and closes the connection.
 	 */
 	@Override
 	public void stopReading() {
 		running = false;
+		scheduler.wakeUp();
 	}
 
 	/**
-	 * Add event - set tag AFI.
+	 * Stop reading, and stop all tasks of the reader.
+	 *
+	 * @param timeoutInMillis
+	 *   Max time to wait for the tasks to end.
 	 */
 	@Override
-	public void addEventSetTagAFI(String uid, String afi) {
-		eventsSetAFI.add(new EventSetAFI(uid, afi));
+	public boolean shutdown(long timeoutInMillis) {
+		stopReading();
+
+		boolean stopped = scope.close(timeoutInMillis);
+
+		// Restore from a snapshot at the next start.
+		if (journal != null) {
+			snapshotJournal();
+			journal.close();
+		}
+
+		if (recorder != null) {
+			recorder.close();
+		}
+
+		return stopped;
 	}
 
 	/**
-	 * The reader should detect current tags.
+	 * The tasks of the reader.
 	 */
 	@Override
-	public void detectCurrentTags() {
-		detectCurrentTags = true;
+	public TaskScope getScope() {
+		return scope;
 	}
 
 	/**
-	 * Reverse the order of the bytes in the data.
-	 * 
-	 * @TODO: Optimize process.
-	 * 
-	 * @param data
-	 *   Raw data from the reader.
-	 * @return
-	 *   String of data in reverse order.
-	 */
-	private String reverseData(String data) {
-		return data.substring(6, 8) + data.substring(4, 6) + data.substring(2, 4) + data.substring(0, 2)
-				+ data.substring(14, 16) + data.substring(12, 14) + data.substring(10, 12) + data.substring(8, 10)
-				+ data.substring(22, 24) + data.substring(20, 22) + data.substring(18, 20) + data.substring(16, 18)
-				+ data.substring(30, 32) + data.substring(28, 30) + data.substring(26, 28) + data.substring(24, 26)
-				+ data.substring(38, 40) + data.substring(36, 38) + data.substring(34, 36) + data.substring(32, 34)
-				+ data.substring(46, 48) + data.substring(44, 46) + data.substring(42, 44) + data.substring(40, 42)
-				+ data.substring(54, 56) + data.substring(52, 54) + data.substring(50, 52) + data.substring(48, 50)
-				+ data.substring(62, 64) + data.substring(60, 62) + data.substring(58, 60) + data.substring(56, 58);
+	 * Set the listener notified when the reader stops because the device fails.
+	 */
+	@Override
+	public void setStateListener(ReaderStateListener stateListener) {
+		this.stateListener = stateListener;
 	}
 
 	/**
-	 * Decode a utf-8 hex encoded string.
-	 * 
-	 * @see https://en.wikipedia.org/wiki/UTF-8
-	 * 
-	 * @param str
-	 *   The string to decode.
-	 * @param breakAtNull
-	 *   Should the decoding end when encountering the null character?
+	 * Add event - set tag AFI.
+	 *
+	 * Can be called from any thread. Wakes the reader thread, so the AFI is
+	 * written in the next cycle.
+	 *
 	 * @return
-	 *   The decoded string. 
-	 * @throws UnsupportedEncodingException
+	 *   False if too many commands are waiting, and the event was rejected.
 	 */
-	private String utf8decode(String str, boolean breakAtNull) throws UnsupportedEncodingException {
-		ByteArrayOutputStream bOutput = new ByteArrayOutputStream(12);
-
-		for (int i = 0; i < str.length(); i += 2) {
-			int b = Integer.parseInt(str.substring(i, i + 2), 16);
-
-			// Break at first null character.
-			if (breakAtNull && b == 0) {
-				break;
-			}
+	@Override
+	public boolean addEventSetTagAFI(String uid, String afi) {
+		if (!eventsSetAFI.offer(new EventSetAFI(uid, afi))) {
+			return false;
+		}
 
-			bOutput.write(b);
+		if (journal != null) {
+			journal.afiQueued(uid, afi);
 		}
 
-		return new String(bOutput.toByteArray(), "UTF-8");
+		scheduler.wakeUp();
+
+		return true;
 	}
 
 	/**
-	 * Decode a utf-8 hex encoded string and break at first null character.
-	 *
-	 * @param str
-	 *   The string to decode.
-	 * @return
-	 *   The decoded string.
-	 * @throws UnsupportedEncodingException
+	 * The reader should detect current tags.
 	 */
-	private String utf8decode(String str) throws UnsupportedEncodingException {
-		return utf8decode(str, true);
+	@Override
+	public void detectCurrentTags() {
+		detectCurrentTags = true;
+		scheduler.wakeUp();
 	}
 
 	/**
-	 * Calculate crc16ccitt.
-	 * 
-	 * @see http://introcs.cs.princeton.edu/java/61data/CRC16CCITT.java
-	 * 
-	 * @param data
-	 *   Byte array of data.
-	 * @return
-	 *   The crc value.
+	 * The current period between poll cycles.
 	 */
-	public static int crc16(byte[] data) {
-		int crc = 0xFFFF; // initial value
-		int polynomial = 0x1021; // 0001 0000 0010 0001 (0, 5, 12)
-
-		for (byte b : data) {
-			for (int i = 0; i < 8; i++) {
-				boolean bit = ((b >> (7 - i) & 1) == 1);
-				boolean c15 = ((crc >> 15 & 1) == 1);
-				crc <<= 1;
-				if (c15 ^ bit)
-					crc ^= polynomial;
-			}
-		}
-
-		crc &= 0xffff;
-		return crc;
+	@Override
+	public long getPollPeriod() {
+		return scheduler.getCurrentPeriod();
 	}
 
 	/**
-	 * Check crc.
-	 *
-	 * @return
-	 *   If the the CRCs match returns true, otherwise false.
+	 * Number of poll cycles since the tags last changed.
 	 */
-	private boolean crc(String crc, String data) {
-		data = data.substring(0, 38) + data.substring(42, 64) + "0000";
-		byte[] buffer = DatatypeConverter.parseHexBinary(data);
-
-		String calculatedCrc = Integer.toHexString(crc16(buffer));
+	@Override
+	public int getIdleCycles() {
+		return scheduler.getIdleCycles();
+	}
 
-		// Convert to match output from crc16, without leading zeros.
-		crc = (crc.substring(2, 4) + crc.substring(0, 2)).replaceFirst("^0+(?!$)", "");
+	/**
+	 * The id of the reader, from the readers option.
+	 */
+	@Override
+	public String getReaderId() {
+		return readerId;
+	}
 
-		return crc.equals(calculatedCrc);
+	/**
+	 * The timings and counters of the reader.
+	 */
+	@Override
+	public ReaderMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
-	 * Check if owner institution is valid.
-	 *
-	 * @param ownerInstitution
-	 *   The owner institution string to validate.
+	 * Calculate crc16ccitt.
+	 * 
+	 * @see Crc16
+	 * 
+	 * @param data
+	 *   Byte array of data.
 	 * @return
-	 *   Validity of value.
+	 *   The crc value.
 	 */
-	private boolean checkOwnerInstitution(String ownerInstitution) {
-		return ownerInstitution.matches("^[A-Z]{2}[0-9]{5}$");
+	public static int crc16(byte[] data) {
+		return Crc16.compute(data, 0, data.length);
 	}
 
 	/**
@@ -264,16 +440,10 @@ public abstract class AbstractTagReader extends Thread implements TagReaderInter
 	 * Makes sure it complies with library standards.
 	 *
 	 * See ISO 28560-3:2014 "Example 1, encoding of truncated basic block"
+	 * and TagDecoder for the tag layout.
 	 *
-	 * Tag layout (32 bytes)
-	 * ---------------------
-	 * 4 bits: Content parameter (should be 1)
-	 * 4 bits: Type of usage (should be 1)
-	 * 2 bytes: Set information: x of y
-	 * 16 bytes: Primary item identifier
-	 * 2 bytes: CRC
-	 * 11 bytes: Owner institution
-	 * ---------------------
+	 * The tags are decoded directly from the raw data. The hex representation
+	 * of the data is only created when a tag is logged or sent.
 	 *
 	 * @TODO: Fix this to completely follow ISO 28560-1, ISO 28560-3.
 	 * @TODO: Handle tags where primary item identifier is saved in the library extension block.
@@ -281,204 +451,512 @@ public abstract class AbstractTagReader extends Thread implements TagReaderInter
 	 * @param tags
 	 *   HashMap of tags.
 	 */
-	private void processTags(HashMap<String, BibTag> tags) {
+	protected void processTags(HashMap<String, BibTag> tags) {
 		Iterator<Map.Entry<String, BibTag>> iterator = tags.entrySet().iterator();
-		Map.Entry<String, BibTag> entry;
 		BibTag tag;
-		String data;
-		String mid;
-		String primaryItemIdentifierBlock;
-		String ownerInstitution;
+		byte[] data;
+		int seriesLength;
+		int numberInSeries;
 
 		while (iterator.hasNext()) {
-			entry = iterator.next();
-
-			tag = entry.getValue();
+			tag = iterator.next().getValue();
 
-			data = tag.getData();
+			data = tag.getRawData();
 
 			// Make sure the tag has the correct order.
-			// @TODO: Can we get this info from somewhere else?
-			if (data.substring(6, 8).equals("11")) {
-				logger.info("Ensuring tag order, reversing data in: " + data);
-
-				data = reverseData(data);
+			if (data != null && decoder.needsReversal(data)) {
+				logger.debug("Ensuring tag order, reversing data in: {}", tag);
 			}
 
 			// We only accept tags that start with "11" (see Tag layout)
-			// and have a data length of 64.
-			if (!data.substring(0, 2).equals("11") || data.length() != 64) {
+			// and have a data length of 32 bytes.
+			if (!decoder.load(data) || !decoder.hasContentParameter()) {
 				// Then we do not recognize the tag.
-				logger.warning("Tag does start with 11 or length of 64: " + data);
+				logger.warningRateLimited("content:" + tag.getUID(), "Tag does start with 11 or length of 64: {}", tag.getData());
+				metrics.contentRejects.inc();
 
 				iterator.remove();
 				continue;
 			}
 
 			// Validate tag.
-			if (!crc(data.substring(38, 42).toLowerCase(), data)) {
+			if (!decoder.checkCrc()) {
 				// Then we do not recognize the tag.
-				logger.warning("Could not validate tag: " + data);
+				logger.warningRateLimited("crc:" + tag.getUID(), "Could not validate tag: {}", tag.getData());
 
 				// This is a HACK to handle tags that do not follow standards and do not have valid CRC's.
 				// If it follows standards and does not have a valid CRC, ignore the tag.
-				try {
-					ownerInstitution = utf8decode(data.substring(42, 64), false);
-					if (checkOwnerInstitution(ownerInstitution)) {
-						// If the owner institution is valid and the CRC is invalid, the tag should be ignored.
-						iterator.remove();
-						continue;
-					}
-					else {
-						// In this case we accept the tag even though the CRC is invalid, to allow accepting
-						// tags that do not follow conventions.
-						logger.warning(
-							"Owner institution does not follow conventions: " +
-							ownerInstitution +
-							". Accepting tag even though validation fails."
-						);
-					}
-				} catch (UnsupportedEncodingException e) {
+				if (decoder.checkOwnerInstitution()) {
+					// If the owner institution is valid and the CRC is invalid, the tag should be ignored.
+					metrics.crcRejects.inc();
 					iterator.remove();
 					continue;
 				}
+				else {
+					// In this case we accept the tag even though the CRC is invalid, to allow accepting
+					// tags that do not follow conventions.
+					logger.warningRateLimited(
+						"owner:" + tag.getUID(),
+						"Owner institution does not follow conventions: {}. Accepting tag even though validation fails.",
+						decoder.getOwnerInstitution()
+					);
+				}
 			}
 
-			try {
-				// Extract mid from primary item identifier block.
-				primaryItemIdentifierBlock = data.substring(6, 38);
-
-				mid = utf8decode(primaryItemIdentifierBlock);
+			seriesLength = decoder.getSeriesLength();
+			numberInSeries = decoder.getNumberInSeries();
 
-				// Update tag with data.
-				tag.setMID(mid);
-			} catch (UnsupportedEncodingException e) {
+			if (seriesLength < 0 || numberInSeries < 0) {
 				// Then we do not recognize the tag.
-				logger.warning("Could not create MID from data: " + data);
+				logger.warningRateLimited("series:" + tag.getUID(), "Could not read set information from data: {}", tag.getData());
+				metrics.seriesRejects.inc();
 
 				iterator.remove();
-
 				continue;
 			}
 
-			tag.setSeriesLength(Integer.parseInt(data.substring(2, 4)));
-			tag.setNumberInSeries(Integer.parseInt(data.substring(4, 6)));
+			// The tag reads the set information from the data itself, and
+			// decodes the MID from the primary item identifier when it is used.
 		}
 	}
 
 	/**
-	 * Start the thread.
+	 * Compare current and new tags, and notify the listener about tags
+	 * removed, detected and changed.
+	 *
+	 * Both stores are in key order, so the tags are compared in one pass. A
+	 * tag on the reader in both is changed if the AFI or raw data differ.
+	 *
+	 * With tag_events=delta, the listener gets one TagSetDelta with the tags
+	 * added, removed and changed. Otherwise the delta is passed to the per-tag
+	 * callbacks, with changed tags detected again.
+	 *
+	 * @param current
+	 *   The tags from the previous cycle.
+	 * @param next
+	 *   The tags from this cycle.
+	 * @return
+	 *   True if any tags were removed, detected or changed.
 	 */
-	public void run() {
-		// Bookkeeping variables.
+	protected boolean compareTags(TagStore current, TagStore next) {
+		int i = 0;
+		int j = 0;
+
+		added.clear();
+		removed.clear();
+		changed.clear();
+		changedFrom.clear();
+
+		while (i < current.size() || j < next.size()) {
+			if (j == next.size() || (i < current.size() && current.keyAt(i) < next.keyAt(j))) {
+				// Only in the current tags.
+				removed.add(current.tagAt(i++));
+			} else if (i == current.size() || next.keyAt(j) < current.keyAt(i)) {
+				// Only in the new tags.
+				added.add(next.tagAt(j++));
+			} else {
+				// Same tag object, or a compare of the AFI and raw data.
+				if (!current.tagAt(i).contentEquals(next.tagAt(j))) {
+					changedFrom.add(current.tagAt(i));
+					changed.add(next.tagAt(j));
+				}
+
+				i++;
+				j++;
+			}
+		}
+
+		if (journal != null) {
+			for (BibTag tag : removed) {
+				journal.tagRemoved(tag);
+			}
+
+			for (BibTag tag : added) {
+				journal.tagDetected(tag);
+			}
+
+			for (BibTag tag : changed) {
+				journal.tagDetected(tag);
+			}
+		}
+
+		if (added.isEmpty() && removed.isEmpty() && changed.isEmpty()) {
+			return false;
+		}
+
+		TagSetDelta delta = new TagSetDelta(cycle, added, removed, changedFrom, changed);
+
+		if (deltaEvents) {
+			tagListener.tagsChanged(delta);
+		} else {
+			delta.dispatchTo(tagListener);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Write the AFI of tags, and verify the values written.
+	 *
+	 * All writes are sent back to back, then all tags are verified in one
+	 * pass. Tags that failed are written and verified again, until the max
+	 * number of attempts has been made or the deadline has passed. The result
+	 * of each tag is reported through tagAFISet.
+	 *
+	 * @param events
+	 *   The AFI commands.
+	 */
+	protected void writeAFIs(ArrayList<EventSetAFI> events) {
+		long startedAt = System.nanoTime();
+		long deadline = startedAt + afiWriteDeadlineInMillis * 1000000L;
+		Iterator<AFIWrite> iterator;
+		AFIWrite write;
 		BibTag tag;
-		String uid;
-		String chipAfi;
 
-		while (running) {
+		writes.clear();
+
+		for (EventSetAFI event : events) {
+			tag = currentTags.get(event.getUid());
+
+			if (tag == null) {
+				logger.warning("UID: {}, could not be found on reader", event.getUid());
+
+				tagListener.tagAFISet(new BibTag(event.getUid(), "", event.getAfi()), false, 0, 0);
+				journalAFISet(event, false, 0);
+				continue;
+			}
+
 			try {
-				newTags = getTags();
-				processTags(newTags);
+				writes.add(new AFIWrite(event, tag, Integer.parseInt(event.getAfi())));
+			} catch (NumberFormatException e) {
+				logger.warning("Invalid AFI: {}", event);
 
-				// Notify that new tags have been detected.
-				if (currentTags.size() == 0 && newTags.size() > 0) {
-					tagListener.processingNewTags();
+				tagListener.tagAFISet(tag, false, 0, 0);
+				journalAFISet(event, false, 0);
+			}
+		}
+
+		while (!writes.isEmpty()) {
+			// Write all tags back to back.
+			for (AFIWrite afiWrite : writes) {
+				logger.info("Writing: {}", afiWrite.event);
+
+				long writeStartedAt = System.nanoTime();
+
+				afiWrite.attempts++;
+				afiWrite.written = writeAFI(afiWrite.tag.getUID(), afiWrite.event.getAfi());
+
+				metrics.afiWrite.observeSince(writeStartedAt);
+
+				if (recorder != null) {
+					recorder.afiWritten(afiWrite.tag.getUID(), afiWrite.event.getAfi(), afiWrite.written);
 				}
+			}
 
-				// Compare current and new tags for tags removed.
-				for (Map.Entry<String, BibTag> entry : currentTags.entrySet()) {
-					uid = entry.getKey();
-					tag = entry.getValue();
+			// Some readers only report the new values after an RF reset.
+			if (afiWriteRfReset) {
+				clearReader();
+			}
 
-					if (!newTags.containsKey(uid)) {
-						tagListener.tagRemoved(tag);
-					}
+			// Verify the values written, and report back result.
+			iterator = writes.iterator();
+
+			while (iterator.hasNext()) {
+				write = iterator.next();
+
+				if (write.written && verifyAFI(write.tag.getUID()) == write.afi) {
+					// Tags are immutable, so the tag on the reader is replaced.
+					write.tag = write.tag.withAFI(write.afi);
+					currentTags.put(write.tag.getKey(), write.tag);
+					presence.replace(write.tag.getKey(), write.tag);
+					tagListener.tagAFISet(write.tag, true, write.attempts, (System.nanoTime() - startedAt) / 1000000L);
+					metrics.afiWritesSucceeded.inc();
+					journalAFISet(write.event, true, write.attempts);
+					iterator.remove();
+				} else if (write.attempts >= afiWriteMaxAttempts || System.nanoTime() - deadline >= 0) {
+					logger.warning("Could not write AFI after {} attempts: {}", write.attempts, write.event);
+
+					tagListener.tagAFISet(write.tag, false, write.attempts, (System.nanoTime() - startedAt) / 1000000L);
+					metrics.afiWritesFailed.inc();
+					journalAFISet(write.event, false, write.attempts);
+					iterator.remove();
 				}
+			}
+		}
+	}
 
-				// Compare current and new tags for tags detected.
-				for (Map.Entry<String, BibTag> entry : newTags.entrySet()) {
-					uid = entry.getKey();
-					tag = entry.getValue();
+	/**
+	 * Read the AFI to verify a write, and record it.
+	 */
+	private int verifyAFI(String uid) {
+		int afi = readAFI(uid);
 
-					if (!currentTags.containsKey(uid)) {
-						tagListener.tagDetected(tag);
-					}
+		if (recorder != null) {
+			recorder.afiRead(uid, afi);
+		}
+
+		return afi;
+	}
+
+	/**
+	 * Journal the result of an AFI command.
+	 */
+	private void journalAFISet(EventSetAFI event, boolean success, int attempts) {
+		if (journal != null) {
+			journal.afiSet(event.getUid(), event.getAfi(), success, attempts);
+		}
+	}
+
+	/**
+	 * Restore the tags on the reader from the journal each time the poll task
+	 * starts, and the AFI commands waiting the first time only.
+	 *
+	 * The tags are on the reader until they are not read, and the listener
+	 * is not notified about them. If the journal can not be read, e.g. it is
+	 * corrupt, the reader starts without tags.
+	 */
+	protected void restoreFromJournal() {
+		TagJournal.State state;
+
+		try {
+			state = journal.recover();
+		} catch (IOException e) {
+			logger.error("Could not restore from journal: " + e.getMessage());
+			return;
+		} catch (RuntimeException e) {
+			logger.error("Could not restore from journal: " + e);
+			return;
+		}
+
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>(state.getTags());
+		processTags(tags);
+
+		presence.restore(tags);
+		currentTags.clear();
+
+		for (BibTag tag : tags.values()) {
+			currentTags.put(tag.getKey(), tag);
+		}
+
+		int pending = 0;
+
+		// Commands queued while the reader was stopped are still waiting.
+		if (!pendingRestored) {
+			pendingRestored = true;
+
+			for (EventSetAFI event : state.getPending()) {
+				if (eventsSetAFI.offer(event)) {
+					pending++;
 				}
+			}
+		}
 
-				// Update current tags, with tags detected.
-				currentTags = new HashMap<String, BibTag>(newTags);
+		logger.info("Restored from journal ({}): {} tags, {} AFI commands", readerId, tags.size(), pending);
 
-				// Process EventSetAFI events.
-				ArrayList<EventSetAFI> events = new ArrayList<EventSetAFI>(eventsSetAFI);
-				eventsSetAFI.clear();
+		ReaderStateListener listener = stateListener;
 
-				// Set AFI values.
-				for (EventSetAFI event : events) {
-					tag = currentTags.get(event.getUid());
+		if (listener != null) {
+			listener.readerRestored(readerId, tags.values());
+		}
+	}
 
-					// If tag exists, set the AFI.
-					if (tag != null) {
-						logger.info("Writing: " + event.toString());
+	/**
+	 * Write a snapshot of the journal.
+	 */
+	private void snapshotJournal() {
+		try {
+			journal.snapshot();
+		} catch (IOException e) {
+			logger.error("Could not write journal snapshot: " + e.getMessage());
+		}
+	}
 
-						if (!writeAFI(tag.getUID(), event.getAfi())) {
-							tagListener.tagAFISet(tag, false);
-							events.remove(event);
-						}
-					} else {
-						logger.warning("UID: " + event.getUid() + ", could not be found on reader");
+	/**
+	 * Notify once that tags are arriving on an empty reader, and not again
+	 * until no tags are on the reader or being debounced. Called with the
+	 * tags read in the cycle, before the presence is updated.
+	 */
+	private void notifyProcessing() {
+		if (presence.isEmpty()) {
+			processingNotified = false;
+		}
 
-						tagListener.tagAFISet(new BibTag(event.getUid(), "", event.getAfi()), false);
-						events.remove(event);
-					}
+		if (!processingNotified && currentTags.size() == 0 && newTags.size() > 0) {
+			processingNotified = true;
+			tagListener.processingNewTags();
+		}
+	}
+
+	/**
+	 * One poll cycle: read the tags, debounce and compare them, send the
+	 * events, and write the AFIs waiting.
+	 *
+	 * Called by the poll task, which waits for the scheduler between cycles.
+	 *
+	 * @throws Exception
+	 *   If the device could not be read. The cycle has failed.
+	 */
+	protected void pollCycle() throws Exception {
+		TagStore previousTags;
+		long stepStartedAt;
+		boolean tagsChanged;
+
+		cycle++;
+		newTags = getTags();
+
+		// Recorded as read, before processTags removes invalid tags.
+		if (recorder != null) {
+			recorder.cycle(newTags);
+		}
+
+		stepStartedAt = System.nanoTime();
+		processTags(newTags);
+		metrics.decode.observeSince(stepStartedAt);
+
+		notifyProcessing();
+
+		// Debounce the tags read, so a tag that misses a single cycle
+		// is not removed and detected again.
+		stepStartedAt = System.nanoTime();
+		nextTags.clear();
+		presence.update(newTags, nextTags);
+
+		// Compare current and new tags.
+		tagsChanged = compareTags(currentTags, nextTags);
+		metrics.diff.observeSince(stepStartedAt);
+		metrics.flaps.add(presence.getFlaps() - flaps);
+		flaps = presence.getFlaps();
+
+		// Update current tags, with tags detected. The store of the
+		// previous cycle is reused for the next cycle.
+		previousTags = currentTags;
+		currentTags = nextTags;
+		nextTags = previousTags;
+
+		// Process EventSetAFI events.
+		events.clear();
+		eventsSetAFI.drainTo(events);
+
+		if (events.size() > 0) {
+			writeAFIs(events);
+		}
+
+		// If requested current tags.
+		if (detectCurrentTags) {
+			// Tags that have been read the proper number of times.
+			tagListener.tagsDetected(currentTags.values());
+			detectCurrentTags = false;
+		}
+
+		// Log current tags. Only built with loglevel debug or prod.
+		logger.debug("{}", currentTags);
+
+		// Poll at full speed while the tags are changing, tags are being
+		// debounced or commands are waiting, otherwise back off.
+		scheduler.cycleCompleted(tagsChanged || presence.hasPending() || !eventsSetAFI.isEmpty());
+	}
+
+	/**
+	 * The poll task.
+	 */
+	@Override
+	public void run() {
+		// Bookkeeping variables.
+		long cycleStartedAt;
+		int failedCycles = 0;
+		String failure = null;
+		boolean backingOff = false;
+
+		if (journal != null) {
+			restoreFromJournal();
+		}
+
+		while (running) {
+			cycleStartedAt = System.nanoTime();
+
+			try {
+				pollCycle();
+				failedCycles = 0;
+			} catch (Exception e) {
+				logger.error("Error message: {}\n{}", e.getMessage(), e.getStackTrace());
+				metrics.failedCycles.inc();
+
+				if (recorder != null) {
+					recorder.cycleFailed(e.getMessage());
 				}
 
-				// If we have some completed write AFIs, we confirm the values
-				// written.
-				if (events.size() > 0) {
-					// Clear reader from old data.
-					clearReader();
-
-					// Check AFI values written and report back result.
-					for (EventSetAFI event2 : events) {
-						chipAfi = Integer.toString(readAFI(event2.getUid()));
-						tag = currentTags.get(event2.getUid());
-
-						if (event2.getAfi().equals(chipAfi)) {
-							tag.setAFI(chipAfi);
-							tagListener.tagAFISet(tag, true);
-						} else {
-							tagListener.tagAFISet(tag, false);
-						}
-					}
+				// The device is gone, e.g. unplugged. Stop, so the
+				// connection is opened again.
+				if (maxFailedCycles > 0 && ++failedCycles >= maxFailedCycles) {
+					failure = failedCycles + " failed cycles: " + e.getMessage();
+					running = false;
+					break;
 				}
 
-				// If requested current tags.
-				if (detectCurrentTags) {
-					// Find tags that have been read the proper number of times.
-					ArrayList<BibTag> tagsDetected = new ArrayList<BibTag>();
-					for (BibTag detectedTag : currentTags.values()) {
-						tagsDetected.add(detectedTag);
-					}
+				scheduler.cycleCompleted(!eventsSetAFI.isEmpty());
+			}
 
-					tagListener.tagsDetected(tagsDetected);
-					detectCurrentTags = false;
-				}
+			metrics.cycles.inc();
+			metrics.cycle.observeSince(cycleStartedAt);
 
-				// Log current tags.
-				logger.info(currentTags.toString());
-			} catch (Exception e) {
-				logger.error("Error message: " + e.getMessage() + "\n" + e.getStackTrace());
+			// The snapshot is written by a separate task.
+			if (journal != null && journal.isSnapshotDue()) {
+				scope.fork("snapshot", new Runnable() {
+					@Override
+					public void run() {
+						snapshotJournal();
+					}
+				});
+			}
+
+			if (scheduler.isBackingOff() != backingOff) {
+				backingOff = scheduler.isBackingOff();
+				logger.info("{}, poll period: {} ms", backingOff ? "Backing off" : "Stopped backing off", scheduler.getCurrentPeriod());
 			}
 
-			// Yield CPU.
+			// Yield CPU until the next cycle.
 			try {
-				Thread.sleep(threadSleepInMillis);
+				scheduler.awaitNextCycle(cycleStartedAt);
 			} catch (InterruptedException e) {
-				logger.error("InterruptedException: " + e.getMessage() + "\n" + e.getStackTrace());
+				// Interrupted by shutdown, which has stopped reading.
+				if (running) {
+					logger.error("InterruptedException: " + e.getMessage() + "\n" + e.getStackTrace());
+				}
 			}
 		}
 
 		// Make sure detected tags are cleared.
-		currentTags = new HashMap<String, BibTag>();
+		currentTags.clear();
+		nextTags.clear();
+		presence.clear();
+
+		// Release the device, so the reader can be started again.
+		closeConnection();
+		connected = false;
+
+		logger.info("Reader thread stopped: " + readerId);
+
+		ReaderStateListener listener = stateListener;
+
+		if (failure != null && listener != null) {
+			listener.readerStopped(readerId, failure);
+		}
+	}
+
+	/**
+	 * An AFI write in progress.
+	 */
+	private static class AFIWrite {
+		private final EventSetAFI event;
+		private BibTag tag;
+		private final int afi;
+		private int attempts = 0;
+		private boolean written = false;
+
+		private AFIWrite(EventSetAFI event, BibTag tag, int afi) {
+			this.event = event;
+			this.tag = tag;
+			this.afi = afi;
+		}
 	}
 }
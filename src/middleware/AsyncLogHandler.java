@@ -0,0 +1,167 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * AsyncLogHandler.
+ *
+ * Passes log records to other handlers (file, console) on a separate writer
+ * thread, so logging never waits for I/O.
+ *
+ * Records wait in a bounded buffer. When it is full, new records are dropped
+ * and counted, and the writer logs how many were dropped.
+ */
+public class AsyncLogHandler extends Handler {
+	private final ArrayBlockingQueue<LogRecord> buffer;
+	private final ArrayList<Handler> handlers = new ArrayList<Handler>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean running = true;
+	private long reportedDropped = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * Starts the writer thread.
+	 *
+	 * @param capacity
+	 *   Max number of records waiting.
+	 * @param targets
+	 *   The handlers the records are passed to.
+	 */
+	public AsyncLogHandler(int capacity, Handler... targets) {
+		this.buffer = new ArrayBlockingQueue<LogRecord>(Math.max(1, capacity));
+
+		for (Handler handler : targets) {
+			if (handler != null) {
+				handlers.add(handler);
+			}
+		}
+
+		setLevel(Level.ALL);
+
+		writer = TaskExecutors.platformThreadFactory("rfid-log", true).newThread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		});
+		writer.start();
+	}
+
+	/**
+	 * Queue a record. Never blocks.
+	 */
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record)) {
+			return;
+		}
+
+		if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The writer thread.
+	 */
+	private void write() {
+		LogRecord record;
+
+		while (running || !buffer.isEmpty()) {
+			try {
+				record = buffer.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			if (record != null) {
+				pass(record);
+			}
+
+			reportDropped();
+
+			// Flush when there is nothing more to write.
+			if (record != null && buffer.isEmpty()) {
+				for (Handler handler : handlers) {
+					handler.flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Log the number of records dropped since the last report.
+	 */
+	private void reportDropped() {
+		long count = dropped.get();
+
+		if (count > reportedDropped) {
+			LogRecord record = new LogRecord(Level.WARNING, "Log buffer full, dropped " + (count - reportedDropped) + " log records");
+			record.setSourceClassName(AsyncLogHandler.class.getName());
+			record.setSourceMethodName("publish");
+
+			reportedDropped = count;
+			pass(record);
+		}
+	}
+
+	/**
+	 * Pass a record to the handlers.
+	 */
+	private void pass(LogRecord record) {
+		for (Handler handler : handlers) {
+			try {
+				handler.publish(record);
+			} catch (RuntimeException e) {
+				reportError(e.getMessage(), e, 0);
+			}
+		}
+	}
+
+	/**
+	 * Number of records dropped because the buffer was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of records waiting.
+	 */
+	public int getQueued() {
+		return buffer.size();
+	}
+
+	/**
+	 * Records are flushed by the writer thread.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Write the waiting records, and close the handlers.
+	 */
+	@Override
+	public void close() {
+		running = false;
+
+		try {
+			writer.join(2000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Handler handler : handlers) {
+			handler.close();
+		}
+	}
+}
@@ -1,96 +1,322 @@
 package middleware;
 
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
 /**
  * BibTag.
+ *
+ * An immutable tag value, kept compact because the readers hold one for each
+ * tag on the reader, and create one for each tag read in a cycle.
+ *
+ * - An ISO 15693 UID (16 upper case hex digits) is kept as its value
+ *   (TagStore.key), other UIDs as the string.
+ * - The AFI is kept as a number, the string is shared.
+ * - The data is kept as the raw block read from the tag.
+ * - The set information is read from the block when the tag is created (0 if
+ *   it is not valid, processTags() removes such tags), the MID is decoded on
+ *   first access and then kept.
+ *
+ * The String getters create the strings when called, so events and logging
+ * look the same as before, while tags that are only compared cost nothing.
+ * Tags are safe to share between threads. The raw data must not be modified.
  */
 public class BibTag {
-	private String uid, mid, afi, data;
-	private int seriesLength, numberInSeries;
-	private long timestamp; 
+	public static final int NO_AFI = -1;
+
+	private static final String[] AFI_VALUES = new String[256];
+
+	static {
+		for (int i = 0; i < AFI_VALUES.length; i++) {
+			AFI_VALUES[i] = Integer.toString(i);
+		}
+	}
+
+	private final long key;
+	private final long timestamp;
+	// Only for UIDs that are not 16 upper case hex digits.
+	private final String uid;
+	private final byte[] rawData;
+	// Only for AFIs that are not a number from 0 to 255.
+	private final String afiText;
+	private final short afi;
+	private final byte seriesLength, numberInSeries;
+	private final boolean hexUid;
+	// Decoded on first access. A race only decodes it twice.
+	private String mid;
 
 	/**
 	 * Constructor.
-	 * 
+	 *
 	 * @param uid
+	 * @param data
+	 *   The data as a hex string.
 	 * @param mid
 	 * @param afi
 	 * @param seriesLength
 	 * @param numberInSeries
 	 */
 	public BibTag(String uid, String data, String mid, String afi, int seriesLength, int numberInSeries) {
-		super();
-		this.uid = uid;
-		this.mid = mid;
-		this.afi = afi;
-		this.data = data;
-		this.seriesLength = seriesLength;
-		this.numberInSeries = numberInSeries;
-		this.timestamp = System.currentTimeMillis();
+		this(uid, parseHex(data), afiValue(afi), afiText(afi), mid, seriesLength, numberInSeries, System.currentTimeMillis());
 	}
 
+	/**
+	 * Constructor.
+	 *
+	 * @param uid
+	 * @param data
+	 *   The data as a hex string, e.g. "" for a tag that has not been read.
+	 * @param afi
+	 */
 	public BibTag(String uid, String data, String afi) {
-		this.uid = uid;
-		this.data = data;
-		this.afi = afi;
-		this.timestamp = System.currentTimeMillis();
+		this(uid, parseHex(data), afi);
 	}
-	
-	public String getUID() {
-		return this.uid;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param uid
+	 * @param rawData
+	 *   The raw data read from the tag.
+	 * @param afi
+	 */
+	public BibTag(String uid, byte[] rawData, String afi) {
+		this(uid, rawData, afiValue(afi), afiText(afi), null,
+				Math.max(0, TagDecoder.seriesLength(rawData)), Math.max(0, TagDecoder.numberInSeries(rawData)), System.currentTimeMillis());
 	}
 
-	public String getMID() {
-		return this.mid;
+	/**
+	 * Constructor.
+	 *
+	 * @param uid
+	 * @param rawData
+	 *   The raw data read from the tag.
+	 * @param afi
+	 *   The AFI, or NO_AFI.
+	 */
+	public BibTag(String uid, byte[] rawData, int afi) {
+		this(uid, rawData, afi, System.currentTimeMillis());
 	}
 
-	public void setMID(String mid) {
+	/**
+	 * Constructor.
+	 *
+	 * @param uid
+	 * @param rawData
+	 *   The raw data read from the tag.
+	 * @param afi
+	 *   The AFI, or NO_AFI.
+	 * @param timestamp
+	 *   When the tag was read.
+	 */
+	public BibTag(String uid, byte[] rawData, int afi, long timestamp) {
+		this(uid, rawData, afi >= 0 && afi <= 255 ? afi : NO_AFI, null, null,
+				Math.max(0, TagDecoder.seriesLength(rawData)), Math.max(0, TagDecoder.numberInSeries(rawData)), timestamp);
+	}
+
+	private BibTag(String uid, byte[] rawData, int afi, String afiText, String mid, int seriesLength, int numberInSeries, long timestamp) {
+		this.hexUid = isHexUid(uid);
+		this.key = uid == null ? 0 : TagStore.key(uid);
+		this.uid = hexUid ? null : uid;
+		this.rawData = rawData;
+		this.afi = (short) afi;
+		this.afiText = afiText;
 		this.mid = mid;
+		this.seriesLength = (byte) seriesLength;
+		this.numberInSeries = (byte) numberInSeries;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * A copy of the tag with another AFI, e.g. after the AFI is written.
+	 *
+	 * @param afi
+	 *   The AFI, or NO_AFI.
+	 */
+	public BibTag withAFI(int afi) {
+		return new BibTag(getUID(), rawData, afi >= 0 && afi <= 255 ? afi : NO_AFI, null, mid,
+				seriesLength, numberInSeries, timestamp);
+	}
+
+	/**
+	 * Is the UID 16 upper case hex digits, which the key can be turned back into?
+	 */
+	private static boolean isHexUid(String uid) {
+		char c;
+
+		if (uid == null || uid.length() != 16) {
+			return false;
+		}
+
+		for (int i = 0; i < 16; i++) {
+			c = uid.charAt(i);
+
+			if ((c < '0' || c > '9') && (c < 'A' || c > 'F')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parse hex data, for the constructors that take a string.
+	 *
+	 * @return
+	 *   The bytes, or null if the string is not hex.
+	 */
+	private static byte[] parseHex(String data) {
+		if (data == null) {
+			return null;
+		}
+
+		try {
+			return DatatypeConverter.parseHexBinary(data);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The number of an AFI string, or NO_AFI.
+	 */
+	private static int afiValue(String afi) {
+		if (afi == null) {
+			return NO_AFI;
+		}
+
+		try {
+			int value = Integer.parseInt(afi);
+
+			return value >= 0 && value <= 255 ? value : NO_AFI;
+		} catch (NumberFormatException e) {
+			return NO_AFI;
+		}
+	}
+
+	/**
+	 * The AFI string, if it can not be kept as a number.
+	 */
+	private static String afiText(String afi) {
+		return afi != null && afiValue(afi) == NO_AFI ? afi : null;
+	}
+
+	/**
+	 * The key of the UID, see TagStore.key().
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	public String getUID() {
+		if (!hexUid) {
+			return uid;
+		}
+
+		char[] chars = new char[16];
+
+		for (int i = 0; i < 16; i++) {
+			chars[i] = Character.toUpperCase(Character.forDigit((int) (key >>> (60 - i * 4)) & 0x0F, 16));
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * Get the MID.
+	 *
+	 * Decoded from the raw data on first access.
+	 */
+	public String getMID() {
+		if (mid == null && rawData != null) {
+			mid = TagDecoder.primaryItemIdentifier(rawData);
+		}
+
+		return mid;
 	}
 
 	public String getAFI() {
-		return this.afi;
+		return afi == NO_AFI ? afiText : AFI_VALUES[afi];
 	}
 
-	public void setAFI(String afi) {
-		this.afi = afi;
+	/**
+	 * Get the AFI as a number.
+	 *
+	 * @return
+	 *   The AFI, or NO_AFI if it is not known.
+	 */
+	public int getAFIValue() {
+		return afi;
 	}
 
 	public int getSeriesLength() {
 		return seriesLength;
 	}
 
-	public void setSeriesLength(int seriesLength) {
-		this.seriesLength = seriesLength;
-	}
-
 	public int getNumberInSeries() {
 		return numberInSeries;
 	}
 
-	public void setNumberInSeries(int numberInSeries) {
-		this.numberInSeries = numberInSeries;
-	}
-
+	/**
+	 * Get the data as a hex string.
+	 *
+	 * Created from the raw data on each call.
+	 */
 	public String getData() {
-		return data;
+		return rawData == null ? null : DatatypeConverter.printHexBinary(rawData);
 	}
 
-	public void setData(String data) {
-		this.data = data;
+	public byte[] getRawData() {
+		return rawData;
 	}
 
 	public long getTimestamp() {
 		return timestamp;
 	}
 
-	public void setTimestamp(long timestamp) {
-		this.timestamp = timestamp;
+	/**
+	 * Does the other tag have the same AFI and data?
+	 *
+	 * @param other
+	 *   Tag to compare with.
+	 */
+	public boolean contentEquals(BibTag other) {
+		if (this == other) {
+			return true;
+		}
+
+		if (afi != other.afi || (afiText == null ? other.afiText != null : !afiText.equals(other.afiText))) {
+			return false;
+		}
+
+		return Arrays.equals(rawData, other.rawData);
+	}
+
+	/**
+	 * Was this tag read with the same UID, data and AFI?
+	 *
+	 * Used by the readers to keep the tag from the last cycle, instead of
+	 * creating a new one.
+	 *
+	 * @param uid
+	 * @param rawData
+	 *   The raw data read from the tag.
+	 * @param afi
+	 *   The AFI, or NO_AFI.
+	 */
+	public boolean isSameRead(String uid, byte[] rawData, int afi) {
+		if (this.afi != afi || afiText != null || !(this.rawData == rawData || Arrays.equals(this.rawData, rawData))) {
+			return false;
+		}
+
+		return hexUid ? isHexUid(uid) && TagStore.key(uid) == key : uid.equals(this.uid);
 	}
 
 	/**
 	 * To string.
 	 */
 	public String toString() {
-		return "{ uid: " + uid + ", mid: " + mid + " ( " + numberInSeries  + "/" + seriesLength + ") - " + data +" }";
+		return "{ uid: " + getUID() + ", mid: " + getMID() + " ( " + numberInSeries  + "/" + seriesLength + ") - " + getData() +" }";
 	}
 }
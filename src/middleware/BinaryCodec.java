@@ -0,0 +1,285 @@
+package middleware;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * BinaryCodec.
+ *
+ * Converts WebSocketMessages to binary frames, for peers that accept the
+ * binary format in the hello event (wire_format=binary).
+ *
+ * Frame:
+ * - event: 1 byte, see the EVENT_ constants.
+ * - flags: 1 byte, bit 0 is success.
+ * - timestamp: varint, milliseconds since the epoch.
+ * - reader: varint length, followed by the UTF-8 bytes of the reader id.
+ * - rfid.afi.set: attempts and duration (ms) as varints, then 1 tag.
+ * - rfid.tag.detected, rfid.tag.removed: 1 tag.
+ * - rfid.tags.detected: list of tags.
+ * - rfid.tags.delta: cycle as varint, then lists of added, removed and
+ *   changed tags.
+ *
+ * A list of tags is its length as varint, followed by the tags. A tag is:
+ * - uid: 8 bytes.
+ * - afi: varint, the AFI + 1, or 0 if unknown.
+ * - seriesLength, numberInSeries: 1 byte each.
+ * - mid: varint length, followed by the UTF-8 bytes.
+ * - data: varint length, followed by the raw block (normally 32 bytes).
+ * - timestamp: zigzag varint, difference to the timestamp of the frame.
+ *
+ * Varints are unsigned LEB128: 7 bits per byte, least significant first,
+ * high bit set on all but the last byte.
+ */
+public class BinaryCodec {
+	public static final int EVENT_TAG_DETECTED = 1;
+	public static final int EVENT_TAG_REMOVED = 2;
+	public static final int EVENT_TAGS_DETECTED = 3;
+	public static final int EVENT_TAGS_DELTA = 4;
+	public static final int EVENT_AFI_SET = 5;
+	public static final int EVENT_PROCESSING = 6;
+	public static final int EVENT_ONLINE = 7;
+	public static final int EVENT_OFFLINE = 8;
+
+	private static final int UID_LENGTH = 8;
+	private static final int MAX_POOLED_BUFFER = 64 * 1024;
+
+	private final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+		@Override
+		protected ByteArrayOutputStream initialValue() {
+			return new ByteArrayOutputStream(256);
+		}
+	};
+
+	/**
+	 * Convert a message to a binary frame.
+	 *
+	 * @param msg
+	 *   The message.
+	 * @return
+	 *   The frame, or null if the message can not be sent in the binary
+	 *   format (unknown event, or a UID that is not 8 bytes hex). It should
+	 *   then be sent as JSON.
+	 */
+	public byte[] encode(WebSocketMessage msg) {
+		int event = eventType(msg.getEvent());
+
+		if (event == 0) {
+			return null;
+		}
+
+		ByteArrayOutputStream out = buffers.get();
+		out.reset();
+
+		long timestamp = msg.getTimestamp();
+		boolean valid = true;
+
+		out.write(event);
+		out.write(msg.getSuccess() ? 1 : 0);
+		writeVarint(out, timestamp);
+		writeString(out, msg.getReader());
+
+		switch (event) {
+			case EVENT_AFI_SET:
+				writeVarint(out, msg.getAttempts() == null ? 0 : msg.getAttempts());
+				writeVarint(out, msg.getDuration() == null ? 0 : msg.getDuration());
+				valid = writeTag(out, msg.getTag(), timestamp);
+				break;
+
+			case EVENT_TAG_DETECTED:
+			case EVENT_TAG_REMOVED:
+				valid = writeTag(out, msg.getTag(), timestamp);
+				break;
+
+			case EVENT_TAGS_DETECTED:
+				valid = writeTags(out, msg.getTags(), timestamp);
+				break;
+
+			case EVENT_TAGS_DELTA:
+				writeVarint(out, msg.getCycle() == null ? 0 : msg.getCycle());
+				valid = writeTags(out, msg.getAdded(), timestamp)
+					&& writeTags(out, msg.getRemoved(), timestamp)
+					&& writeTags(out, msg.getChanged(), timestamp);
+				break;
+		}
+
+		byte[] frame = valid ? out.toByteArray() : null;
+
+		// Do not keep large buffers around.
+		if (out.size() > MAX_POOLED_BUFFER) {
+			buffers.remove();
+		}
+
+		return frame;
+	}
+
+	/**
+	 * The event type of an event name.
+	 *
+	 * @return
+	 *   The type, or 0 if the event has no binary format.
+	 */
+	private static int eventType(String event) {
+		if (event == null) {
+			return 0;
+		}
+
+		switch (event) {
+			case "rfid.tag.detected":
+				return EVENT_TAG_DETECTED;
+			case "rfid.tag.removed":
+				return EVENT_TAG_REMOVED;
+			case "rfid.tags.detected":
+				return EVENT_TAGS_DETECTED;
+			case "rfid.tags.delta":
+				return EVENT_TAGS_DELTA;
+			case "rfid.afi.set":
+				return EVENT_AFI_SET;
+			case "rfid.processing":
+				return EVENT_PROCESSING;
+			case "rfid.online":
+				return EVENT_ONLINE;
+			case "rfid.offline":
+				return EVENT_OFFLINE;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Write a list of tags.
+	 *
+	 * @return
+	 *   False if a tag can not be written.
+	 */
+	private static boolean writeTags(ByteArrayOutputStream out, List<BibTag> tags, long timestamp) {
+		if (tags == null) {
+			writeVarint(out, 0);
+			return true;
+		}
+
+		writeVarint(out, tags.size());
+
+		for (BibTag tag : tags) {
+			if (!writeTag(out, tag, timestamp)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Write a tag.
+	 *
+	 * @return
+	 *   False if the tag can not be written.
+	 */
+	private static boolean writeTag(ByteArrayOutputStream out, BibTag tag, long timestamp) {
+		if (tag == null || !writeUid(out, tag.getUID())) {
+			return false;
+		}
+
+		int afi;
+
+		try {
+			afi = tag.getAFI() == null ? -1 : Integer.parseInt(tag.getAFI());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		byte[] data = tag.getRawData();
+
+		if (data == null) {
+			data = parseHex(tag.getData() == null ? "" : tag.getData());
+
+			if (data == null) {
+				return false;
+			}
+		}
+
+		long age = tag.getTimestamp() - timestamp;
+
+		writeVarint(out, afi + 1);
+		out.write(tag.getSeriesLength());
+		out.write(tag.getNumberInSeries());
+		writeString(out, tag.getMID());
+		writeVarint(out, data.length);
+		out.write(data, 0, data.length);
+		writeVarint(out, (age << 1) ^ (age >> 63));
+
+		return true;
+	}
+
+	/**
+	 * Write a hex UID as 8 bytes.
+	 *
+	 * @return
+	 *   False if the UID is not 8 bytes hex.
+	 */
+	private static boolean writeUid(ByteArrayOutputStream out, String uid) {
+		if (uid == null || uid.length() != UID_LENGTH * 2) {
+			return false;
+		}
+
+		byte[] bytes = parseHex(uid);
+
+		if (bytes == null) {
+			return false;
+		}
+
+		out.write(bytes, 0, bytes.length);
+
+		return true;
+	}
+
+	/**
+	 * Write a string as its length and UTF-8 bytes. Null is written as "".
+	 */
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write an unsigned varint.
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		out.write((int) value);
+	}
+
+	/**
+	 * Parse a hex string.
+	 *
+	 * @return
+	 *   The bytes, or null if the string is not hex.
+	 */
+	private static byte[] parseHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[hex.length() / 2];
+
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+			if (high < 0 || low < 0) {
+				return null;
+			}
+
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+
+		return bytes;
+	}
+}
@@ -1,26 +1,63 @@
 package middleware;
 
+import java.io.IOException;
 import java.net.URI;
 import org.java_websocket.drafts.Draft_10;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
 
-import com.google.gson.Gson;
 import readers.FeigReader;
+import readers.ReplayReader;
+import readers.SimulatedReader;
 
 /**
  * Client.
  * 
- * Handles communication with FEIG reader and WebSocket.
+ * Handles communication with the FEIG readers and WebSocket.
+ *
+ * Several readers can be configured with the readers option. Each reader has
+ * its own task scope with a poll, connect and dispatch task, so a reader that
+ * stalls does not hold up the others. Events are sent with the id of the
+ * reader.
+ *
+ * The timings and counters of the readers, dispatchers and connections are
+ * served on localhost (metrics_port) and can be sent as rfid.metrics events
+ * (metrics_event_interval_in_millis). Both are off by default.
+ *
+ * Threads: the readers, dispatchers and aggregator are created in the
+ * constructor and are thread-safe. The WebSocket is replaced by the
+ * connection check and used by the dispatch tasks, so it is volatile.
  */
-public class Client implements TagListenerInterface, WebSocketListener {
-	private TagReaderInterface tagReader;
-	private WebSocketImpl webSocket;
+public class Client implements WebSocketListener, ReaderStateListener {
+	private volatile WebSocketImpl webSocket;
 	private LoggerImpl logger;
 	private URI serverUri;
-	private Gson gson;
+	private MessageCodec codec;
+	private BinaryCodec binaryCodec;
 	private String reader;
 	private int successfulReadsThreshold;
 	private int threadSleepInMillis;
+	private Configuration configuration;
+	private ArrayList<String> readerIds = new ArrayList<String>();
+	private ConcurrentHashMap<String, TagReaderInterface> tagReaders = new ConcurrentHashMap<String, TagReaderInterface>();
+	private HashMap<String, EventDispatcher> dispatchers = new HashMap<String, EventDispatcher>();
+	private ExecutorService socketExecutor = TaskExecutors.newTaskExecutor("rfid-websocket");
+	private TagAggregator aggregator = new TagAggregator();
+	private ScheduledExecutorService supervisorScheduler = TaskExecutors.newScheduler("rfid-supervisor");
+	private ConnectionSupervisor socketSupervisor;
+	private HashMap<String, ConnectionSupervisor> readerSupervisors = new HashMap<String, ConnectionSupervisor>();
+	private MetricsServer metricsServer;
+	private long metricsEventIntervalInMillis;
+	private long startedAt;
+	private boolean ready = false;
 
 	/**
 	 * Constructor.
@@ -31,47 +68,401 @@ public class Client implements TagListenerInterface, WebSocketListener {
 	 *   The WebSocket URI.
 	 * @param logger
 	 *   The logger.
+	 * @param configuration
+	 *   All options, for the options of the tag readers.
 	 */
-	public Client(String reader, URI serverUri, LoggerImpl logger, int successfulReadsThreshold, int threadSleepInMillis) {
-		this.gson = new Gson();
+	public Client(String reader, URI serverUri, LoggerImpl logger, int successfulReadsThreshold, int threadSleepInMillis, Configuration configuration) {
 		this.logger = logger;
 		this.serverUri = serverUri;
 		this.reader = reader;
 		this.successfulReadsThreshold = successfulReadsThreshold;
 		this.threadSleepInMillis = threadSleepInMillis;
+		this.configuration = configuration;
+		this.codec = new MessageCodec(configuration.getString("json_profile", MessageCodec.PROFILE_FULL));
+		this.metricsEventIntervalInMillis = configuration.getLong("metrics_event_interval_in_millis", 0);
+
+		if (configuration.getInt("metrics_port", 0) > 0) {
+			this.metricsServer = new MetricsServer(Metrics.DEFAULT, logger, configuration.getInt("metrics_port", 0));
+		}
+
+		// The binary format is offered in a hello event when a connection opens.
+		if (configuration.getString("wire_format", "json").equals("binary")) {
+			this.binaryCodec = new BinaryCodec();
+		}
+
+		// One reader with the id "default", unless readers are configured.
+		for (String id : configuration.getString("readers", "").split(",")) {
+			if (!id.trim().isEmpty() && !readerIds.contains(id.trim())) {
+				readerIds.add(id.trim());
+			}
+		}
+
+		if (readerIds.isEmpty()) {
+			readerIds.add("default");
+		}
+
+		for (final String id : readerIds) {
+			// Options set for this reader, e.g. reader.pad.usb_device_id,
+			// override the general options.
+			Configuration readerConfiguration = configuration.scope("reader." + id + ".");
+			readerConfiguration.set("reader_id", id);
+
+			// Tag events are sent from a separate task per reader, so a slow
+			// WebSocket does not hold up the readers.
+			EventDispatcher dispatcher = new EventDispatcher(
+				new ReaderListener(this, id),
+				logger,
+				readerConfiguration.getInt("dispatch_queue_capacity", 1000),
+				readerConfiguration.getString("dispatch_overflow_policy", EventDispatcher.OVERFLOW_COALESCE)
+			);
+			TagReaderInterface tagReader;
+
+			switch (reader) {
+				case "replay":
+					tagReader = new ReplayReader(
+						logger,
+						dispatcher,
+						readerConfiguration.getInt("successful_reads_threshold", successfulReadsThreshold),
+						readerConfiguration.getInt("thread_sleep_in_millis", threadSleepInMillis),
+						readerConfiguration
+					);
+					break;
+
+				case "simulated":
+					tagReader = new SimulatedReader(
+						logger,
+						dispatcher,
+						readerConfiguration.getInt("successful_reads_threshold", successfulReadsThreshold),
+						readerConfiguration.getInt("thread_sleep_in_millis", threadSleepInMillis),
+						readerConfiguration
+					);
+					break;
+
+				case "feig":
+				default:
+					tagReader = new FeigReader(
+						logger,
+						dispatcher,
+						readerConfiguration.getInt("successful_reads_threshold", successfulReadsThreshold),
+						readerConfiguration.getInt("thread_sleep_in_millis", threadSleepInMillis),
+						readerConfiguration
+					);
+			}
+
+			dispatcher.setLatencyHistogram(tagReader.getMetrics().dispatch);
+			tagReader.getScope().fork("dispatch", dispatcher);
+			tagReader.setStateListener(this);
+
+			dispatchers.put(id, dispatcher);
+			tagReaders.put(id, tagReader);
+			readerSupervisors.put(id, new ConnectionSupervisor("Reader " + id, supervisorScheduler, logger, new Runnable() {
+				@Override
+				public void run() {
+					connectReader(id);
+				}
+			}, readerConfiguration));
+
+			registerMetrics(id, dispatcher);
+			registerMetrics("reader:" + id, readerSupervisors.get(id));
+		}
+
+		socketSupervisor = new ConnectionSupervisor("WebSocket", supervisorScheduler, logger, new Runnable() {
+			@Override
+			public void run() {
+				connectWebSocket();
+			}
+		}, configuration);
+
+		registerMetrics("websocket", socketSupervisor);
+
+		Metrics.DEFAULT.counter("rfid_log_dropped_total", "Log records dropped because the log buffer was full.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return logger.getDropped();
+			}
+		});
+	}
+
+	/**
+	 * Register the counters of a dispatcher.
+	 */
+	private void registerMetrics(String id, final EventDispatcher dispatcher) {
+		Metrics.DEFAULT.gauge("rfid_dispatch_queue_depth", "Events waiting to be sent.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return dispatcher.getQueueDepth();
+			}
+		}, "reader", id);
+		Metrics.DEFAULT.counter("rfid_events_sent_total", "Events sent.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return dispatcher.getSent();
+			}
+		}, "reader", id);
+		Metrics.DEFAULT.counter("rfid_events_dropped_total", "Events dropped because the queue was full.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return dispatcher.getDropped();
+			}
+		}, "reader", id);
+		Metrics.DEFAULT.counter("rfid_events_coalesced_total", "Events replaced by a newer event for the same tag.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return dispatcher.getCoalesced();
+			}
+		}, "reader", id);
+	}
+
+	/**
+	 * Register the counters of a connection.
+	 */
+	private void registerMetrics(String connection, final ConnectionSupervisor supervisor) {
+		Metrics.DEFAULT.gauge("rfid_connected", "Is the connection up?", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return supervisor.isConnected() ? 1 : 0;
+			}
+		}, "connection", connection);
+		Metrics.DEFAULT.counter("rfid_connect_attempts_total", "Connection attempts.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return supervisor.getAttempts();
+			}
+		}, "connection", connection);
+		Metrics.DEFAULT.counter("rfid_reconnects_total", "Times the connection was up again after it was lost.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return supervisor.getReconnects();
+			}
+		}, "connection", connection);
+		Metrics.DEFAULT.gauge("rfid_last_reconnect_seconds", "Time from lost until up again, for the last reconnect.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return supervisor.getLastReconnectLatency() / 1000.0;
+			}
+		}, "connection", connection);
+	}
+
+	/**
+	 * Connect the WebSocket and the readers, and keep them connected.
+	 *
+	 * The connections are opened at once. After that they are opened again
+	 * when lost, and the status is sent every 10 s.
+	 */
+	public void start() {
+		startedAt = System.currentTimeMillis();
+
+		if (metricsServer != null) {
+			metricsServer.start();
+		}
+
+		socketSupervisor.start();
+
+		for (String id : readerIds) {
+			readerSupervisors.get(id).start();
+		}
+
+		supervisorScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// An exception would cancel the following checks.
+				try {
+					checkConnections();
+				} catch (Exception e) {
+					logger.error("Error checking connections: " + e.getMessage());
+				}
+			}
+		}, 10000, 10000, TimeUnit.MILLISECONDS);
+
+		if (metricsEventIntervalInMillis > 0) {
+			supervisorScheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendMetrics();
+					} catch (Exception e) {
+						logger.error("Error sending metrics: " + e.getMessage());
+					}
+				}
+			}, metricsEventIntervalInMillis, metricsEventIntervalInMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Send the metrics as an rfid.metrics event.
+	 */
+	private void sendMetrics() {
+		WebSocketMessage msg = new WebSocketMessage();
+		msg.setMetrics(Metrics.DEFAULT.toMap());
+		msg.setEvent("rfid.metrics");
+		sendMessage(msg);
 	}
 	
 	/**
-	 * Check that connections are up.
+	 * Check that connections are up, and send the status.
 	 * 
-	 * If not retry.
+	 * Connections are opened again by the supervisors, when lost. This
+	 * catches a connection that was lost without an event.
 	 */
 	public void checkConnections() {
-		if (webSocket == null || !webSocket.isConnected()) {
-			connectWebSocket();
+		WebSocketImpl socket = webSocket;
+
+		if (socketSupervisor.isConnected() && (socket == null || !socket.isConnected())) {
+			socketSupervisor.failed("not connected");
 		}
+
+		logger.info("Supervisor {}", socketSupervisor);
+		logger.info("Log --- dropped: {}", logger.getDropped());
 		
-		if (tagReader == null || !tagReader.isRunning()) {
-			// Setup new thread.
-			switch (reader) {
-				case "feig":
-				default:
-					tagReader = new FeigReader(logger, this, successfulReadsThreshold, threadSleepInMillis);
+		for (String id : readerIds) {
+			checkReader(id);
+		}
+	}
+
+	/**
+	 * Check that a reader is running, and send the status.
+	 *
+	 * @param id
+	 *   The id of the reader.
+	 */
+	private void checkReader(String id) {
+		TagReaderInterface tagReader = tagReaders.get(id);
+		EventDispatcher dispatcher = dispatchers.get(id);
+		ConnectionSupervisor supervisor = readerSupervisors.get(id);
+
+		if (supervisor.isConnected() && !tagReader.isRunning()) {
+			supervisor.failed("not running");
+		}
+
+		sendReaderStatus(id, tagReader);
+
+		logger.info("Supervisor {}", supervisor);
+		logger.info(
+			"Dispatcher " + id + " --- queued: " + dispatcher.getQueueDepth()
+			+ ", max queued: " + dispatcher.getMaxQueueDepth()
+			+ ", sent: " + dispatcher.getSent()
+			+ ", dropped: " + dispatcher.getDropped()
+			+ ", coalesced: " + dispatcher.getCoalesced()
+			+ ", average latency: " + dispatcher.getAverageLatency() + " ms"
+			+ ", max latency: " + dispatcher.getMaxLatency() + " ms");
+	}
+
+	/**
+	 * Start connecting a reader (supervisor).
+	 *
+	 * Connecting happens in a task of the reader, so a device that does not
+	 * answer does not hold up the other readers.
+	 *
+	 * @param id
+	 *   The id of the reader.
+	 */
+	private void connectReader(final String id) {
+		final TagReaderInterface tagReader = tagReaders.get(id);
+		final ConnectionSupervisor supervisor = readerSupervisors.get(id);
+
+		// If still connecting, the supervisor times out the attempt.
+		tagReader.getScope().fork("connect", new Runnable() {
+			@Override
+			public void run() {
+				aggregator.clear(id);
+				tagReader.startReading();
+
+				if (tagReader.isRunning()) {
+					supervisor.connected();
+					checkReady();
+				}
+				else {
+					supervisor.failed("could not connect");
+				}
+
+				sendReaderStatus(id, tagReader);
+			}
+		});
+	}
+
+	/**
+	 * A reader has stopped because the device failed (ReaderStateListener).
+	 */
+	@Override
+	public void readerStopped(String readerId, String reason) {
+		aggregator.clear(readerId);
+		sendReaderStatus(readerId, tagReaders.get(readerId));
+		readerSupervisors.get(readerId).failed(reason);
+	}
+
+	/**
+	 * A reader has restored the tags on it from the journal
+	 * (ReaderStateListener).
+	 */
+	@Override
+	public void readerRestored(String readerId, Collection<BibTag> tags) {
+		aggregator.replace(readerId, tags);
+	}
+
+	/**
+	 * Log and send rfid.ready the first time the WebSocket and all readers
+	 * are connected.
+	 */
+	private synchronized void checkReady() {
+		if (ready || !socketSupervisor.isConnected()) {
+			return;
+		}
+
+		for (String id : readerIds) {
+			if (!readerSupervisors.get(id).isConnected()) {
+				return;
 			}
-			
-			tagReader.startReading();
 		}
-		
-		if (tagReader == null || !tagReader.isRunning()) {
-			WebSocketMessage msg = new WebSocketMessage();
-			msg.setEvent("rfid.offline");
-			sendMessage(msg);
+
+		ready = true;
+
+		logger.info("Ready in " + (System.currentTimeMillis() - startedAt) + " ms");
+
+		WebSocketMessage msg = new WebSocketMessage();
+		msg.setEvent("rfid.ready");
+		sendMessage(msg);
+	}
+
+	/**
+	 * Stop the readers and close the WebSocket.
+	 *
+	 * @param timeoutInMillis
+	 *   Max time to wait for the tasks of each reader to end.
+	 */
+	public void shutdown(long timeoutInMillis) {
+		socketSupervisor.stop();
+
+		for (ConnectionSupervisor supervisor : readerSupervisors.values()) {
+			supervisor.stop();
 		}
-		else {
-			WebSocketMessage msg = new WebSocketMessage();
-			msg.setEvent("rfid.online");
-			sendMessage(msg);
+
+		supervisorScheduler.shutdownNow();
+
+		if (metricsServer != null) {
+			metricsServer.stop();
+		}
+
+		for (String id : readerIds) {
+			if (!tagReaders.get(id).shutdown(timeoutInMillis)) {
+				logger.warning("Reader did not stop in time: " + id);
+			}
 		}
+
+		if (webSocket != null) {
+			webSocket.close();
+		}
+
+		socketExecutor.shutdownNow();
+	}
+
+	/**
+	 * Send whether a reader is online.
+	 */
+	private void sendReaderStatus(String id, TagReaderInterface tagReader) {
+		WebSocketMessage msg = new WebSocketMessage();
+		msg.setEvent(tagReader.isRunning() ? "rfid.online" : "rfid.offline");
+		msg.setReader(id);
+		sendMessage(msg);
 	}
 
 	/**
@@ -86,126 +477,323 @@ public class Client implements TagListenerInterface, WebSocketListener {
 	/**
 	 * Send a message through the WebSocket.
 	 * 
-	 * Serializes the message to JSON and sends it if the socket is connected.
+	 * Serializes the message and sends it if the socket is connected. Sent
+	 * as a binary frame if the peer has accepted it, otherwise as JSON.
 	 * 
 	 * @param msg
 	 *   The message to send.
 	 */
 	public void sendMessage(WebSocketMessage msg) {
-		if (webSocketIsConnected()) {
-			webSocket.send(gson.toJson(msg));
+		WebSocketImpl socket = webSocket;
+
+		if (socket != null && socket.isConnected()) {
+			byte[] frame = socket.isBinary() ? binaryCodec.encode(msg) : null;
+
+			if (frame != null) {
+				socket.send(frame);
+			}
+			else {
+				socket.send(codec.encode(msg));
+			}
 		}
 	}
 
 	/**
-	 * Open a new WebSocket connection.
+	 * Open a new WebSocket connection (supervisor).
 	 */
 	public void connectWebSocket() {
-		// Make sure the WebSocket is closed.
-		if (webSocket != null) {
-			webSocket.close();
-		}
-		
+		WebSocketImpl previous = webSocket;
+
+		// The socket runs as a task, instead of on a thread of its own.
 		webSocket = new WebSocketImpl(serverUri, new Draft_10(), this, logger);
-		webSocket.connect();
+		socketExecutor.execute(webSocket);
+
+		// Make sure the previous WebSocket is closed. Its events are ignored.
+		if (previous != null) {
+			previous.close();
+		}
 	}
 
 	/**
-	 * Tag has been detected (TagListenerInterface).
+	 * Tag has been detected on a reader (ReaderListener).
 	 * 
 	 * Emit event through WebSocket.
 	 */
-	@Override
-	public void tagDetected(BibTag bibTag) {
-		logger.info("Tag detected: " + bibTag);
+	public void tagDetected(String readerId, BibTag bibTag) {
+		logger.info("Tag detected ({}): {}", readerId, bibTag);
+
+		aggregator.put(readerId, bibTag);
 		
 		WebSocketMessage resp = new WebSocketMessage();
 		resp.setTag(bibTag);
+		resp.setReader(readerId);
 		resp.setEvent("rfid.tag.detected");
 
 		sendMessage(resp);
 	}
 
 	/**
-	 * Tag has been removed (TagListenerInterface).
+	 * Tag has been removed from a reader (ReaderListener).
 	 * 
 	 * Emit event through WebSocket.
 	 */
-	@Override
-	public void tagRemoved(BibTag bibTag) {
-		logger.info("Tag removed: " + bibTag);
+	public void tagRemoved(String readerId, BibTag bibTag) {
+		logger.info("Tag removed ({}): {}", readerId, bibTag);
+
+		aggregator.remove(readerId, bibTag.getUID());
 		
 		WebSocketMessage resp = new WebSocketMessage();
 		resp.setTag(bibTag);
+		resp.setReader(readerId);
 		resp.setEvent("rfid.tag.removed");
 
 		sendMessage(resp);
 	}
 
 	/**
-	 * Tags have been detected (TagListenerInterface).
+	 * Tags have changed on a reader in a poll cycle (ReaderListener).
+	 * 
+	 * Emit one event through WebSocket with all changes.
+	 */
+	public void tagsChanged(String readerId, TagSetDelta delta) {
+		logger.info("Tags changed ({}): {}", readerId, delta);
+
+		for (BibTag bibTag : delta.getRemoved()) {
+			aggregator.remove(readerId, bibTag.getUID());
+		}
+
+		for (BibTag bibTag : delta.getAdded()) {
+			aggregator.put(readerId, bibTag);
+		}
+
+		for (BibTag bibTag : delta.getChanged()) {
+			aggregator.put(readerId, bibTag);
+		}
+
+		WebSocketMessage resp = new WebSocketMessage();
+		resp.setAdded(delta.getAdded());
+		resp.setRemoved(delta.getRemoved());
+		resp.setChanged(delta.getChanged());
+		resp.setCycle(delta.getCycle());
+		resp.setTimestamp(delta.getTimestamp());
+		resp.setReader(readerId);
+		resp.setEvent("rfid.tags.delta");
+
+		sendMessage(resp);
+	}
+
+	/**
+	 * Tags have been detected on a reader (ReaderListener).
 	 * 
 	 * Emit event through WebSocket.
 	 */
-	@Override
-	public void tagsDetected(ArrayList<BibTag> bibTags) {
+	public void tagsDetected(String readerId, ArrayList<BibTag> bibTags) {
+		aggregator.replace(readerId, bibTags);
+
 		WebSocketMessage resp = new WebSocketMessage();
 		resp.setTags(bibTags);
+		resp.setReader(readerId);
 		resp.setEvent("rfid.tags.detected");
 
 		sendMessage(resp);
 	}
 
 	/**
-	 * Tag AFI has been attempted to be set (TagListenerInterface).
+	 * Tags on all readers have been requested.
+	 *
+	 * Emit event through WebSocket, with each tag once and the readers it is
+	 * on.
+	 */
+	public void aggregatedTagsDetected() {
+		WebSocketMessage resp = new WebSocketMessage();
+		resp.setTags(aggregator.getTags());
+		resp.setReaders(aggregator.getReaders());
+		resp.setEvent("rfid.tags.aggregated");
+
+		sendMessage(resp);
+	}
+
+	/**
+	 * Tag AFI has been attempted to be set on a reader (ReaderListener).
 	 * 
 	 * Emit event through WebSocket.
 	 */
-	@Override
-	public void tagAFISet(BibTag bibTag, boolean success) {
-		logger.info("Tag afi set " + (success ? "success" : "error") + ": " + bibTag);
+	public void tagAFISet(String readerId, BibTag bibTag, boolean success, int attempts, long durationInMillis) {
+		logger.info("Tag afi set {} ({}, {} attempts, {} ms): {}", success ? "success" : "error", readerId, attempts, durationInMillis, bibTag);
 		
 		WebSocketMessage resp = new WebSocketMessage();
 		resp.setTag(bibTag);
 		resp.setSuccess(success);
+		resp.setAttempts(attempts);
+		resp.setDuration(durationInMillis);
+		resp.setReader(readerId);
 		resp.setEvent("rfid.afi.set");
 		
 		sendMessage(resp);
 	}
 	
 	/**
-	 * New tags are being processed (TagListenerInterface).
+	 * New tags are being processed on a reader (ReaderListener).
 	 * 
 	 * Emit event through WebSocket.
 	 */
-	@Override
-	public void processingNewTags() {
+	public void processingNewTags(String readerId) {
 		WebSocketMessage resp = new WebSocketMessage();
+		resp.setReader(readerId);
 		resp.setEvent("rfid.processing");
 		sendMessage(resp);
 	}
 
 	/**
-	 * Message has been received through WebSocket (TagListenerInterface).
+	 * WebSocket connection has been opened (WebSocketListener).
+	 *
+	 * Offer the binary format, if enabled. Messages are sent as JSON until
+	 * the peer accepts it.
 	 */
 	@Override
-	public void webSocketMessage(String message) {
-		logger.info("WebSocket: message RECEIVED: " + message);
+	public void webSocketOpened(WebSocketImpl socket) {
+		if (socket != webSocket) {
+			return;
+		}
 
-		WebSocketMessage msg = gson.fromJson(message, WebSocketMessage.class);
+		socketSupervisor.connected();
 
-		// detectTags Event
-		if (msg.getEvent().equals("detectTags")) {
-			tagReader.detectCurrentTags();
+		if (binaryCodec != null) {
+			WebSocketMessage msg = new WebSocketMessage();
+			msg.setEvent("hello");
+			msg.setFormat("binary");
+			sendMessage(msg);
+		}
+
+		// The server may have missed the status while disconnected.
+		for (String id : readerIds) {
+			sendReaderStatus(id, tagReaders.get(id));
+		}
+
+		checkReady();
+	}
+
+	/**
+	 * WebSocket connection has been closed, or has failed (WebSocketListener).
+	 */
+	@Override
+	public void webSocketClosed(WebSocketImpl socket, String reason) {
+		if (socket == webSocket) {
+			socketSupervisor.failed(reason);
+		}
+	}
+
+	/**
+	 * Message has been received through WebSocket (WebSocketListener).
+	 *
+	 * @param socket
+	 *   The connection the message was received on.
+	 * @param message
+	 */
+	@Override
+	public void webSocketMessage(WebSocketImpl socket, String message) {
+		logger.info("WebSocket: message RECEIVED: {}", message);
+
+		WebSocketMessage msg;
+
+		try {
+			msg = codec.decode(message);
+		} catch (IOException | IllegalStateException e) {
+			logger.warning("WebSocket: invalid message: " + e.getMessage());
+			return;
+		}
+
+		// hello Event: the peer accepts the binary format, on the connection
+		// it was offered on. A connection opened since then sends JSON until
+		// its own hello is answered.
+		if ("hello".equals(msg.getEvent())) {
+			if (binaryCodec != null && "binary".equals(msg.getFormat())) {
+				logger.info("WebSocket: sending binary frames");
+				socket.setBinary(true);
+			}
+		}
+		// detectTags Event: on one reader, or on all readers.
+		else if ("detectTags".equals(msg.getEvent())) {
+			for (TagReaderInterface tagReader : getReaders(msg.getReader())) {
+				tagReader.detectCurrentTags();
+			}
+		}
+		// aggregatedTags Event
+		else if ("aggregatedTags".equals(msg.getEvent())) {
+			aggregatedTagsDetected();
 		}
 		// setAFI Event
-		else if (msg.getEvent().equals("setAFI")) {
+		else if ("setAFI".equals(msg.getEvent()) && msg.getTag() != null) {
 			String afi = msg.getTag().getAFI();
 			String uid = msg.getTag().getUID();
 
 			if (afi != null && uid != null && !afi.equals("") && !uid.equals("")) {
-				tagReader.addEventSetTagAFI(uid, afi);
+				setAFI(msg.getReader(), uid, afi);
+			}
+		}
+	}
+
+	/**
+	 * Pass a setAFI command to the readers.
+	 *
+	 * Without a reader id, the command goes to the readers the tag is on, or
+	 * to the first reader if the tag is on none.
+	 */
+	private void setAFI(String readerId, String uid, String afi) {
+		List<String> targets;
+
+		if (readerId != null) {
+			targets = Collections.singletonList(readerId);
+		}
+		else {
+			targets = aggregator.getReaders(uid);
+
+			if (targets.isEmpty()) {
+				targets = Collections.singletonList(readerIds.get(0));
 			}
 		}
+
+		for (String id : targets) {
+			TagReaderInterface tagReader = tagReaders.get(id);
+			EventDispatcher dispatcher = dispatchers.get(id);
+
+			if (dispatcher == null) {
+				logger.warning("Unknown reader, rejecting: " + id);
+			}
+			else if (tagReader == null || !tagReader.addEventSetTagAFI(uid, afi)) {
+				logger.warning("Too many AFI commands waiting, or reader not started, rejecting: " + uid);
+
+				dispatcher.tagAFISet(new BibTag(uid, "", afi), false, 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * The reader with an id, or null.
+	 */
+	public TagReaderInterface getReader(String readerId) {
+		return tagReaders.get(readerId);
+	}
+
+	/**
+	 * The ids of the readers.
+	 */
+	public List<String> getReaderIds() {
+		return Collections.unmodifiableList(readerIds);
+	}
+
+	/**
+	 * The readers with an id, or all readers if the id is null.
+	 */
+	private ArrayList<TagReaderInterface> getReaders(String readerId) {
+		ArrayList<TagReaderInterface> result = new ArrayList<TagReaderInterface>();
+
+		for (String id : readerIds) {
+			if ((readerId == null || readerId.equals(id)) && tagReaders.containsKey(id)) {
+				result.add(tagReaders.get(id));
+			}
+		}
+
+		return result;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package middleware;
+
+import java.util.Properties;
+
+/**
+ * Configuration.
+ *
+ * Holds the options read from config.properties and the command line
+ * (key=value), so readers and the client can look up their own options.
+ */
+public class Configuration {
+	private Properties properties = new Properties();
+
+	/**
+	 * Set an option.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public void set(String key, String value) {
+		properties.setProperty(key, value);
+	}
+
+	/**
+	 * Set all options from properties.
+	 *
+	 * @param values
+	 */
+	public void setAll(Properties values) {
+		for (String key : values.stringPropertyNames()) {
+			properties.setProperty(key, values.getProperty(key));
+		}
+	}
+
+	/**
+	 * Get a string option.
+	 *
+	 * @param key
+	 * @param defaultValue
+	 *   Returned if the option is not set.
+	 * @return String
+	 */
+	public String getString(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue);
+	}
+
+	/**
+	 * Get an int option.
+	 *
+	 * @param key
+	 * @param defaultValue
+	 *   Returned if the option is not set or not a number.
+	 * @return int
+	 */
+	public int getInt(String key, int defaultValue) {
+		try {
+			return Integer.parseInt(properties.getProperty(key, "").trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get a long option.
+	 *
+	 * @param key
+	 * @param defaultValue
+	 *   Returned if the option is not set or not a number.
+	 * @return long
+	 */
+	public long getLong(String key, long defaultValue) {
+		try {
+			return Long.parseLong(properties.getProperty(key, "").trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get a boolean option.
+	 *
+	 * @param key
+	 * @param defaultValue
+	 *   Returned if the option is not set.
+	 * @return boolean
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Get the options for one part, e.g. one reader.
+	 *
+	 * Options starting with the prefix override the options without it, e.g.
+	 * with prefix "reader.pad.", reader.pad.thread_sleep_in_millis overrides
+	 * thread_sleep_in_millis.
+	 *
+	 * @param prefix
+	 * @return Configuration
+	 *   A copy with the options for the part.
+	 */
+	public Configuration scope(String prefix) {
+		Configuration scoped = new Configuration();
+
+		scoped.setAll(properties);
+
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix) && key.length() > prefix.length()) {
+				scoped.set(key.substring(prefix.length()), properties.getProperty(key));
+			}
+		}
+
+		return scoped;
+	}
+
+	/**
+	 * To string.
+	 */
+	public String toString() {
+		return properties.toString();
+	}
+}
@@ -0,0 +1,274 @@
+package middleware;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionSupervisor.
+ *
+ * Keeps one connection (the WebSocket, or one reader) up. The owner reports
+ * when the connection is up (connected) or lost (failed), e.g. from
+ * onOpen/onClose, and the supervisor starts the next attempt:
+ * - The first attempt after the connection is lost is started at once.
+ * - After each failed attempt, the delay is doubled from
+ *   reconnect_initial_delay_in_millis up to reconnect_max_delay_in_millis,
+ *   with jitter, so many clients do not reconnect at the same time.
+ * - An attempt that has not connected after connect_timeout_in_millis has
+ *   failed.
+ *
+ * The connect action must not block; it starts the attempt, and the owner
+ * reports the result. All methods are synchronized.
+ */
+public class ConnectionSupervisor {
+	public enum State { DISCONNECTED, CONNECTING, CONNECTED, BACKING_OFF, STOPPED }
+
+	private final String name;
+	private final ScheduledExecutorService scheduler;
+	private final LoggerImpl logger;
+	private final Runnable connect;
+	private final long initialDelayInMillis;
+	private final long maxDelayInMillis;
+	private final long connectTimeoutInMillis;
+
+	private State state = State.DISCONNECTED;
+	private long attempt = 0;
+	private int failures = 0;
+	private long lostAt = 0;
+	private boolean connectedOnce = false;
+
+	// Metrics.
+	private long attempts = 0;
+	private long reconnects = 0;
+	private long lastLatencyInMillis = 0;
+	private long maxLatencyInMillis = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *   Name of the connection, for the log.
+	 * @param scheduler
+	 *   Runs the attempts.
+	 * @param logger
+	 *   The logger.
+	 * @param connect
+	 *   Starts a connection attempt.
+	 * @param configuration
+	 *   The options, see config.properties.
+	 */
+	public ConnectionSupervisor(String name, ScheduledExecutorService scheduler, LoggerImpl logger, Runnable connect, Configuration configuration) {
+		this.name = name;
+		this.scheduler = scheduler;
+		this.logger = logger;
+		this.connect = connect;
+		this.initialDelayInMillis = Math.max(1, configuration.getLong("reconnect_initial_delay_in_millis", 500));
+		this.maxDelayInMillis = Math.max(initialDelayInMillis, configuration.getLong("reconnect_max_delay_in_millis", 30000));
+		this.connectTimeoutInMillis = configuration.getLong("connect_timeout_in_millis", 10000);
+	}
+
+	/**
+	 * Start the first attempt.
+	 */
+	public synchronized void start() {
+		if (state == State.DISCONNECTED) {
+			lostAt = System.currentTimeMillis();
+			schedule(0);
+		}
+	}
+
+	/**
+	 * Stop; no more attempts are started.
+	 */
+	public synchronized void stop() {
+		state = State.STOPPED;
+	}
+
+	/**
+	 * The connection is up.
+	 *
+	 * @return
+	 *   True if this is the first time the connection is up.
+	 */
+	public synchronized boolean connected() {
+		if (state == State.STOPPED || state == State.CONNECTED) {
+			return false;
+		}
+
+		long latency = System.currentTimeMillis() - lostAt;
+		boolean first = !connectedOnce;
+
+		if (connectedOnce) {
+			reconnects++;
+			lastLatencyInMillis = latency;
+			maxLatencyInMillis = Math.max(maxLatencyInMillis, latency);
+			logger.info(name + ": reconnected after " + failures + " failed attempts, " + latency + " ms");
+		}
+		else {
+			logger.info(name + ": connected, " + latency + " ms");
+		}
+
+		state = State.CONNECTED;
+		failures = 0;
+		connectedOnce = true;
+
+		return first;
+	}
+
+	/**
+	 * The connection is lost, or the attempt has failed.
+	 *
+	 * Reports while an attempt is already waiting are ignored.
+	 *
+	 * @param reason
+	 *   For the log.
+	 */
+	public synchronized void failed(String reason) {
+		if (state == State.STOPPED || state == State.BACKING_OFF) {
+			return;
+		}
+
+		long delay;
+
+		if (state == State.CONNECTED || state == State.DISCONNECTED) {
+			// Lost: try again at once.
+			lostAt = System.currentTimeMillis();
+			delay = 0;
+			logger.warning(name + ": connection lost (" + reason + "), reconnecting");
+		}
+		else {
+			failures++;
+			delay = backoff(failures);
+			logger.warning(name + ": attempt " + failures + " failed (" + reason + "), next in " + delay + " ms");
+		}
+
+		schedule(delay);
+	}
+
+	/**
+	 * Delay after a number of failed attempts: half the exponential delay,
+	 * plus a random part of the other half.
+	 */
+	private long backoff(int failures) {
+		long delay = initialDelayInMillis << Math.min(failures - 1, 30);
+
+		if (delay <= 0 || delay > maxDelayInMillis) {
+			delay = maxDelayInMillis;
+		}
+
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * Schedule the next attempt.
+	 */
+	private void schedule(long delay) {
+		final long scheduledAttempt = ++attempt;
+
+		state = State.BACKING_OFF;
+
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				attempt(scheduledAttempt);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start an attempt, and the timeout for it.
+	 */
+	private void attempt(final long scheduledAttempt) {
+		synchronized (this) {
+			if (state != State.BACKING_OFF || attempt != scheduledAttempt) {
+				return;
+			}
+
+			state = State.CONNECTING;
+			attempts++;
+		}
+
+		try {
+			connect.run();
+		} catch (RuntimeException e) {
+			failed(e.getMessage());
+			return;
+		}
+
+		if (connectTimeoutInMillis > 0) {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedOut(scheduledAttempt);
+				}
+			}, connectTimeoutInMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Fail the attempt, if it is still connecting.
+	 */
+	private synchronized void timedOut(long scheduledAttempt) {
+		if (state == State.CONNECTING && attempt == scheduledAttempt) {
+			failed("timeout");
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Is the connection up?
+	 */
+	public synchronized boolean isConnected() {
+		return state == State.CONNECTED;
+	}
+
+	/**
+	 * Number of attempts started.
+	 */
+	public synchronized long getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Number of times the connection was up again after it was lost.
+	 */
+	public synchronized long getReconnects() {
+		return reconnects;
+	}
+
+	/**
+	 * Failed attempts since the connection was lost.
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Time from lost until up again, for the last reconnect, in milliseconds.
+	 */
+	public synchronized long getLastReconnectLatency() {
+		return lastLatencyInMillis;
+	}
+
+	/**
+	 * Longest time from lost until up again, in milliseconds.
+	 */
+	public synchronized long getMaxReconnectLatency() {
+		return maxLatencyInMillis;
+	}
+
+	/**
+	 * To string.
+	 */
+	public synchronized String toString() {
+		return name + " --- state: " + state
+			+ ", attempts: " + attempts
+			+ ", reconnects: " + reconnects
+			+ ", failures: " + failures
+			+ ", last reconnect: " + lastLatencyInMillis + " ms"
+			+ ", max reconnect: " + maxLatencyInMillis + " ms";
+	}
+}
@@ -0,0 +1,112 @@
+package middleware;
+
+/**
+ * Crc16.
+ *
+ * Table driven CRC-16/CCITT (polynomial 0x1021, initial value 0xFFFF, no
+ * reflection), as used by ISO 28560-3.
+ *
+ * All methods work on a range of an array, so fields can be skipped without
+ * copying the data. Calculations can be chained by passing the result of one
+ * update as the crc of the next.
+ */
+public final class Crc16 {
+	public static final int INITIAL_VALUE = 0xFFFF;
+	private static final int POLYNOMIAL = 0x1021;
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+			}
+
+			TABLE[i] = crc & 0xFFFF;
+		}
+	}
+
+	private Crc16() {
+	}
+
+	/**
+	 * Calculate the crc of a range of data.
+	 *
+	 * @param data
+	 *   Byte array of data.
+	 * @param offset
+	 *   Start of the range.
+	 * @param length
+	 *   Length of the range.
+	 * @return
+	 *   The crc value.
+	 */
+	public static int compute(byte[] data, int offset, int length) {
+		return update(INITIAL_VALUE, data, offset, length);
+	}
+
+	/**
+	 * Calculate the crc of a range of data, leaving out a field in the range.
+	 *
+	 * @param data
+	 *   Byte array of data.
+	 * @param offset
+	 *   Start of the range.
+	 * @param length
+	 *   Length of the range.
+	 * @param skipOffset
+	 *   Start of the field to leave out.
+	 * @param skipLength
+	 *   Length of the field to leave out.
+	 * @return
+	 *   The crc value.
+	 */
+	public static int compute(byte[] data, int offset, int length, int skipOffset, int skipLength) {
+		int crc = update(INITIAL_VALUE, data, offset, skipOffset - offset);
+
+		return update(crc, data, skipOffset + skipLength, offset + length - skipOffset - skipLength);
+	}
+
+	/**
+	 * Continue a crc calculation with a range of data.
+	 *
+	 * @param crc
+	 *   The crc so far.
+	 * @param data
+	 *   Byte array of data.
+	 * @param offset
+	 *   Start of the range.
+	 * @param length
+	 *   Length of the range.
+	 * @return
+	 *   The crc value.
+	 */
+	public static int update(int crc, byte[] data, int offset, int length) {
+		int end = offset + length;
+
+		for (int i = offset; i < end; i++) {
+			crc = (crc << 8) ^ TABLE[((crc >> 8) ^ data[i]) & 0xFF];
+		}
+
+		return crc & 0xFFFF;
+	}
+
+	/**
+	 * Continue a crc calculation with a number of null bytes.
+	 *
+	 * @param crc
+	 *   The crc so far.
+	 * @param count
+	 *   Number of null bytes.
+	 * @return
+	 *   The crc value.
+	 */
+	public static int updateZeros(int crc, int count) {
+		for (int i = 0; i < count; i++) {
+			crc = (crc << 8) ^ TABLE[(crc >> 8) & 0xFF];
+		}
+
+		return crc & 0xFFFF;
+	}
+}
@@ -3,8 +3,8 @@ package middleware;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.time.Instant;
+import java.util.ArrayList;
 
 /**
  * Driver.
@@ -23,6 +23,7 @@ public class Driver {
 	private static boolean logtoconsole;
 	private static int successfulReadsThreshold = 2;
 	private static int threadSleepInMillis = 200;
+	private static Configuration configuration = new Configuration();
 
 	/**
 	 * Main entry point.
@@ -41,13 +42,26 @@ public class Driver {
 			reader = "feig";
 		}
 		
+		ArrayList<String> journalQuery = null;
+
 		// Command line arguments override config.properties.
 		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--journal")) {
+				journalQuery = new ArrayList<String>();
+				continue;
+			}
+
+			if (journalQuery != null && !args[i].contains("=")) {
+				journalQuery.add(args[i]);
+				continue;
+			}
+
 			if (args[i].equals("--help")) {
 				System.out.println("Run with options set through commandline arguments: key=value. E.g. java -jar rfid.jar port=5000");
 				System.out.println("Alternatively place a config.properties in the same directory as the jar file with arguments.");
+				System.out.println("Look up tag events in the journal with: java -jar rfid.jar --journal [uid|*] [from] [to], with times as 2024-01-31T12:00:00Z or ms.");
 				System.out.println("Default options are:");
-				System.out.println("port=3001 host=localhost loglevel=prod logtofile=false logtoconsole=false reader=feig thread_sleep_in_millis=200 successful_reads_threshold=2");
+				System.out.println("port=3001 host=localhost loglevel=prod logtofile=false logtoconsole=false reader=feig thread_sleep_in_millis=200 successful_reads_threshold=2 block_cache_ttl_in_millis=5000 afi_cache_ttl_in_millis=5000 iso_table_size=20 iso_table_max_size=256 poll_max_period_in_millis=2000 poll_idle_cycles=25 arrival_window_cycles=3 removal_miss_threshold=2 afi_queue_capacity=100 afi_write_deadline_in_millis=2000 afi_write_max_attempts=3 afi_write_rf_reset=false tag_events=tag dispatch_queue_capacity=1000 dispatch_overflow_policy=coalesce json_profile=full wire_format=json readers= usb_device_id=0 virtual_threads=true reconnect_initial_delay_in_millis=500 reconnect_max_delay_in_millis=30000 connect_timeout_in_millis=10000 reader_max_failed_cycles=5 log_buffer_size=1024 log_rate_limit_in_millis=10000 metrics_port=0 metrics_event_interval_in_millis=0 journal_dir= journal_segment_records=16384 journal_max_segments=16 journal_snapshot_interval_in_millis=60000 record_file= replay_file= replay_speed=1 replay_loop=false sim_tags=20 sim_max_tags=500 sim_arrivals_per_second=0 sim_departures_per_second=0 sim_command_latency_in_micros=0 sim_read_failure_probability=0 sim_reversed_ratio=0 sim_invalid_crc_ratio=0 sim_seed=1");
 			}
 			
 			String[] split = args[i].split("=");
@@ -55,6 +69,8 @@ public class Driver {
 			if (split.length == 2) {
 				System.out.println(args[i]);
 				
+				configuration.set(split[0], split[1]);
+
 				switch(split[0]) {
 					case "port":
 						port = Integer.parseInt(split[1]);
@@ -91,10 +107,22 @@ public class Driver {
 			}
 		}
 		
+		if (journalQuery != null) {
+			printJournal(journalQuery);
+			return;
+		}
+
 		// Setup Logger.
 		String filename = "rfid.log";
 		File out = new File(System.getProperty("user.home"), filename);
-		logger = new LoggerImpl(out.getAbsolutePath(), loglevel, logtofile, logtoconsole);
+		logger = new LoggerImpl(
+			out.getAbsolutePath(),
+			loglevel,
+			logtofile,
+			logtoconsole,
+			configuration.getInt("log_buffer_size", 1024),
+			configuration.getLong("log_rate_limit_in_millis", 10000)
+		);
 		
 		logger.info(
 				"Starting client with options --- " 
@@ -105,25 +133,80 @@ public class Driver {
 						+ ", toLogFile: " + out.getAbsolutePath()
 						+ ", successfulReadsThreshold: " + successfulReadsThreshold
 						+ ", threadSleepInMillis: " + threadSleepInMillis
-						+ ", reader: " + reader);
+						+ ", reader: " + reader
+						+ ", readers: " + configuration.getString("readers", ""));
 		
+		// Use virtual threads for tasks that block on I/O, if the JDK has them.
+		TaskExecutors.setVirtualThreadsEnabled(configuration.getBoolean("virtual_threads", true));
+		logger.info("Virtual threads: " + TaskExecutors.isVirtualThreads());
+
 		// Start client.
 		try {
-			client = new Client(reader, new URI("ws://" + host + ":" + port), logger, successfulReadsThreshold, threadSleepInMillis);
+			client = new Client(reader, new URI("ws://" + host + ":" + port), logger, successfulReadsThreshold, threadSleepInMillis, configuration);
+
+			// Connect at once, and keep connected.
+			client.start();
 
-			// Make sure the Client is connected every 10 s. 
-			Timer t = new Timer();
-			t.schedule(new TimerTask() {
+			// Release the readers on exit.
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 				@Override
 				public void run() {
-					client.checkConnections();
+					client.shutdown(2000);
+					logger.close();
 				}
-			}, 5000, 10000);
+			}, "rfid-shutdown"));
 		} catch (Exception e) {
 			logger.error("Error message: " + e.getMessage() + "\n" + e.getStackTrace());
 		}
 	}
 
+	/**
+	 * Print the journal records of a tag, or of all tags, in a time range.
+	 *
+	 * @param query
+	 *   UID or *, from and to.
+	 */
+	private static void printJournal(ArrayList<String> query) {
+		String dir = configuration.getString("journal_dir", "");
+		String uid = query.size() > 0 && !query.get(0).equals("*") ? query.get(0) : null;
+		long from = query.size() > 1 ? parseTime(query.get(1)) : 0;
+		long to = query.size() > 2 ? parseTime(query.get(2)) : Long.MAX_VALUE;
+
+		if (dir.isEmpty()) {
+			System.out.println("journal_dir is not set.");
+			return;
+		}
+
+		for (String id : configuration.getString("readers", "default").split(",")) {
+			File readerDir = new File(dir, id.trim());
+
+			if (id.trim().isEmpty() || !readerDir.isDirectory()) {
+				continue;
+			}
+
+			System.out.println("Reader " + id.trim() + ":");
+
+			try {
+				for (TagJournal.Entry entry : TagJournal.find(readerDir, uid, from, to)) {
+					System.out.println(entry);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not read journal: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Parse a time, as an ISO-8601 instant or ms since 1970.
+	 */
+	private static long parseTime(String time) {
+		try {
+			return Long.parseLong(time);
+		} catch (NumberFormatException e) {
+			return Instant.parse(time).toEpochMilli();
+		}
+	}
+
 	/**
 	 * Read configuration from properties file.
 	 */
@@ -138,6 +221,7 @@ public class Driver {
 			logtofile = properties.getLogToFileProperty();
 			logtoconsole = properties.getLogToConsoleProperty();
 			reader = properties.getReaderProperty();
+			configuration.setAll(properties.getProperties());
 			
 			return true;
 		} catch (IOException e) {
@@ -0,0 +1,360 @@
+package middleware;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * EventDispatcher.
+ *
+ * Passes tag events from the reader thread to a listener on a separate sender
+ * thread, so the reader thread never waits for logging, serialization or the
+ * network.
+ *
+ * Events are queued in two lanes. AFI results go in the priority lane, which
+ * is sent first and never drops events. All other events go in the presence
+ * lane, which holds at most dispatch_queue_capacity events. When it is full:
+ * - coalesce: older events for the same tag are replaced by the new event,
+ *   and if it is still full, the oldest event is dropped.
+ * - drop_oldest: the oldest event is dropped.
+ *
+ * Deltas (rfid.tags.delta) are never dropped, as each one builds on the ones
+ * before. When the lane is full, the deltas waiting are merged into the new
+ * delta, and only other events are dropped.
+ *
+ * The sender is the run-method, started as a task by the owner.
+ */
+public class EventDispatcher implements TagListenerInterface, Runnable {
+	public static final String OVERFLOW_COALESCE = "coalesce";
+	public static final String OVERFLOW_DROP_OLDEST = "drop_oldest";
+
+	private final TagListenerInterface listener;
+	private final LoggerImpl logger;
+	private final int capacity;
+	private final boolean coalesce;
+	private final ArrayDeque<Event> priorityLane = new ArrayDeque<Event>();
+	private final ArrayDeque<Event> presenceLane;
+	private volatile Thread sender;
+	private volatile boolean running = true;
+	private volatile Metrics.Histogram latencyHistogram;
+
+	// Metrics, guarded by this.
+	private long sent = 0;
+	private long dropped = 0;
+	private long coalesced = 0;
+	private int maxDepth = 0;
+	private long totalLatencyInNanos = 0;
+	private long maxLatencyInNanos = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param listener
+	 *   The listener the events are passed to.
+	 * @param logger
+	 *   The logger.
+	 * @param capacity
+	 *   Max number of events in the presence lane.
+	 * @param overflowPolicy
+	 *   "coalesce" or "drop_oldest".
+	 */
+	public EventDispatcher(TagListenerInterface listener, LoggerImpl logger, int capacity, String overflowPolicy) {
+		this.listener = listener;
+		this.logger = logger;
+		this.capacity = Math.max(1, capacity);
+		this.coalesce = !OVERFLOW_DROP_OLDEST.equals(overflowPolicy);
+		this.presenceLane = new ArrayDeque<Event>(this.capacity);
+	}
+
+	/**
+	 * Stop the sender. Events not yet sent are dropped.
+	 */
+	public void stop() {
+		running = false;
+
+		Thread thread = sender;
+
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Set the histogram the time from queued until passed on is added to.
+	 *
+	 * @param latencyHistogram
+	 */
+	public void setLatencyHistogram(Metrics.Histogram latencyHistogram) {
+		this.latencyHistogram = latencyHistogram;
+	}
+
+	@Override
+	public void tagDetected(final BibTag bibTag) {
+		enqueue(false, bibTag.getUID(), new Runnable() {
+			@Override
+			public void run() {
+				listener.tagDetected(bibTag);
+			}
+		});
+	}
+
+	@Override
+	public void tagRemoved(final BibTag bibTag) {
+		enqueue(false, bibTag.getUID(), new Runnable() {
+			@Override
+			public void run() {
+				listener.tagRemoved(bibTag);
+			}
+		});
+	}
+
+	@Override
+	public void tagsChanged(TagSetDelta delta) {
+		enqueueDelta(delta);
+	}
+
+	@Override
+	public void tagsDetected(final ArrayList<BibTag> bibTags) {
+		enqueue(false, "rfid.tags.detected", new Runnable() {
+			@Override
+			public void run() {
+				listener.tagsDetected(bibTags);
+			}
+		});
+	}
+
+	@Override
+	public void tagAFISet(final BibTag bibTag, final boolean success, final int attempts, final long durationInMillis) {
+		enqueue(true, null, new Runnable() {
+			@Override
+			public void run() {
+				listener.tagAFISet(bibTag, success, attempts, durationInMillis);
+			}
+		});
+	}
+
+	@Override
+	public void processingNewTags() {
+		enqueue(false, "rfid.processing", new Runnable() {
+			@Override
+			public void run() {
+				listener.processingNewTags();
+			}
+		});
+	}
+
+	/**
+	 * Queue an event.
+	 *
+	 * @param priority
+	 *   Put the event in the priority lane?
+	 * @param key
+	 *   Events with the same key can be coalesced. Null if the event can not be coalesced.
+	 * @param action
+	 *   Passes the event to the listener.
+	 */
+	private synchronized void enqueue(boolean priority, String key, Runnable action) {
+		Event event = new Event(key, action, null);
+
+		if (priority) {
+			priorityLane.addLast(event);
+		} else {
+			if (presenceLane.size() >= capacity && coalesce && key != null) {
+				Iterator<Event> iterator = presenceLane.iterator();
+
+				while (iterator.hasNext()) {
+					if (key.equals(iterator.next().key)) {
+						iterator.remove();
+						coalesced++;
+					}
+				}
+			}
+
+			addPresence(event);
+		}
+
+		maxDepth = Math.max(maxDepth, priorityLane.size() + presenceLane.size());
+		notifyAll();
+	}
+
+	/**
+	 * Queue a delta in the presence lane.
+	 *
+	 * If the lane is full, the deltas waiting are merged into this one.
+	 */
+	private synchronized void enqueueDelta(TagSetDelta delta) {
+		if (presenceLane.size() >= capacity) {
+			Iterator<Event> iterator = presenceLane.iterator();
+			TagSetDelta waiting = null;
+			Event event;
+
+			while (iterator.hasNext()) {
+				event = iterator.next();
+
+				if (event.delta != null) {
+					waiting = waiting == null ? event.delta : TagSetDelta.merge(waiting, event.delta);
+					iterator.remove();
+					coalesced++;
+				}
+			}
+
+			if (waiting != null) {
+				delta = TagSetDelta.merge(waiting, delta);
+			}
+		}
+
+		final TagSetDelta merged = delta;
+
+		addPresence(new Event(null, new Runnable() {
+			@Override
+			public void run() {
+				listener.tagsChanged(merged);
+			}
+		}, merged));
+
+		maxDepth = Math.max(maxDepth, priorityLane.size() + presenceLane.size());
+		notifyAll();
+	}
+
+	/**
+	 * Add an event to the presence lane. If it is full, the oldest event that
+	 * is not a delta is dropped.
+	 */
+	private void addPresence(Event event) {
+		if (presenceLane.size() >= capacity) {
+			Iterator<Event> iterator = presenceLane.iterator();
+
+			while (iterator.hasNext()) {
+				if (iterator.next().delta == null) {
+					iterator.remove();
+					dropped++;
+					break;
+				}
+			}
+		}
+
+		presenceLane.addLast(event);
+	}
+
+	/**
+	 * Take the next event, priority lane first.
+	 *
+	 * @throws InterruptedException
+	 */
+	private synchronized Event take() throws InterruptedException {
+		while (priorityLane.isEmpty() && presenceLane.isEmpty()) {
+			wait();
+		}
+
+		return priorityLane.isEmpty() ? presenceLane.pollFirst() : priorityLane.pollFirst();
+	}
+
+	/**
+	 * Record that an event has been passed on.
+	 */
+	private synchronized void sent(Event event) {
+		long latency = System.nanoTime() - event.enqueuedAt;
+
+		sent++;
+		totalLatencyInNanos += latency;
+		maxLatencyInNanos = Math.max(maxLatencyInNanos, latency);
+
+		if (latencyHistogram != null) {
+			latencyHistogram.observeNanos(latency);
+		}
+	}
+
+	/**
+	 * The sender.
+	 */
+	@Override
+	public void run() {
+		Event event;
+
+		sender = Thread.currentThread();
+
+		while (running) {
+			try {
+				event = take();
+			} catch (InterruptedException e) {
+				// Stopped, e.g. by closing the task scope.
+				break;
+			}
+
+			try {
+				event.action.run();
+			} catch (Exception e) {
+				logger.error("Error dispatching event: " + e.getMessage());
+			}
+
+			sent(event);
+		}
+	}
+
+	/**
+	 * Number of events waiting.
+	 */
+	public synchronized int getQueueDepth() {
+		return priorityLane.size() + presenceLane.size();
+	}
+
+	/**
+	 * The highest number of events that have been waiting.
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Number of events passed on.
+	 */
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	/**
+	 * Number of presence events dropped because the lane was full. Deltas are
+	 * merged, not dropped.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Number of presence events replaced by a newer event for the same tag.
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * Average time from queued until passed on, in milliseconds.
+	 */
+	public synchronized double getAverageLatency() {
+		return sent == 0 ? 0 : totalLatencyInNanos / (double) sent / 1000000.0;
+	}
+
+	/**
+	 * Longest time from queued until passed on, in milliseconds.
+	 */
+	public synchronized double getMaxLatency() {
+		return maxLatencyInNanos / 1000000.0;
+	}
+
+	/**
+	 * A queued event.
+	 */
+	private static class Event {
+		private final String key;
+		private final Runnable action;
+		// The delta of an rfid.tags.delta event, otherwise null.
+		private final TagSetDelta delta;
+		private final long enqueuedAt = System.nanoTime();
+
+		private Event(String key, Runnable action, TagSetDelta delta) {
+			this.key = key;
+			this.action = action;
+			this.delta = delta;
+		}
+	}
+}
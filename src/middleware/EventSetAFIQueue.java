@@ -0,0 +1,131 @@
+package middleware;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventSetAFIQueue.
+ *
+ * Lock-free queue of EventSetAFI commands, added from any thread (e.g. the
+ * WebSocket thread) and taken by the reader thread.
+ *
+ * Commands for the same UID are coalesced while waiting: the last AFI
+ * requested is written, in the position of the first request. The number of
+ * waiting tags is bounded; when the queue is full, commands for new tags are
+ * rejected and the caller must report the failure.
+ */
+public class EventSetAFIQueue {
+	private final ConcurrentHashMap<String, EventSetAFI> pending = new ConcurrentHashMap<String, EventSetAFI>();
+	private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final int capacity;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   Max number of tags with waiting commands.
+	 */
+	public EventSetAFIQueue(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Add a command.
+	 *
+	 * @param event
+	 *   The command.
+	 * @return
+	 *   False if the queue is full and the command was rejected.
+	 */
+	public boolean offer(EventSetAFI event) {
+		String uid = event.getUid();
+
+		// Replace a waiting command for the same tag.
+		if (pending.replace(uid, event) != null) {
+			return true;
+		}
+
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		if (pending.put(uid, event) == null) {
+			order.offer(uid);
+		} else {
+			// Another thread added a command for the tag in the meantime.
+			size.decrementAndGet();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Take the next command. Only called from the reader thread.
+	 *
+	 * @return
+	 *   The command, or null if the queue is empty.
+	 */
+	public EventSetAFI poll() {
+		String uid;
+		EventSetAFI event;
+
+		while ((uid = order.poll()) != null) {
+			event = pending.remove(uid);
+			size.decrementAndGet();
+
+			if (event != null) {
+				return event;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Take all waiting commands. Only called from the reader thread.
+	 *
+	 * @param events
+	 *   Collection the commands are added to.
+	 * @return
+	 *   Number of commands taken.
+	 */
+	public int drainTo(Collection<EventSetAFI> events) {
+		EventSetAFI event;
+		int count = 0;
+
+		while ((event = poll()) != null) {
+			events.add(event);
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Number of tags with waiting commands.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Is the queue empty?
+	 */
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * Number of commands rejected because the queue was full.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+}
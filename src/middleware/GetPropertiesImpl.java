@@ -17,6 +17,7 @@ public class GetPropertiesImpl {
 	private String loglevel;
 	private Boolean logtofile;
 	private Boolean logtoconsole;
+	private Properties properties = new Properties();
 
 	/**
 	 * Set Properties values.
@@ -32,6 +33,7 @@ public class GetPropertiesImpl {
 
 		try {
 			prop.load(file);
+			properties = prop;
 
 			host = prop.getProperty("host");
 			port = Integer.parseInt(prop.getProperty("port"));
@@ -99,4 +101,13 @@ public class GetPropertiesImpl {
 	public String getReaderProperty() {
 		return this.reader;
 	}
+
+	/**
+	 * Get all properties.
+	 * 
+	 * @return Properties
+	 */
+	public Properties getProperties() {
+		return this.properties;
+	}
 }
\ No newline at end of file
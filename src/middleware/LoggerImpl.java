@@ -1,9 +1,13 @@
 package middleware;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
@@ -12,13 +16,27 @@ import java.util.logging.SimpleFormatter;
  * 
  * This class is the implementation of the Logger class. This is used to log
  * error message etc. into the LogFile.log.
+ *
+ * Messages are only built if the level is logged: pass a format with {} for
+ * each argument, or a Supplier. The file and console are written by an
+ * AsyncLogHandler, so the calling thread never waits for I/O.
  */
 public class LoggerImpl {
+	private static final int MAX_RATE_LIMITED_KEYS = 1000;
+
 	private Logger logger;
 	private FileHandler fh;
 	private ConsoleHandler ch;
+	private AsyncLogHandler ah;
 	private LogManager lm;
 	private Level logLevel;
+	private long rateLimitInMillis;
+	private final LinkedHashMap<String, RateLimit> rateLimits = new LinkedHashMap<String, RateLimit>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, RateLimit> eldest) {
+			return size() > MAX_RATE_LIMITED_KEYS;
+		}
+	};
 
 	/**
 	 * Constructor.
@@ -28,6 +46,22 @@ public class LoggerImpl {
 	 * @param toFile Log to file?
 	 */
 	public LoggerImpl(String path, String loglevel, boolean toFile, boolean toConsole) {
+		this(path, loglevel, toFile, toConsole, 1024, 10000);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param path Path to the log file.
+	 * @param loglevel The log level.
+	 * @param toFile Log to file?
+	 * @param toConsole Log to console?
+	 * @param bufferSize Max number of records waiting to be written.
+	 * @param rateLimitInMillis Period rate limited warnings are logged once in.
+	 */
+	public LoggerImpl(String path, String loglevel, boolean toFile, boolean toConsole, int bufferSize, long rateLimitInMillis) {
+		this.rateLimitInMillis = rateLimitInMillis;
+
 		lm = LogManager.getLogManager();
 		lm.reset();
 
@@ -40,13 +74,18 @@ public class LoggerImpl {
 			if (toFile) {
 				fh = new FileHandler(path, true);   
 				fh.setFormatter(formatter);
-				logger.addHandler(fh);
 			}
 
 			if (toConsole) {
 				ch = new ConsoleHandler();
 				ch.setFormatter(formatter);
-				logger.addHandler(ch);
+				ch.setLevel(Level.ALL);
+			}
+
+			// Write on a separate thread.
+			if (fh != null || ch != null) {
+				ah = new AsyncLogHandler(bufferSize, fh, ch);
+				logger.addHandler(ah);
 			}
 			
 			logger.setLevel(logLevel);
@@ -82,13 +121,57 @@ public class LoggerImpl {
 		}
 	}
 	
+	/**
+	 * Is the level logged?
+	 * 
+	 * @param level
+	 */
+	public boolean isLoggable(Level level) {
+		return logger.isLoggable(level);
+	}
+
+	/**
+	 * Debug message, logged with loglevel debug or prod.
+	 * 
+	 * @param format Message with {} for each argument.
+	 * @param args
+	 */
+	public void debug(String format, Object... args) {
+		if (logger.isLoggable(Level.FINE)) {
+			log(Level.FINE, "debug", format(format, args));
+		}
+	}
+	
 	/**
 	 * Log message.
 	 * 
 	 * @param message
 	 */
 	public void info(String message) {
-		logger.log(Level.INFO, message);
+		log(Level.INFO, "info", message);
+	}
+
+	/**
+	 * Log message.
+	 * 
+	 * @param format Message with {} for each argument.
+	 * @param args
+	 */
+	public void info(String format, Object... args) {
+		if (logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, "info", format(format, args));
+		}
+	}
+
+	/**
+	 * Log message.
+	 * 
+	 * @param message Only called if the level is logged.
+	 */
+	public void info(Supplier<String> message) {
+		if (logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, "info", message.get());
+		}
 	}
 	
 	/**
@@ -97,7 +180,70 @@ public class LoggerImpl {
 	 * @param message
 	 */
 	public void warning(String message) {
-		logger.log(Level.WARNING, message);
+		log(Level.WARNING, "warning", message);
+	}
+
+	/**
+	 * Warning message.
+	 * 
+	 * @param format Message with {} for each argument.
+	 * @param args
+	 */
+	public void warning(String format, Object... args) {
+		if (logger.isLoggable(Level.WARNING)) {
+			log(Level.WARNING, "warning", format(format, args));
+		}
+	}
+
+	/**
+	 * Warning message.
+	 * 
+	 * @param message Only called if the level is logged.
+	 */
+	public void warning(Supplier<String> message) {
+		if (logger.isLoggable(Level.WARNING)) {
+			log(Level.WARNING, "warning", message.get());
+		}
+	}
+
+	/**
+	 * Warning message, logged at most once per rate limit period per key.
+	 *
+	 * Used for warnings that can repeat every cycle, e.g. for a tag that can
+	 * not be read. The number of warnings left out is added to the next.
+	 * 
+	 * @param key Warnings with the same key are limited together.
+	 * @param format Message with {} for each argument.
+	 * @param args
+	 */
+	public void warningRateLimited(String key, String format, Object... args) {
+		if (!logger.isLoggable(Level.WARNING)) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		int suppressed;
+
+		synchronized (rateLimits) {
+			RateLimit limit = rateLimits.get(key);
+
+			if (limit == null) {
+				limit = new RateLimit();
+				rateLimits.put(key, limit);
+			}
+			else if (now - limit.loggedAt < rateLimitInMillis) {
+				limit.suppressed++;
+				return;
+			}
+
+			suppressed = limit.suppressed;
+			limit.loggedAt = now;
+			limit.suppressed = 0;
+		}
+
+		String message = format(format, args);
+
+		log(Level.WARNING, "warning", suppressed > 0 ? message + " (" + suppressed + " more suppressed)" : message);
 	}
 	
 	/**
@@ -106,6 +252,92 @@ public class LoggerImpl {
 	 * @param message
 	 */
 	public void error(String message) {
-		logger.log(Level.SEVERE, message);
+		log(Level.SEVERE, "error", message);
+	}
+
+	/**
+	 * Error message.
+	 * 
+	 * @param format Message with {} for each argument.
+	 * @param args
+	 */
+	public void error(String format, Object... args) {
+		if (logger.isLoggable(Level.SEVERE)) {
+			log(Level.SEVERE, "error", format(format, args));
+		}
+	}
+
+	/**
+	 * Error message.
+	 * 
+	 * @param message Only called if the level is logged.
+	 */
+	public void error(Supplier<String> message) {
+		if (logger.isLoggable(Level.SEVERE)) {
+			log(Level.SEVERE, "error", message.get());
+		}
+	}
+
+	/**
+	 * Number of records dropped because the write buffer was full.
+	 */
+	public long getDropped() {
+		return ah == null ? 0 : ah.getDropped();
+	}
+
+	/**
+	 * Write the waiting records and close the log.
+	 */
+	public void close() {
+		if (ah != null) {
+			ah.close();
+		}
+	}
+
+	/**
+	 * Log a message.
+	 *
+	 * The source is set here, as it can not be found from the writer thread.
+	 */
+	private void log(Level level, String method, String message) {
+		if (!logger.isLoggable(level)) {
+			return;
+		}
+
+		LogRecord record = new LogRecord(level, message);
+		record.setLoggerName(logger.getName());
+		record.setSourceClassName(LoggerImpl.class.getName());
+		record.setSourceMethodName(method);
+
+		logger.log(record);
+	}
+
+	/**
+	 * Replace each {} in the format with the next argument.
+	 */
+	private static String format(String format, Object[] args) {
+		if (args == null || args.length == 0) {
+			return format;
+		}
+
+		StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+		int start = 0;
+		int arg = 0;
+		int index;
+
+		while (arg < args.length && (index = format.indexOf("{}", start)) >= 0) {
+			builder.append(format, start, index).append(args[arg++]);
+			start = index + 2;
+		}
+
+		return builder.append(format, start, format.length()).toString();
+	}
+
+	/**
+	 * Rate limit of one key.
+	 */
+	private static class RateLimit {
+		private long loggedAt;
+		private int suppressed;
 	}
 }
@@ -0,0 +1,270 @@
+package middleware;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * MessageCodec.
+ *
+ * Converts WebSocketMessages to and from JSON with the streaming API of Gson,
+ * without reflection.
+ *
+ * Messages are written into a buffer that is reused per thread. Null fields
+ * are left out, as Gson does. The profile decides which fields of a tag are
+ * written:
+ * - full: all fields.
+ * - compact: all fields but the raw data.
+ */
+public class MessageCodec {
+	public static final String PROFILE_FULL = "full";
+	public static final String PROFILE_COMPACT = "compact";
+
+	private static final int MAX_POOLED_BUFFER = 64 * 1024;
+
+	private final boolean writeData;
+	private final ThreadLocal<StringWriter> buffers = new ThreadLocal<StringWriter>() {
+		@Override
+		protected StringWriter initialValue() {
+			return new StringWriter(512);
+		}
+	};
+
+	/**
+	 * Constructor.
+	 *
+	 * @param profile
+	 *   "full" or "compact".
+	 */
+	public MessageCodec(String profile) {
+		this.writeData = !PROFILE_COMPACT.equals(profile);
+	}
+
+	/**
+	 * Convert a message to JSON.
+	 *
+	 * @param msg
+	 *   The message.
+	 * @return
+	 *   The JSON string.
+	 */
+	public String encode(WebSocketMessage msg) {
+		StringWriter buffer = buffers.get();
+		buffer.getBuffer().setLength(0);
+
+		try {
+			JsonWriter writer = new JsonWriter(buffer);
+			writer.setSerializeNulls(false);
+
+			writer.beginObject();
+			writeTags(writer, "tags", msg.getTags());
+			writer.name("tag");
+			writeTag(writer, msg.getTag());
+			writer.name("success").value(msg.getSuccess());
+			writer.name("event").value(msg.getEvent());
+			writer.name("message").value(msg.getMessage());
+			writer.name("timestamp").value(msg.getTimestamp());
+			writer.name("attempts").value(msg.getAttempts());
+			writer.name("duration").value(msg.getDuration());
+			writeTags(writer, "added", msg.getAdded());
+			writeTags(writer, "removed", msg.getRemoved());
+			writeTags(writer, "changed", msg.getChanged());
+			writer.name("cycle").value(msg.getCycle());
+			writer.name("format").value(msg.getFormat());
+			writer.name("reader").value(msg.getReader());
+			writeReaders(writer, msg.getReaders());
+			writeMetrics(writer, msg.getMetrics());
+			writer.endObject();
+			writer.flush();
+		} catch (IOException e) {
+			// Not thrown when writing to a StringWriter.
+			throw new IllegalStateException(e);
+		}
+
+		String json = buffer.toString();
+
+		// Do not keep large buffers around.
+		if (buffer.getBuffer().capacity() > MAX_POOLED_BUFFER) {
+			buffers.remove();
+		}
+
+		return json;
+	}
+
+	/**
+	 * Write a list of tags, if it is set.
+	 */
+	private void writeTags(JsonWriter writer, String name, List<BibTag> tags) throws IOException {
+		if (tags == null) {
+			return;
+		}
+
+		writer.name(name);
+		writer.beginArray();
+
+		for (BibTag tag : tags) {
+			writeTag(writer, tag);
+		}
+
+		writer.endArray();
+	}
+
+	/**
+	 * Write the metric values, if set.
+	 */
+	private void writeMetrics(JsonWriter writer, Map<String, Double> metrics) throws IOException {
+		if (metrics == null) {
+			return;
+		}
+
+		writer.name("metrics");
+		writer.beginObject();
+
+		for (Map.Entry<String, Double> entry : metrics.entrySet()) {
+			writer.name(entry.getKey()).value(entry.getValue());
+		}
+
+		writer.endObject();
+	}
+
+	/**
+	 * Write the reader ids per UID, if set.
+	 */
+	private void writeReaders(JsonWriter writer, Map<String, List<String>> readers) throws IOException {
+		if (readers == null) {
+			return;
+		}
+
+		writer.name("readers");
+		writer.beginObject();
+
+		for (Map.Entry<String, List<String>> entry : readers.entrySet()) {
+			writer.name(entry.getKey());
+			writer.beginArray();
+
+			for (String reader : entry.getValue()) {
+				writer.value(reader);
+			}
+
+			writer.endArray();
+		}
+
+		writer.endObject();
+	}
+
+	/**
+	 * Write a tag, or null.
+	 */
+	private void writeTag(JsonWriter writer, BibTag tag) throws IOException {
+		if (tag == null) {
+			writer.nullValue();
+			return;
+		}
+
+		writer.beginObject();
+		writer.name("uid").value(tag.getUID());
+		writer.name("mid").value(tag.getMID());
+		writer.name("afi").value(tag.getAFI());
+
+		if (writeData) {
+			writer.name("data").value(tag.getData());
+		}
+
+		writer.name("seriesLength").value(tag.getSeriesLength());
+		writer.name("numberInSeries").value(tag.getNumberInSeries());
+		writer.name("timestamp").value(tag.getTimestamp());
+		writer.endObject();
+	}
+
+	/**
+	 * Read a command from the WebSocket.
+	 *
+	 * Only the event, the format, the reader and the uid and afi of the tag
+	 * are read, all other values are skipped.
+	 *
+	 * @param json
+	 *   The JSON string.
+	 * @return
+	 *   The message with the fields read.
+	 * @throws IOException
+	 *   If the JSON is not valid.
+	 */
+	public WebSocketMessage decode(String json) throws IOException {
+		JsonReader reader = new JsonReader(new StringReader(json));
+		WebSocketMessage msg = new WebSocketMessage();
+
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+
+			if (name.equals("event")) {
+				msg.setEvent(readString(reader));
+			} else if (name.equals("format")) {
+				msg.setFormat(readString(reader));
+			} else if (name.equals("reader")) {
+				msg.setReader(readString(reader));
+			} else if (name.equals("tag") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				msg.setTag(readTag(reader));
+			} else {
+				reader.skipValue();
+			}
+		}
+
+		reader.endObject();
+		reader.close();
+
+		return msg;
+	}
+
+	/**
+	 * Read the uid and afi of a tag.
+	 */
+	private BibTag readTag(JsonReader reader) throws IOException {
+		String uid = null;
+		String afi = null;
+
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+
+			if (name.equals("uid")) {
+				uid = readString(reader);
+			} else if (name.equals("afi")) {
+				afi = readString(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+
+		reader.endObject();
+
+		return new BibTag(uid, "", afi);
+	}
+
+	/**
+	 * Read a string or number value, or null.
+	 */
+	private String readString(JsonReader reader) throws IOException {
+		JsonToken token = reader.peek();
+
+		if (token == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+
+		if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+			return reader.nextString();
+		}
+
+		reader.skipValue();
+		return null;
+	}
+}
@@ -0,0 +1,351 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics.
+ *
+ * Registry of counters, gauges and histograms, written in the Prometheus
+ * text format by MetricsServer and sent as rfid.metrics events.
+ *
+ * Metrics are registered once by name and labels; registering again returns
+ * the existing metric, so a reader that is started again keeps counting.
+ * Updating a metric is lock-free.
+ */
+public class Metrics {
+	/**
+	 * The registry used by the middleware.
+	 */
+	public static final Metrics DEFAULT = new Metrics();
+
+	/**
+	 * Upper bounds of the histogram buckets, in seconds.
+	 */
+	private static final double[] BUCKETS = {
+		0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+	};
+	private static final String[] BUCKET_LABELS = {
+		"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "+Inf"
+	};
+
+	// Name -> family, in the order registered.
+	private final LinkedHashMap<String, Family> families = new LinkedHashMap<String, Family>();
+
+	/**
+	 * Get or register a counter.
+	 *
+	 * @param name
+	 * @param help
+	 * @param labels
+	 *   Label names and values: name1, value1, name2, value2, ...
+	 * @return Counter
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) register(name, help, "counter", labels, new Counter());
+	}
+
+	/**
+	 * Register a counter that is read from a supplier.
+	 *
+	 * @param name
+	 * @param help
+	 * @param value
+	 * @param labels
+	 *   Label names and values: name1, value1, name2, value2, ...
+	 */
+	public void counter(String name, String help, DoubleSupplier value, String... labels) {
+		register(name, help, "counter", labels, new Gauge(value));
+	}
+
+	/**
+	 * Register a gauge that is read from a supplier.
+	 *
+	 * @param name
+	 * @param help
+	 * @param value
+	 * @param labels
+	 *   Label names and values: name1, value1, name2, value2, ...
+	 */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		register(name, help, "gauge", labels, new Gauge(value));
+	}
+
+	/**
+	 * Get or register a histogram of durations.
+	 *
+	 * @param name
+	 * @param help
+	 * @param labels
+	 *   Label names and values: name1, value1, name2, value2, ...
+	 * @return Histogram
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) register(name, help, "histogram", labels, new Histogram());
+	}
+
+	/**
+	 * Get or register a metric.
+	 */
+	private synchronized Metric register(String name, String help, String type, String[] labels, Metric metric) {
+		Family family = families.get(name);
+
+		if (family == null) {
+			family = new Family(help, type);
+			families.put(name, family);
+		}
+
+		String key = formatLabels(labels);
+		Metric existing = family.metrics.get(key);
+
+		// Gauges read from a supplier are replaced, as the supplier may read
+		// from a new object.
+		if (existing != null && !(metric instanceof Gauge)) {
+			return existing;
+		}
+
+		family.metrics.put(key, metric);
+
+		return metric;
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text format.
+	 *
+	 * @return String
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+
+		for (Map.Entry<String, Family> entry : snapshot()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+
+			out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+			for (Map.Entry<String, Metric> sample : snapshot(family)) {
+				sample.getValue().write(out, name, sample.getKey());
+			}
+		}
+
+		return out.toString();
+	}
+
+	/**
+	 * All values, for the rfid.metrics event. Histograms are given as their
+	 * count and sum.
+	 *
+	 * @return
+	 *   name{labels} -> value.
+	 */
+	public Map<String, Double> toMap() {
+		LinkedHashMap<String, Double> values = new LinkedHashMap<String, Double>();
+
+		for (Map.Entry<String, Family> entry : snapshot()) {
+			for (Map.Entry<String, Metric> sample : snapshot(entry.getValue())) {
+				sample.getValue().put(values, entry.getKey(), sample.getKey());
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Copy of the families, so they can be written without the lock.
+	 */
+	private synchronized ArrayList<Map.Entry<String, Family>> snapshot() {
+		return new ArrayList<Map.Entry<String, Family>>(families.entrySet());
+	}
+
+	/**
+	 * Copy of the metrics of a family.
+	 */
+	private synchronized ArrayList<Map.Entry<String, Metric>> snapshot(Family family) {
+		return new ArrayList<Map.Entry<String, Metric>>(family.metrics.entrySet());
+	}
+
+	/**
+	 * Format labels as {name1="value1",...}, or "" if there are none.
+	 */
+	private static String formatLabels(String[] labels) {
+		if (labels.length < 2) {
+			return "";
+		}
+
+		StringBuilder out = new StringBuilder("{");
+
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0) {
+				out.append(',');
+			}
+
+			out.append(labels[i]).append("=\"")
+				.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+				.append('"');
+		}
+
+		return out.append('}').toString();
+	}
+
+	/**
+	 * Add a label to formatted labels.
+	 */
+	private static String addLabel(String labels, String label) {
+		return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+	}
+
+	/**
+	 * Format a value.
+	 */
+	private static String formatValue(double value) {
+		return value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15
+			? Long.toString((long) value)
+			: Double.toString(value);
+	}
+
+	/**
+	 * Metrics with the same name.
+	 */
+	private static class Family {
+		private final String help;
+		private final String type;
+		private final LinkedHashMap<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+
+		private Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * A metric.
+	 */
+	private abstract static class Metric {
+		abstract void write(StringBuilder out, String name, String labels);
+
+		abstract void put(Map<String, Double> values, String name, String labels);
+	}
+
+	/**
+	 * Counter.
+	 */
+	public static class Counter extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		public void add(long amount) {
+			value.addAndGet(amount);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		@Override
+		void write(StringBuilder out, String name, String labels) {
+			out.append(name).append(labels).append(' ').append(value.get()).append('\n');
+		}
+
+		@Override
+		void put(Map<String, Double> values, String name, String labels) {
+			values.put(name + labels, (double) value.get());
+		}
+	}
+
+	/**
+	 * Counter or gauge read from a supplier.
+	 */
+	private static class Gauge extends Metric {
+		private final DoubleSupplier value;
+
+		private Gauge(DoubleSupplier value) {
+			this.value = value;
+		}
+
+		@Override
+		void write(StringBuilder out, String name, String labels) {
+			out.append(name).append(labels).append(' ').append(formatValue(value.getAsDouble())).append('\n');
+		}
+
+		@Override
+		void put(Map<String, Double> values, String name, String labels) {
+			values.put(name + labels, value.getAsDouble());
+		}
+	}
+
+	/**
+	 * Histogram of durations, with fixed buckets from 0.1 ms to 5 s.
+	 */
+	public static class Histogram extends Metric {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumInNanos = new AtomicLong();
+
+		/**
+		 * Add a duration.
+		 *
+		 * @param nanos
+		 *   The duration in nanoseconds.
+		 */
+		public void observeNanos(long nanos) {
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+
+			while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+				bucket++;
+			}
+
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sumInNanos.addAndGet(nanos);
+		}
+
+		/**
+		 * Add the duration since a start time.
+		 *
+		 * @param startNanos
+		 *   From System.nanoTime().
+		 */
+		public void observeSince(long startNanos) {
+			observeNanos(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getSumInNanos() {
+			return sumInNanos.get();
+		}
+
+		@Override
+		void write(StringBuilder out, String name, String labels) {
+			long cumulative = 0;
+
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				cumulative += buckets.get(i);
+
+				out.append(name).append("_bucket")
+					.append(addLabel(labels, "le=\"" + BUCKET_LABELS[i] + "\""))
+					.append(' ').append(cumulative).append('\n');
+			}
+
+			out.append(name).append("_sum").append(labels).append(' ').append(sumInNanos.get() / 1e9).append('\n');
+			out.append(name).append("_count").append(labels).append(' ').append(count.get()).append('\n');
+		}
+
+		@Override
+		void put(Map<String, Double> values, String name, String labels) {
+			values.put(name + "_count" + labels, (double) count.get());
+			values.put(name + "_sum" + labels, sumInNanos.get() / 1e9);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package middleware;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MetricsServer.
+ *
+ * Serves the metrics at http://localhost:metrics_port/metrics in the
+ * Prometheus text format. Only bound to the loopback address, so the metrics
+ * are not reachable from the network.
+ */
+public class MetricsServer {
+	private final Metrics metrics;
+	private final LoggerImpl logger;
+	private final int port;
+	private HttpServer server;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param metrics
+	 *   The registry to serve.
+	 * @param logger
+	 *   The logger.
+	 * @param port
+	 *   The port.
+	 */
+	public MetricsServer(Metrics metrics, LoggerImpl logger, int port) {
+		this.metrics = metrics;
+		this.logger = logger;
+		this.port = port;
+	}
+
+	/**
+	 * Start serving, on a thread of the HTTP server.
+	 *
+	 * @return
+	 *   False if the port could not be opened.
+	 */
+	public synchronized boolean start() {
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		} catch (IOException e) {
+			logger.error("Metrics: could not open port " + port + ": " + e.getMessage());
+			return false;
+		}
+
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+
+		logger.info("Metrics: serving http://localhost:" + port + "/metrics");
+
+		return true;
+	}
+
+	/**
+	 * Write the metrics.
+	 */
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Stop serving.
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+}
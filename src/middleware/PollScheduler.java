@@ -0,0 +1,113 @@
+package middleware;
+
+/**
+ * PollScheduler.
+ *
+ * Decides when the reader thread starts its next cycle.
+ *
+ * Cycles start every period, no matter how long the cycle itself took. While
+ * tags arrive or leave (including tags the debounce has not decided on yet),
+ * or commands are waiting, the period is the configured period. When nothing has changed for a number of cycles, the period is
+ * doubled each cycle, up to a maximum. A wake up (e.g. a command from the
+ * WebSocket) starts the next cycle at once and resets the period.
+ */
+public class PollScheduler {
+	private final long periodInMillis;
+	private final long maxPeriodInMillis;
+	private final int idleCyclesBeforeBackoff;
+	private volatile long currentPeriodInMillis;
+	private volatile int idleCycles = 0;
+	private boolean wakeUpRequested = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param periodInMillis
+	 *   The period between cycles while the tags are changing.
+	 * @param maxPeriodInMillis
+	 *   The longest period between cycles when backing off.
+	 * @param idleCyclesBeforeBackoff
+	 *   Number of cycles without changes before backing off.
+	 */
+	public PollScheduler(long periodInMillis, long maxPeriodInMillis, int idleCyclesBeforeBackoff) {
+		this.periodInMillis = periodInMillis;
+		this.maxPeriodInMillis = Math.max(periodInMillis, maxPeriodInMillis);
+		this.idleCyclesBeforeBackoff = idleCyclesBeforeBackoff;
+		this.currentPeriodInMillis = periodInMillis;
+	}
+
+	/**
+	 * Register the result of a cycle.
+	 *
+	 * @param active
+	 *   Did the tags change, or are commands waiting?
+	 */
+	public synchronized void cycleCompleted(boolean active) {
+		if (active) {
+			idleCycles = 0;
+			currentPeriodInMillis = periodInMillis;
+			return;
+		}
+
+		idleCycles++;
+
+		if (idleCycles > idleCyclesBeforeBackoff) {
+			currentPeriodInMillis = Math.min(currentPeriodInMillis * 2, maxPeriodInMillis);
+		}
+	}
+
+	/**
+	 * Wait until the next cycle should start.
+	 *
+	 * @param cycleStartedAt
+	 *   When the current cycle started, from System.nanoTime().
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitNextCycle(long cycleStartedAt) throws InterruptedException {
+		long deadline = cycleStartedAt + currentPeriodInMillis * 1000000L;
+		long remaining;
+
+		while (!wakeUpRequested) {
+			remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				break;
+			}
+
+			wait(remaining / 1000000L, (int) (remaining % 1000000L));
+		}
+
+		wakeUpRequested = false;
+	}
+
+	/**
+	 * Start the next cycle at once, and stop backing off.
+	 */
+	public synchronized void wakeUp() {
+		wakeUpRequested = true;
+		idleCycles = 0;
+		currentPeriodInMillis = periodInMillis;
+		notifyAll();
+	}
+
+	/**
+	 * The current period between cycles.
+	 */
+	public long getCurrentPeriod() {
+		return currentPeriodInMillis;
+	}
+
+	/**
+	 * Number of cycles since the tags last changed.
+	 */
+	public int getIdleCycles() {
+		return idleCycles;
+	}
+
+	/**
+	 * Is the period longer than the configured period?
+	 */
+	public boolean isBackingOff() {
+		return currentPeriodInMillis > periodInMillis;
+	}
+}
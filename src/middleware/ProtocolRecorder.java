@@ -0,0 +1,265 @@
+package middleware;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ProtocolRecorder.
+ *
+ * Records what a reader reads, so it can be replayed offline by ReplayReader:
+ * the tags of each cycle with their block data and AFI, failed cycles, AFI
+ * writes and reads, and the protocol strings sent to and received from the
+ * device. Files that end with .gz are compressed.
+ *
+ * Format, written with DataOutputStream:
+ *   header: int MAGIC, short VERSION, UTF reader id, long start time (ms)
+ *   record: byte type, int ms since the previous record, then:
+ *     CYCLE:        short count, count * (uid, short afi, byte length, data)
+ *     CYCLE_FAILED: UTF message
+ *     AFI_WRITE:    uid, short afi, boolean success
+ *     AFI_READ:     uid, short afi
+ *     SENT/RECEIVED: UTF protocol string
+ *   uid: byte flags, then 8 bytes if FLAG_HEX, otherwise UTF
+ *   afi: NO_AFI if unknown
+ *
+ * Written from the poll task, which also gets the protocol events.
+ */
+public class ProtocolRecorder {
+	public static final int MAGIC = 0x52465250;
+	public static final short VERSION = 1;
+
+	public static final byte CYCLE = 1;
+	public static final byte CYCLE_FAILED = 2;
+	public static final byte AFI_WRITE = 3;
+	public static final byte AFI_READ = 4;
+	public static final byte SENT = 5;
+	public static final byte RECEIVED = 6;
+
+	public static final short NO_AFI = Short.MIN_VALUE;
+
+	private static final int FLAG_HEX = 1;
+	private static final int FLAG_LOWER_CASE = 2;
+	private static final int MAX_STRING = 16384;
+
+	private final DataOutputStream out;
+	private final LoggerImpl logger;
+	private long lastRecordAt;
+	private boolean failed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file
+	 *   The file to write, replaced if it exists.
+	 * @param readerId
+	 *   The id of the reader.
+	 * @param logger
+	 *   The logger.
+	 * @throws IOException
+	 */
+	public ProtocolRecorder(File file, String readerId, LoggerImpl logger) throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+
+		if (file.getName().endsWith(".gz")) {
+			stream = new GZIPOutputStream(stream, 65536, true);
+		}
+
+		this.out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+		this.logger = logger;
+		this.lastRecordAt = System.currentTimeMillis();
+
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeUTF(readerId);
+		out.writeLong(lastRecordAt);
+	}
+
+	/**
+	 * The tags read in a cycle, before they are processed.
+	 *
+	 * @param tags
+	 *   The tags, by UID.
+	 */
+	public synchronized void cycle(Map<String, BibTag> tags) {
+		try {
+			begin(CYCLE);
+			out.writeShort(tags.size());
+
+			for (BibTag tag : tags.values()) {
+				byte[] data = tag.getRawData();
+
+				writeUid(tag.getUID());
+				out.writeShort(parseAfi(tag.getAFI()));
+
+				if (data == null || data.length > 255) {
+					out.writeByte(0);
+				}
+				else {
+					out.writeByte(data.length);
+					out.write(data);
+				}
+			}
+
+			// One write to the file per cycle.
+			out.flush();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * A cycle failed.
+	 */
+	public synchronized void cycleFailed(String message) {
+		try {
+			begin(CYCLE_FAILED);
+			out.writeUTF(truncate(String.valueOf(message)));
+			out.flush();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * The AFI of a tag has been written.
+	 */
+	public synchronized void afiWritten(String uid, String afi, boolean success) {
+		try {
+			begin(AFI_WRITE);
+			writeUid(uid);
+			out.writeShort(parseAfi(afi));
+			out.writeBoolean(success);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * The AFI of a tag has been read.
+	 */
+	public synchronized void afiRead(String uid, int afi) {
+		try {
+			begin(AFI_READ);
+			writeUid(uid);
+			out.writeShort(afi < 0 ? NO_AFI : afi);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * A protocol string has been sent to or received from the device.
+	 */
+	public synchronized void protocol(boolean sent, String protocol) {
+		try {
+			begin(sent ? SENT : RECEIVED);
+			out.writeUTF(truncate(String.valueOf(protocol)));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Write the rest of the file, and close it.
+	 */
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Write the type and time of a record.
+	 */
+	private void begin(byte type) throws IOException {
+		long now = System.currentTimeMillis();
+
+		out.writeByte(type);
+		out.writeInt((int) Math.max(0, now - lastRecordAt));
+
+		lastRecordAt = now;
+	}
+
+	/**
+	 * Write a UID, as 8 bytes if it is 16 hex digits.
+	 */
+	private void writeUid(String uid) throws IOException {
+		if (uid != null && uid.length() == 16) {
+			try {
+				long value = Long.parseUnsignedLong(uid, 16);
+
+				out.writeByte(FLAG_HEX | (uid.equals(uid.toUpperCase()) ? 0 : FLAG_LOWER_CASE));
+				out.writeLong(value);
+				return;
+			} catch (NumberFormatException e) {
+				// Written as a string.
+			}
+		}
+
+		out.writeByte(0);
+		out.writeUTF(String.valueOf(uid));
+	}
+
+	/**
+	 * Read a UID written by writeUid.
+	 */
+	public static String readUid(DataInputStream in) throws IOException {
+		int flags = in.readByte();
+
+		if ((flags & FLAG_HEX) == 0) {
+			return in.readUTF();
+		}
+
+		String uid = String.format("%016X", in.readLong());
+
+		return (flags & FLAG_LOWER_CASE) != 0 ? uid.toLowerCase() : uid;
+	}
+
+	/**
+	 * Read an AFI, null if unknown.
+	 */
+	public static String readAfi(DataInputStream in) throws IOException {
+		short afi = in.readShort();
+
+		return afi == NO_AFI ? null : Short.toString(afi);
+	}
+
+	/**
+	 * Parse an AFI, NO_AFI if not a number.
+	 */
+	private static short parseAfi(String afi) {
+		try {
+			int value = Integer.parseInt(afi);
+
+			return value < Short.MIN_VALUE + 1 || value > Short.MAX_VALUE ? NO_AFI : (short) value;
+		} catch (NumberFormatException e) {
+			return NO_AFI;
+		}
+	}
+
+	/**
+	 * Keep strings within the length writeUTF can write.
+	 */
+	private static String truncate(String value) {
+		return value.length() > MAX_STRING ? value.substring(0, MAX_STRING) : value;
+	}
+
+	/**
+	 * Log the first error; the recording is incomplete from here.
+	 */
+	private void fail(IOException e) {
+		if (!failed) {
+			failed = true;
+			logger.error("Could not write recording: " + e.getMessage());
+		}
+	}
+}
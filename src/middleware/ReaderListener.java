@@ -0,0 +1,57 @@
+package middleware;
+
+import java.util.ArrayList;
+
+/**
+ * ReaderListener.
+ *
+ * Passes the tag events of one reader to the Client, with the id of the
+ * reader.
+ */
+public class ReaderListener implements TagListenerInterface {
+	private final Client client;
+	private final String readerId;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param client
+	 *   The client the events are passed to.
+	 * @param readerId
+	 *   The id of the reader.
+	 */
+	public ReaderListener(Client client, String readerId) {
+		this.client = client;
+		this.readerId = readerId;
+	}
+
+	@Override
+	public void tagDetected(BibTag bibTag) {
+		client.tagDetected(readerId, bibTag);
+	}
+
+	@Override
+	public void tagRemoved(BibTag bibTag) {
+		client.tagRemoved(readerId, bibTag);
+	}
+
+	@Override
+	public void tagsChanged(TagSetDelta delta) {
+		client.tagsChanged(readerId, delta);
+	}
+
+	@Override
+	public void tagsDetected(ArrayList<BibTag> bibTags) {
+		client.tagsDetected(readerId, bibTags);
+	}
+
+	@Override
+	public void tagAFISet(BibTag bibTag, boolean success, int attempts, long durationInMillis) {
+		client.tagAFISet(readerId, bibTag, success, attempts, durationInMillis);
+	}
+
+	@Override
+	public void processingNewTags() {
+		client.processingNewTags(readerId);
+	}
+}
@@ -0,0 +1,64 @@
+package middleware;
+
+/**
+ * ReaderMetrics.
+ *
+ * The timings and counters of one reader, registered with the reader id as
+ * label. Updated from the poll task, and read by MetricsServer and the
+ * rfid.metrics event.
+ */
+public class ReaderMetrics {
+	// Timings.
+	public final Metrics.Histogram cycle;
+	public final Metrics.Histogram inventory;
+	public final Metrics.Histogram blockRead;
+	public final Metrics.Histogram afiRead;
+	public final Metrics.Histogram afiWrite;
+	public final Metrics.Histogram decode;
+	public final Metrics.Histogram diff;
+	public final Metrics.Histogram dispatch;
+
+	// Counters.
+	public final Metrics.Counter cycles;
+	public final Metrics.Counter failedCycles;
+	public final Metrics.Counter readFailures;
+	public final Metrics.Counter inventoryPages;
+	public final Metrics.Counter inventorySaturated;
+	public final Metrics.Counter contentRejects;
+	public final Metrics.Counter crcRejects;
+	public final Metrics.Counter seriesRejects;
+	public final Metrics.Counter flaps;
+	public final Metrics.Counter afiWritesSucceeded;
+	public final Metrics.Counter afiWritesFailed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param metrics
+	 *   The registry.
+	 * @param readerId
+	 *   The id of the reader.
+	 */
+	public ReaderMetrics(Metrics metrics, String readerId) {
+		cycle = metrics.histogram("rfid_cycle_seconds", "Time of a poll cycle.", "reader", readerId);
+		inventory = metrics.histogram("rfid_inventory_seconds", "Time of the inventory of a poll cycle.", "reader", readerId);
+		blockRead = metrics.histogram("rfid_block_read_seconds", "Time to read the data blocks of a tag.", "reader", readerId);
+		afiRead = metrics.histogram("rfid_afi_read_seconds", "Time to read the AFI of a tag.", "reader", readerId);
+		afiWrite = metrics.histogram("rfid_afi_write_seconds", "Time to write the AFI of a tag.", "reader", readerId);
+		decode = metrics.histogram("rfid_decode_seconds", "Time to decode the tags of a poll cycle.", "reader", readerId);
+		diff = metrics.histogram("rfid_diff_seconds", "Time to compare the tags of a poll cycle with the previous cycle.", "reader", readerId);
+		dispatch = metrics.histogram("rfid_dispatch_seconds", "Time from an event is queued until it is sent.", "reader", readerId);
+
+		cycles = metrics.counter("rfid_cycles_total", "Poll cycles.", "reader", readerId);
+		failedCycles = metrics.counter("rfid_failed_cycles_total", "Poll cycles that failed.", "reader", readerId);
+		readFailures = metrics.counter("rfid_read_failures_total", "Tags whose data blocks could not be read.", "reader", readerId);
+		inventoryPages = metrics.counter("rfid_inventory_pages_total", "Responses read for inventories; more than one per inventory when paged.", "reader", readerId);
+		inventorySaturated = metrics.counter("rfid_inventory_saturated_total", "Inventories that filled the ISO table of the reader.", "reader", readerId);
+		contentRejects = metrics.counter("rfid_rejected_tags_total", "Tags ignored because the data is invalid.", "reader", readerId, "reason", "content");
+		crcRejects = metrics.counter("rfid_rejected_tags_total", "Tags ignored because the data is invalid.", "reader", readerId, "reason", "crc");
+		seriesRejects = metrics.counter("rfid_rejected_tags_total", "Tags ignored because the data is invalid.", "reader", readerId, "reason", "series");
+		flaps = metrics.counter("rfid_flaps_total", "Tags missing in a cycle, and read again before they were removed.", "reader", readerId);
+		afiWritesSucceeded = metrics.counter("rfid_afi_writes_total", "AFI commands.", "reader", readerId, "result", "success");
+		afiWritesFailed = metrics.counter("rfid_afi_writes_total", "AFI commands.", "reader", readerId, "result", "failure");
+	}
+}
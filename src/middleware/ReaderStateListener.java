@@ -0,0 +1,15 @@
+package middleware;
+
+import java.util.Collection;
+
+/**
+ * ReaderStateListener.
+ *
+ * Notified when a reader stops because the device fails, and when it has
+ * restored the tags on it from the journal.
+ */
+public interface ReaderStateListener {
+	public void readerStopped(String readerId, String reason);
+
+	public void readerRestored(String readerId, Collection<BibTag> tags);
+}
@@ -0,0 +1,134 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TagAggregator.
+ *
+ * The tags on all readers, from the tag events of each reader. A tag that is
+ * visible on several readers (antennas) at once is only listed once, with the
+ * ids of the readers it is on.
+ *
+ * Updated from the sender threads of the readers, so all methods are
+ * synchronized.
+ */
+public class TagAggregator {
+	// UID -> reader id -> tag.
+	private final HashMap<String, TreeMap<String, BibTag>> tags = new HashMap<String, TreeMap<String, BibTag>>();
+
+	/**
+	 * A tag has been detected on a reader.
+	 */
+	public synchronized void put(String readerId, BibTag tag) {
+		TreeMap<String, BibTag> readers = tags.get(tag.getUID());
+
+		if (readers == null) {
+			readers = new TreeMap<String, BibTag>();
+			tags.put(tag.getUID(), readers);
+		}
+
+		readers.put(readerId, tag);
+	}
+
+	/**
+	 * A tag has been removed from a reader.
+	 */
+	public synchronized void remove(String readerId, String uid) {
+		TreeMap<String, BibTag> readers = tags.get(uid);
+
+		if (readers != null) {
+			readers.remove(readerId);
+
+			if (readers.isEmpty()) {
+				tags.remove(uid);
+			}
+		}
+	}
+
+	/**
+	 * Replace all tags on a reader.
+	 */
+	public synchronized void replace(String readerId, Collection<BibTag> readerTags) {
+		clear(readerId);
+
+		for (BibTag tag : readerTags) {
+			put(readerId, tag);
+		}
+	}
+
+	/**
+	 * Forget the tags on a reader, e.g. when it goes offline.
+	 */
+	public synchronized void clear(String readerId) {
+		Iterator<TreeMap<String, BibTag>> iterator = tags.values().iterator();
+		TreeMap<String, BibTag> readers;
+
+		while (iterator.hasNext()) {
+			readers = iterator.next();
+			readers.remove(readerId);
+
+			if (readers.isEmpty()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * The tags on all readers, once per UID.
+	 *
+	 * @return
+	 *   For each UID the tag read last.
+	 */
+	public synchronized ArrayList<BibTag> getTags() {
+		ArrayList<BibTag> result = new ArrayList<BibTag>(tags.size());
+		BibTag latest;
+
+		for (TreeMap<String, BibTag> readers : tags.values()) {
+			latest = null;
+
+			for (BibTag tag : readers.values()) {
+				if (latest == null || tag.getTimestamp() > latest.getTimestamp()) {
+					latest = tag;
+				}
+			}
+
+			result.add(latest);
+		}
+
+		return result;
+	}
+
+	/**
+	 * The readers each tag is on.
+	 *
+	 * @return
+	 *   UID -> reader ids, sorted.
+	 */
+	public synchronized Map<String, List<String>> getReaders() {
+		HashMap<String, List<String>> result = new HashMap<String, List<String>>(tags.size());
+
+		for (Map.Entry<String, TreeMap<String, BibTag>> entry : tags.entrySet()) {
+			result.put(entry.getKey(), new ArrayList<String>(entry.getValue().keySet()));
+		}
+
+		return result;
+	}
+
+	/**
+	 * The readers a tag is on.
+	 *
+	 * @return
+	 *   The reader ids, sorted. Empty if the tag is on no reader.
+	 */
+	public synchronized List<String> getReaders(String uid) {
+		TreeMap<String, BibTag> readers = tags.get(uid);
+
+		return readers == null ? new ArrayList<String>() : new ArrayList<String>(readers.keySet());
+	}
+}
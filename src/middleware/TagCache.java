@@ -0,0 +1,179 @@
+package middleware;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * TagCache.
+ *
+ * Keeps the last successfully read block data and AFI for each UID on the
+ * reader, so they only have to be read when a tag arrives, when the value is
+ * older than its time to live, or after the tag has been written to.
+ *
+ * Only used from the reader thread.
+ */
+public class TagCache {
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private long ttlInMillis;
+	private long afiTtlInMillis;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ttlInMillis
+	 *   How long read data is valid. 0 disables the cache of data.
+	 * @param afiTtlInMillis
+	 *   How long a read AFI is valid. 0 disables the cache of AFIs.
+	 */
+	public TagCache(long ttlInMillis, long afiTtlInMillis) {
+		this.ttlInMillis = ttlInMillis;
+		this.afiTtlInMillis = afiTtlInMillis;
+	}
+
+	/**
+	 * Get the cached data of a tag.
+	 *
+	 * @param uid
+	 *   Unique Id of tag.
+	 * @param now
+	 *   The current time in milliseconds.
+	 * @return
+	 *   The data, or null if the data should be read.
+	 */
+	public byte[] getData(String uid, long now) {
+		Entry entry = entries.get(uid);
+
+		if (entry == null || entry.data == null || now - entry.dataReadAt >= ttlInMillis) {
+			return null;
+		}
+
+		return entry.data;
+	}
+
+	/**
+	 * Store the data read from a tag.
+	 *
+	 * The data must not be changed after it has been stored.
+	 *
+	 * @param uid
+	 *   Unique Id of tag.
+	 * @param data
+	 *   The data read.
+	 * @param now
+	 *   The current time in milliseconds.
+	 */
+	public void putData(String uid, byte[] data, long now) {
+		if (ttlInMillis <= 0) {
+			return;
+		}
+
+		Entry entry = getEntry(uid);
+		entry.data = data;
+		entry.dataReadAt = now;
+	}
+
+	/**
+	 * Get the cached AFI of a tag.
+	 *
+	 * @param uid
+	 *   Unique Id of tag.
+	 * @param now
+	 *   The current time in milliseconds.
+	 * @return
+	 *   The AFI, or -1 if the AFI should be read.
+	 */
+	public int getAFI(String uid, long now) {
+		Entry entry = entries.get(uid);
+
+		if (entry == null || entry.afi < 0 || now - entry.afiReadAt >= afiTtlInMillis) {
+			return -1;
+		}
+
+		return entry.afi;
+	}
+
+	/**
+	 * Store the AFI read from a tag.
+	 *
+	 * @param uid
+	 *   Unique Id of tag.
+	 * @param afi
+	 *   The AFI read.
+	 * @param now
+	 *   The current time in milliseconds.
+	 */
+	public void putAFI(String uid, int afi, long now) {
+		if (afiTtlInMillis <= 0 || afi < 0) {
+			return;
+		}
+
+		Entry entry = getEntry(uid);
+		entry.afi = afi;
+		entry.afiReadAt = now;
+	}
+
+	/**
+	 * Forget what is known about a tag, e.g. after it has been written to.
+	 *
+	 * @param uid
+	 *   Unique Id of tag.
+	 */
+	public void invalidate(String uid) {
+		entries.remove(uid);
+	}
+
+	/**
+	 * Forget the tags that are no longer on the reader.
+	 *
+	 * @param uids
+	 *   The UIDs in the current inventory.
+	 */
+	public void retain(Set<String> uids) {
+		Iterator<String> iterator = entries.keySet().iterator();
+
+		while (iterator.hasNext()) {
+			if (!uids.contains(iterator.next())) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget all tags.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * The number of tags in the cache.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the entry of a tag, creating it if needed.
+	 */
+	private Entry getEntry(String uid) {
+		Entry entry = entries.get(uid);
+
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(uid, entry);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Cached values for one tag.
+	 */
+	private static class Entry {
+		private byte[] data;
+		private long dataReadAt;
+		private int afi = -1;
+		private long afiReadAt;
+	}
+}
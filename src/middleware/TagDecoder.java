@@ -0,0 +1,321 @@
+package middleware;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TagDecoder.
+ *
+ * Decodes the ISO 28560-3 basic block directly from the raw bytes read from a
+ * tag, without going through an intermediate hex string.
+ *
+ * The decoder keeps a working copy of the block, so a decoder instance must
+ * only be used from one thread (the reader thread).
+ *
+ * Tag layout (32 bytes)
+ * ---------------------
+ * 4 bits: Content parameter (should be 1)
+ * 4 bits: Type of usage (should be 1)
+ * 2 bytes: Set information: x of y
+ * 16 bytes: Primary item identifier
+ * 2 bytes: CRC
+ * 11 bytes: Owner institution
+ * ---------------------
+ */
+public class TagDecoder {
+	public static final int BLOCK_LENGTH = 32;
+	public static final int SERIES_LENGTH_OFFSET = 1;
+	public static final int NUMBER_IN_SERIES_OFFSET = 2;
+	public static final int PRIMARY_ITEM_IDENTIFIER_OFFSET = 3;
+	public static final int PRIMARY_ITEM_IDENTIFIER_LENGTH = 16;
+	public static final int CRC_OFFSET = 19;
+	public static final int CRC_LENGTH = 2;
+	public static final int OWNER_INSTITUTION_OFFSET = 21;
+	public static final int OWNER_INSTITUTION_LENGTH = 11;
+
+	private static final byte CONTENT_PARAMETER = 0x11;
+
+	private final byte[] block = new byte[BLOCK_LENGTH];
+
+	/**
+	 * Does the raw data have the wrong byte order?
+	 *
+	 * Some readers return each 4 byte block in reverse order, which places the
+	 * content parameter as the fourth byte instead of the first.
+	 *
+	 * @TODO: Can we get this info from somewhere else?
+	 *
+	 * @param data
+	 *   Raw data from the reader.
+	 * @return
+	 *   True if the blocks should be reversed.
+	 */
+	public boolean needsReversal(byte[] data) {
+		return data.length == BLOCK_LENGTH && data[3] == CONTENT_PARAMETER;
+	}
+
+	/**
+	 * Load raw data from the reader into the working block.
+	 *
+	 * The raw data is not modified. If the data is in reverse order, the
+	 * bytes of each 4 byte block are reversed while copying.
+	 *
+	 * @param data
+	 *   Raw data from the reader.
+	 * @return
+	 *   False if the data does not have the length of a basic block.
+	 */
+	public boolean load(byte[] data) {
+		if (data == null || data.length != BLOCK_LENGTH) {
+			return false;
+		}
+
+		if (needsReversal(data)) {
+			for (int i = 0; i < BLOCK_LENGTH; i += 4) {
+				block[i] = data[i + 3];
+				block[i + 1] = data[i + 2];
+				block[i + 2] = data[i + 1];
+				block[i + 3] = data[i];
+			}
+		} else {
+			System.arraycopy(data, 0, block, 0, BLOCK_LENGTH);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Does the loaded block start with the expected content parameter?
+	 */
+	public boolean hasContentParameter() {
+		return block[0] == CONTENT_PARAMETER;
+	}
+
+	/**
+	 * Check the CRC of the loaded block.
+	 *
+	 * @return
+	 *   If the the CRCs match returns true, otherwise false.
+	 */
+	public boolean checkCrc() {
+		return readCrc(block) == calculateCrc(block);
+	}
+
+	/**
+	 * Calculate the CRC of a basic block.
+	 *
+	 * The CRC is calculated over the block without the CRC field, padded with
+	 * two null bytes in place of the CRC.
+	 *
+	 * @param data
+	 *   A basic block in the correct order.
+	 * @return
+	 *   The crc value.
+	 */
+	public static int calculateCrc(byte[] data) {
+		int crc = Crc16.compute(data, 0, BLOCK_LENGTH, CRC_OFFSET, CRC_LENGTH);
+
+		return Crc16.updateZeros(crc, CRC_LENGTH);
+	}
+
+	/**
+	 * Read the CRC stored in a basic block (least significant byte first).
+	 *
+	 * @param data
+	 *   A basic block in the correct order.
+	 * @return
+	 *   The crc value.
+	 */
+	public static int readCrc(byte[] data) {
+		return (data[CRC_OFFSET] & 0xFF) | ((data[CRC_OFFSET + 1] & 0xFF) << 8);
+	}
+
+	/**
+	 * Calculate and store the CRC of a basic block, before it is written to a tag.
+	 *
+	 * @param data
+	 *   A basic block in the correct order.
+	 */
+	public static void writeCrc(byte[] data) {
+		int crc = calculateCrc(data);
+
+		data[CRC_OFFSET] = (byte) crc;
+		data[CRC_OFFSET + 1] = (byte) (crc >> 8);
+	}
+
+	/**
+	 * Check if the owner institution of the loaded block is valid.
+	 *
+	 * The whole owner institution field must be two upper case letters
+	 * followed by five digits.
+	 *
+	 * @return
+	 *   Validity of value.
+	 */
+	public boolean checkOwnerInstitution() {
+		return isOwnerInstitution(block, OWNER_INSTITUTION_OFFSET, OWNER_INSTITUTION_LENGTH);
+	}
+
+	/**
+	 * Check if a byte range is a valid owner institution: [A-Z]{2}[0-9]{5}
+	 *
+	 * @param data
+	 *   The bytes to check.
+	 * @param offset
+	 *   Start of the range.
+	 * @param length
+	 *   Length of the range.
+	 * @return
+	 *   Validity of value.
+	 */
+	public static boolean isOwnerInstitution(byte[] data, int offset, int length) {
+		if (length != 7) {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			byte b = data[offset + i];
+
+			if (i < 2 ? (b < 'A' || b > 'Z') : (b < '0' || b > '9')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the owner institution of the loaded block.
+	 *
+	 * Only used for logging, the null characters are kept.
+	 */
+	public String getOwnerInstitution() {
+		return new String(block, OWNER_INSTITUTION_OFFSET, OWNER_INSTITUTION_LENGTH, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Get the primary item identifier (MID) of the loaded block.
+	 *
+	 * The identifier is utf-8 encoded and ends at the first null character.
+	 */
+	public String getPrimaryItemIdentifier() {
+		int length = 0;
+
+		while (length < PRIMARY_ITEM_IDENTIFIER_LENGTH && block[PRIMARY_ITEM_IDENTIFIER_OFFSET + length] != 0) {
+			length++;
+		}
+
+		return new String(block, PRIMARY_ITEM_IDENTIFIER_OFFSET, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decode the primary item identifier (MID) directly from raw data, in
+	 * either byte order, without loading it.
+	 *
+	 * @param data
+	 *   Raw data from the reader.
+	 * @return
+	 *   The identifier, or null if the data does not have the length of a
+	 *   basic block.
+	 */
+	public static String primaryItemIdentifier(byte[] data) {
+		if (data == null || data.length != BLOCK_LENGTH) {
+			return null;
+		}
+
+		byte[] identifier = new byte[PRIMARY_ITEM_IDENTIFIER_LENGTH];
+		boolean reversed = data[3] == CONTENT_PARAMETER;
+		int length = 0;
+
+		while (length < PRIMARY_ITEM_IDENTIFIER_LENGTH) {
+			identifier[length] = data[index(PRIMARY_ITEM_IDENTIFIER_OFFSET + length, reversed)];
+
+			if (identifier[length] == 0) {
+				break;
+			}
+
+			length++;
+		}
+
+		return new String(identifier, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the series length directly from raw data, in either byte order.
+	 *
+	 * @return
+	 *   The series length, or -1 if the value is not valid.
+	 */
+	public static int seriesLength(byte[] data) {
+		return decimal(data, SERIES_LENGTH_OFFSET);
+	}
+
+	/**
+	 * Read the number in series directly from raw data, in either byte order.
+	 *
+	 * @return
+	 *   The number in series, or -1 if the value is not valid.
+	 */
+	public static int numberInSeries(byte[] data) {
+		return decimal(data, NUMBER_IN_SERIES_OFFSET);
+	}
+
+	/**
+	 * Read a byte of raw data as two decimal digits.
+	 */
+	private static int decimal(byte[] data, int offset) {
+		if (data == null || data.length != BLOCK_LENGTH) {
+			return -1;
+		}
+
+		return decimal(data[index(offset, data[3] == CONTENT_PARAMETER)]);
+	}
+
+	/**
+	 * The position in raw data of a byte of the block.
+	 */
+	private static int index(int offset, boolean reversed) {
+		return reversed ? (offset & ~3) + 3 - (offset & 3) : offset;
+	}
+
+	/**
+	 * Get the series length of the loaded block.
+	 *
+	 * @return
+	 *   The series length, or -1 if the value is not valid.
+	 */
+	public int getSeriesLength() {
+		return decimal(block[SERIES_LENGTH_OFFSET]);
+	}
+
+	/**
+	 * Get the number in series of the loaded block.
+	 *
+	 * @return
+	 *   The number in series, or -1 if the value is not valid.
+	 */
+	public int getNumberInSeries() {
+		return decimal(block[NUMBER_IN_SERIES_OFFSET]);
+	}
+
+	/**
+	 * Read a byte as two decimal digits, e.g. 0x12 is 12.
+	 *
+	 * This matches how the set information has always been read, by parsing
+	 * its hex representation as a decimal number.
+	 *
+	 * @param b
+	 *   The byte.
+	 * @return
+	 *   The value, or -1 if one of the digits is not decimal.
+	 */
+	private static int decimal(byte b) {
+		int high = (b >> 4) & 0x0F;
+		int low = b & 0x0F;
+
+		if (high > 9 || low > 9) {
+			return -1;
+		}
+
+		return high * 10 + low;
+	}
+}
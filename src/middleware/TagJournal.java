@@ -0,0 +1,758 @@
+package middleware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * TagJournal.
+ *
+ * Append-only journal of the tag events of one reader: tags detected and
+ * removed, and AFI commands queued and their results. Used to restore the
+ * tags on the reader and the AFI commands waiting after a restart, so no
+ * events are sent again for tags that did not move, and to look up what
+ * happened to a tag.
+ *
+ * Records have a fixed size of 64 bytes, and are written to memory-mapped
+ * segment files of journal_segment_records records, so appending is a copy
+ * into memory:
+ *   0  long  timestamp (ms)
+ *   8  long  UID
+ *   16 byte  type
+ *   17 byte  flags (bit 0: lower case UID)
+ *   18 byte  data length
+ *   19 byte  attempts
+ *   20 int   AFI (NO_AFI if unknown)
+ *   24       data (max 40 bytes)
+ * The type is written last, so a record with a type is complete.
+ *
+ * A snapshot holds the tags and waiting AFI commands up to a position in the
+ * journal, so a restore only reads the records after it. Snapshots are
+ * written outside the poll task. Segments older than the snapshot are
+ * deleted when there are more than journal_max_segments.
+ *
+ * Only UIDs of 8 bytes hex are journaled. Appending is synchronized, as AFI
+ * commands are queued from the WebSocket.
+ */
+public class TagJournal {
+	public static final byte DETECTED = 1;
+	public static final byte REMOVED = 2;
+	public static final byte AFI_QUEUED = 3;
+	public static final byte AFI_SET = 4;
+	public static final byte AFI_FAILED = 5;
+
+	private static final String[] TYPE_NAMES = { "", "detected", "removed", "afi.queued", "afi.set", "afi.failed" };
+
+	static final int RECORD_SIZE = 64;
+	private static final int DATA_OFFSET = 24;
+	private static final int DATA_SIZE = RECORD_SIZE - DATA_OFFSET;
+	private static final int NO_AFI = Integer.MIN_VALUE;
+	private static final int FLAG_LOWER_CASE = 1;
+	private static final int SNAPSHOT_MAGIC = 0x52464A53;
+	private static final int SNAPSHOT_HEADER_SIZE = 32;
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+	private final File dir;
+	private final int segmentRecords;
+	private final int maxSegments;
+	private final long snapshotIntervalInNanos;
+	private final LoggerImpl logger;
+	private final Object snapshotLock = new Object();
+
+	// Guarded by this.
+	private long segment;
+	private int index;
+	private MappedByteBuffer buffer;
+	private long appendedSinceSnapshot = 0;
+	private long lastSnapshotAt = System.nanoTime();
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * Opens the last segment, and appends after its last record.
+	 *
+	 * @param dir
+	 *   The directory of the journal of the reader.
+	 * @param segmentRecords
+	 *   Records per segment file.
+	 * @param maxSegments
+	 *   Segment files kept for lookups.
+	 * @param snapshotIntervalInMillis
+	 *   Min time between snapshots.
+	 * @param logger
+	 *   The logger.
+	 * @throws IOException
+	 */
+	public TagJournal(File dir, int segmentRecords, int maxSegments, long snapshotIntervalInMillis, LoggerImpl logger) throws IOException {
+		this.dir = dir;
+		this.segmentRecords = Math.max(16, segmentRecords);
+		this.maxSegments = Math.max(1, maxSegments);
+		this.snapshotIntervalInNanos = snapshotIntervalInMillis * 1000000L;
+		this.logger = logger;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create journal directory: " + dir);
+		}
+
+		long[] segments = listSegments();
+
+		segment = segments.length == 0 ? 1 : segments[segments.length - 1];
+		buffer = map(segment);
+		index = countRecords(buffer, segmentRecords);
+	}
+
+	/**
+	 * A tag has been detected, or its data has changed.
+	 */
+	public void tagDetected(BibTag tag) {
+		byte[] data = tag.getRawData();
+
+		if (data == null && tag.getData() != null) {
+			try {
+				data = DatatypeConverter.parseHexBinary(tag.getData());
+			} catch (IllegalArgumentException e) {
+				data = null;
+			}
+		}
+
+		append(DETECTED, tag.getUID(), parseAfi(tag.getAFI()), 0, data);
+	}
+
+	/**
+	 * A tag has been removed.
+	 */
+	public void tagRemoved(BibTag tag) {
+		append(REMOVED, tag.getUID(), NO_AFI, 0, null);
+	}
+
+	/**
+	 * An AFI command has been queued.
+	 */
+	public void afiQueued(String uid, String afi) {
+		append(AFI_QUEUED, uid, parseAfi(afi), 0, null);
+	}
+
+	/**
+	 * An AFI command has been written, or has failed.
+	 */
+	public void afiSet(String uid, String afi, boolean success, int attempts) {
+		append(success ? AFI_SET : AFI_FAILED, uid, parseAfi(afi), attempts, null);
+	}
+
+	/**
+	 * Append a record.
+	 */
+	private synchronized void append(byte type, String uid, int afi, int attempts, byte[] data) {
+		if (closed || uid == null || uid.length() != 16) {
+			return;
+		}
+
+		long uidValue;
+
+		try {
+			uidValue = Long.parseUnsignedLong(uid, 16);
+		} catch (NumberFormatException e) {
+			return;
+		}
+
+		if (index >= segmentRecords && !nextSegment()) {
+			return;
+		}
+
+		int length = data == null || data.length > DATA_SIZE ? 0 : data.length;
+		int position = index * RECORD_SIZE;
+
+		buffer.putLong(position, System.currentTimeMillis());
+		buffer.putLong(position + 8, uidValue);
+		buffer.put(position + 17, (byte) (uid.equals(uid.toUpperCase()) ? 0 : FLAG_LOWER_CASE));
+		buffer.put(position + 18, (byte) length);
+		buffer.put(position + 19, (byte) Math.min(attempts, 127));
+		buffer.putInt(position + 20, afi);
+
+		for (int i = 0; i < length; i++) {
+			buffer.put(position + DATA_OFFSET + i, data[i]);
+		}
+
+		buffer.put(position + 16, type);
+
+		index++;
+		appendedSinceSnapshot++;
+	}
+
+	/**
+	 * Continue in a new segment file.
+	 */
+	private boolean nextSegment() {
+		try {
+			buffer.force();
+			buffer = map(segment + 1);
+			segment++;
+			index = 0;
+
+			return true;
+		} catch (IOException e) {
+			logger.warningRateLimited("journal:" + dir, "Could not create journal segment: {}", e.getMessage());
+
+			return false;
+		}
+	}
+
+	/**
+	 * Is it time for a snapshot?
+	 */
+	public synchronized boolean isSnapshotDue() {
+		return appendedSinceSnapshot > 0 && System.nanoTime() - lastSnapshotAt >= snapshotIntervalInNanos;
+	}
+
+	/**
+	 * The tags and AFI commands waiting, from the last snapshot and the
+	 * records after it.
+	 *
+	 * @return State
+	 * @throws IOException
+	 */
+	public State recover() throws IOException {
+		long toSegment;
+		int toIndex;
+
+		synchronized (this) {
+			toSegment = segment;
+			toIndex = index;
+		}
+
+		synchronized (snapshotLock) {
+			return replay(toSegment, toIndex);
+		}
+	}
+
+	/**
+	 * Write a snapshot, and delete old segments.
+	 *
+	 * Reads the journal, so it should not be called from the poll task.
+	 *
+	 * @throws IOException
+	 */
+	public void snapshot() throws IOException {
+		long toSegment;
+		int toIndex;
+
+		synchronized (this) {
+			toSegment = segment;
+			toIndex = index;
+			appendedSinceSnapshot = 0;
+			lastSnapshotAt = System.nanoTime();
+
+			if (!closed) {
+				buffer.force();
+			}
+		}
+
+		synchronized (snapshotLock) {
+			State state = replay(toSegment, toIndex);
+			ByteBuffer out = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + (state.tags.size() + state.pending.size()) * RECORD_SIZE);
+
+			out.putInt(SNAPSHOT_MAGIC);
+			out.putInt(1);
+			out.putLong(toSegment);
+			out.putInt(toIndex);
+			out.putInt(state.tags.size() + state.pending.size());
+			out.putLong(System.currentTimeMillis());
+
+			for (BibTag tag : state.tags.values()) {
+				writeRecord(out, DETECTED, tag.getUID(), parseAfi(tag.getAFI()), tag.getRawData());
+			}
+
+			for (Map.Entry<String, String> entry : state.pending.entrySet()) {
+				writeRecord(out, AFI_QUEUED, entry.getKey(), parseAfi(entry.getValue()), null);
+			}
+
+			File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+			Files.write(temp.toPath(), out.array());
+
+			try {
+				Files.move(temp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			compact(toSegment);
+		}
+	}
+
+	/**
+	 * Delete the oldest segments covered by the snapshot, so at most
+	 * maxSegments are kept.
+	 */
+	private void compact(long snapshotSegment) {
+		long[] segments = listSegments();
+
+		for (int i = 0; i < segments.length - maxSegments && segments[i] < snapshotSegment; i++) {
+			if (!segmentFile(segments[i]).delete()) {
+				logger.warning("Could not delete journal segment: {}", segmentFile(segments[i]));
+			}
+		}
+	}
+
+	/**
+	 * Load the snapshot, and apply the records after it up to a position.
+	 */
+	private State replay(long toSegment, int toIndex) throws IOException {
+		State state = new State();
+		long fromSegment = 0;
+		int fromIndex = 0;
+		ByteBuffer records;
+
+		File snapshotFile = new File(dir, SNAPSHOT_FILE);
+
+		if (snapshotFile.isFile()) {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+
+			if (in.remaining() >= SNAPSHOT_HEADER_SIZE && in.getInt(0) == SNAPSHOT_MAGIC) {
+				fromSegment = in.getLong(8);
+				fromIndex = in.getInt(16);
+
+				int count = Math.min(in.getInt(20), (in.remaining() - SNAPSHOT_HEADER_SIZE) / RECORD_SIZE);
+
+				for (int i = 0; i < count; i++) {
+					state.apply(in, SNAPSHOT_HEADER_SIZE + i * RECORD_SIZE);
+				}
+			}
+			else {
+				logger.warning("Invalid journal snapshot, ignoring: {}", snapshotFile);
+			}
+		}
+
+		for (long seg : listSegments()) {
+			if (seg < fromSegment || seg > toSegment) {
+				continue;
+			}
+
+			records = readSegment(seg);
+
+			if (records == null) {
+				continue;
+			}
+
+			int start = seg == fromSegment ? fromIndex : 0;
+			int end = seg == toSegment ? toIndex : countRecords(records, records.capacity() / RECORD_SIZE);
+
+			for (int i = start; i < end; i++) {
+				state.apply(records, i * RECORD_SIZE);
+			}
+		}
+
+		return state;
+	}
+
+	/**
+	 * Find records.
+	 *
+	 * @param uid
+	 *   The UID, or null for all tags.
+	 * @param from
+	 *   The first time, in ms.
+	 * @param to
+	 *   The last time, in ms.
+	 * @return
+	 *   The records, oldest first.
+	 * @throws IOException
+	 */
+	public List<Entry> find(String uid, long from, long to) throws IOException {
+		return find(dir, this, uid, from, to);
+	}
+
+	/**
+	 * Find records in the journal in a directory, without opening it for
+	 * writing, e.g. for lookups while the reader runs in another process.
+	 *
+	 * The segment files are only read, and nothing is created or mapped.
+	 *
+	 * @param dir
+	 *   The directory of the journal of the reader.
+	 * @param uid
+	 *   The UID, or null for all tags.
+	 * @param from
+	 *   The first time, in ms.
+	 * @param to
+	 *   The last time, in ms.
+	 * @return
+	 *   The records, oldest first.
+	 * @throws IOException
+	 */
+	public static List<Entry> find(File dir, String uid, long from, long to) throws IOException {
+		return find(dir, null, uid, from, to);
+	}
+
+	/**
+	 * Find records, with the segment being written read from memory if the
+	 * journal is open.
+	 */
+	private static List<Entry> find(File dir, TagJournal journal, String uid, long from, long to) throws IOException {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		Long uidValue = null;
+		ByteBuffer records;
+		long timestamp;
+		int count;
+
+		if (uid != null) {
+			try {
+				uidValue = Long.parseUnsignedLong(uid, 16);
+			} catch (NumberFormatException e) {
+				return entries;
+			}
+		}
+
+		for (long seg : listSegments(dir)) {
+			records = journal != null ? journal.readSegment(seg) : readSegmentFile(dir, seg);
+
+			if (records == null) {
+				continue;
+			}
+
+			count = countRecords(records, records.capacity() / RECORD_SIZE);
+
+			// Segments are written in time order.
+			if (count == 0 || records.getLong((count - 1) * RECORD_SIZE) < from) {
+				continue;
+			}
+
+			if (records.getLong(0) > to) {
+				break;
+			}
+
+			for (int i = 0; i < count; i++) {
+				timestamp = records.getLong(i * RECORD_SIZE);
+
+				if (timestamp >= from && timestamp <= to && (uidValue == null || records.getLong(i * RECORD_SIZE + 8) == uidValue)) {
+					entries.add(new Entry(records, i * RECORD_SIZE));
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Write the records to disk.
+	 */
+	public synchronized void close() {
+		if (!closed) {
+			buffer.force();
+			closed = true;
+		}
+	}
+
+	/**
+	 * Read a segment. The segment being written is read from memory.
+	 *
+	 * @return
+	 *   The records, or null if the segment has been deleted.
+	 */
+	private ByteBuffer readSegment(long seg) throws IOException {
+		synchronized (this) {
+			if (seg == segment) {
+				ByteBuffer copy = ByteBuffer.allocate(index * RECORD_SIZE);
+				ByteBuffer source = buffer.duplicate();
+
+				source.limit(index * RECORD_SIZE);
+				copy.put(source);
+
+				return copy;
+			}
+		}
+
+		return readSegmentFile(dir, seg);
+	}
+
+	/**
+	 * Read a segment file.
+	 *
+	 * @return
+	 *   The records, or null if the segment has been deleted.
+	 */
+	private static ByteBuffer readSegmentFile(File dir, long seg) throws IOException {
+		try {
+			return ByteBuffer.wrap(Files.readAllBytes(segmentFile(dir, seg).toPath()));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Map a segment file, creating it if needed.
+	 */
+	private MappedByteBuffer map(long seg) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(seg), "rw");
+
+		try {
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+		} finally {
+			// The mapping stays valid after the file is closed.
+			file.close();
+		}
+	}
+
+	/**
+	 * Number of records in a segment: up to the first record without a type.
+	 */
+	private static int countRecords(ByteBuffer records, int max) {
+		int count = Math.min(max, records.capacity() / RECORD_SIZE);
+
+		for (int i = 0; i < count; i++) {
+			if (records.get(i * RECORD_SIZE + 16) == 0) {
+				return i;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * The numbers of the segment files, in order.
+	 */
+	private long[] listSegments() {
+		return listSegments(dir);
+	}
+
+	/**
+	 * The numbers of the segment files in a directory, in order.
+	 */
+	private static long[] listSegments(File dir) {
+		String[] names = dir.list();
+		long[] segments = new long[names == null ? 0 : names.length];
+		int count = 0;
+
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (names[i].endsWith(SEGMENT_SUFFIX)) {
+				try {
+					segments[count++] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					// Not a segment.
+				}
+			}
+		}
+
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+
+		return segments;
+	}
+
+	private File segmentFile(long seg) {
+		return segmentFile(dir, seg);
+	}
+
+	private static File segmentFile(File dir, long seg) {
+		return new File(dir, String.format("%012d", seg) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Write a record to a snapshot.
+	 */
+	private static void writeRecord(ByteBuffer out, byte type, String uid, int afi, byte[] data) {
+		int position = out.position();
+		int length = data == null || data.length > DATA_SIZE ? 0 : data.length;
+
+		out.putLong(System.currentTimeMillis());
+		out.putLong(Long.parseUnsignedLong(uid, 16));
+		out.put(type);
+		out.put((byte) (uid.equals(uid.toUpperCase()) ? 0 : FLAG_LOWER_CASE));
+		out.put((byte) length);
+		out.put((byte) 0);
+		out.putInt(afi);
+
+		if (length > 0) {
+			out.put(data, 0, length);
+		}
+
+		out.position(position + RECORD_SIZE);
+	}
+
+	/**
+	 * Parse an AFI, NO_AFI if not a number.
+	 */
+	private static int parseAfi(String afi) {
+		if (afi == null) {
+			return NO_AFI;
+		}
+
+		try {
+			return Integer.parseInt(afi);
+		} catch (NumberFormatException e) {
+			return NO_AFI;
+		}
+	}
+
+	/**
+	 * Read the UID of a record.
+	 */
+	private static String readUid(ByteBuffer records, int position) {
+		String uid = String.format("%016X", records.getLong(position + 8));
+
+		return (records.get(position + 17) & FLAG_LOWER_CASE) != 0 ? uid.toLowerCase() : uid;
+	}
+
+	/**
+	 * Read the data of a record.
+	 *
+	 * @throws IOException
+	 *   If the data length is not valid, e.g. in a corrupt segment.
+	 */
+	private static byte[] readData(ByteBuffer records, int position) throws IOException {
+		int length = records.get(position + 18);
+
+		if (length < 0 || length > DATA_SIZE) {
+			throw new IOException("Invalid journal record, data length: " + length);
+		}
+
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			data[i] = records.get(position + DATA_OFFSET + i);
+		}
+
+		return data;
+	}
+
+	/**
+	 * The tags on the reader and the AFI commands waiting, at a position in
+	 * the journal.
+	 */
+	public static class State {
+		private final LinkedHashMap<String, BibTag> tags = new LinkedHashMap<String, BibTag>();
+		private final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+
+		/**
+		 * Apply a record.
+		 */
+		private void apply(ByteBuffer records, int position) throws IOException {
+			String uid = readUid(records, position);
+			int afi = records.getInt(position + 20);
+			String afiValue = afi == NO_AFI ? null : Integer.toString(afi);
+			BibTag tag;
+
+			switch (records.get(position + 16)) {
+				case DETECTED:
+					tags.put(uid, new BibTag(uid, readData(records, position), afi, records.getLong(position)));
+					break;
+
+				case REMOVED:
+					tags.remove(uid);
+					break;
+
+				case AFI_QUEUED:
+					pending.put(uid, afiValue);
+					break;
+
+				case AFI_SET:
+					pending.remove(uid);
+					tag = tags.get(uid);
+
+					if (tag != null) {
+						tags.put(uid, tag.withAFI(afi));
+					}
+					break;
+
+				case AFI_FAILED:
+					pending.remove(uid);
+					break;
+			}
+		}
+
+		/**
+		 * The tags on the reader, by UID.
+		 */
+		public LinkedHashMap<String, BibTag> getTags() {
+			return tags;
+		}
+
+		/**
+		 * The AFI commands that had not been written.
+		 */
+		public ArrayList<EventSetAFI> getPending() {
+			ArrayList<EventSetAFI> events = new ArrayList<EventSetAFI>();
+
+			for (Map.Entry<String, String> entry : pending.entrySet()) {
+				events.add(new EventSetAFI(entry.getKey(), entry.getValue()));
+			}
+
+			return events;
+		}
+	}
+
+	/**
+	 * A record found by a lookup.
+	 */
+	public static class Entry {
+		private final long timestamp;
+		private final String type;
+		private final String uid;
+		private final String afi;
+		private final int attempts;
+		private final String data;
+
+		private Entry(ByteBuffer records, int position) throws IOException {
+			int typeValue = records.get(position + 16);
+			int afiValue = records.getInt(position + 20);
+			byte[] bytes = readData(records, position);
+
+			this.timestamp = records.getLong(position);
+			this.type = typeValue > 0 && typeValue < TYPE_NAMES.length ? TYPE_NAMES[typeValue] : Integer.toString(typeValue);
+			this.uid = readUid(records, position);
+			this.afi = afiValue == NO_AFI ? null : Integer.toString(afiValue);
+			this.attempts = records.get(position + 19);
+			this.data = bytes.length == 0 ? null : DatatypeConverter.printHexBinary(bytes);
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public String getAfi() {
+			return afi;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public String getData() {
+			return data;
+		}
+
+		/**
+		 * To string.
+		 */
+		public String toString() {
+			return Instant.ofEpochMilli(timestamp) + " " + type + " " + uid
+				+ (afi == null ? "" : " afi: " + afi)
+				+ (attempts == 0 ? "" : " attempts: " + attempts)
+				+ (data == null ? "" : " data: " + data);
+		}
+	}
+}
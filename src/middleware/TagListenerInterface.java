@@ -9,7 +9,8 @@ import java.util.ArrayList;
  */
 public interface TagListenerInterface {
 	/**
-	 * A tag has been detected.
+	 * A tag has been detected, or a tag on the device has changed AFI or data
+	 * (with the new values).
 	 * 
 	 * @param bibTag
 	 */
@@ -22,6 +23,18 @@ public interface TagListenerInterface {
 	 */
 	public void tagRemoved(BibTag bibTag);
 	
+	/**
+	 * The tags on the device have changed in a poll cycle: tags added,
+	 * removed, and tags that stayed with a new AFI or new data, with the
+	 * values before and after.
+	 * 
+	 * Only called with tag_events=delta. Otherwise the delta is passed to
+	 * tagDetected and tagRemoved (TagSetDelta.dispatchTo()).
+	 * 
+	 * @param delta
+	 */
+	public void tagsChanged(TagSetDelta delta);
+	
 	/**
 	 * Lists tags currently on device.
 	 * 
@@ -33,8 +46,14 @@ public interface TagListenerInterface {
 	 * A tag's AFI has been set.
 	 * 
 	 * @param bibTag
+	 * @param success
+	 *   Was the AFI written and verified?
+	 * @param attempts
+	 *   Number of times the AFI was written.
+	 * @param durationInMillis
+	 *   Time from the first write until the result was known.
 	 */
-	public void tagAFISet(BibTag bibTag, boolean success);
+	public void tagAFISet(BibTag bibTag, boolean success, int attempts, long durationInMillis);
 	
 	/**
 	 * The device is processing new tags.
@@ -0,0 +1,267 @@
+package middleware;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * TagPresenceTracker.
+ *
+ * Decides which tags are on the reader, from the tags read in each cycle.
+ *
+ * A tag is detected when it has been read in a number of the last cycles
+ * (N of M), and removed when it has been missing in a number of cycles in a
+ * row. A tag that misses a single inventory, or whose data could not be read
+ * once, therefore stays on the reader with the data last read.
+ *
+ * The tags are kept by key (TagStore.key) in ascending order, and the entries
+ * of tags that have left are reused, so a cycle where the same tags are read
+ * allocates nothing.
+ *
+ * Only used from the reader thread.
+ */
+public class TagPresenceTracker {
+	private long[] keys = new long[32];
+	private Presence[] tags = new Presence[32];
+	private int size = 0;
+	private Presence[] unused = new Presence[32];
+	private int unusedSize = 0;
+	private final int arrivalReads;
+	private final long arrivalWindowMask;
+	private final int removalMisses;
+	private long cycle = 0;
+	private long flaps = 0;
+	// Tags arriving, missing or leaving in the last update.
+	private int pending = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param arrivalReads
+	 *   Reads needed in the window before a tag is detected (successful_reads_threshold).
+	 * @param arrivalWindow
+	 *   Number of cycles the reads are counted over, max 64.
+	 * @param removalMisses
+	 *   Cycles in a row a tag must be missing before it is removed.
+	 */
+	public TagPresenceTracker(int arrivalReads, int arrivalWindow, int removalMisses) {
+		arrivalWindow = Math.min(64, Math.max(arrivalWindow, arrivalReads));
+
+		this.arrivalReads = Math.max(1, arrivalReads);
+		this.arrivalWindowMask = arrivalWindow == 64 ? -1L : (1L << arrivalWindow) - 1;
+		this.removalMisses = Math.max(1, removalMisses);
+	}
+
+	/**
+	 * Update with the tags read in a cycle.
+	 *
+	 * @param reads
+	 *   The tags read in this cycle.
+	 * @param present
+	 *   Filled with the tags on the reader, with the data last read.
+	 */
+	public void update(Map<String, BibTag> reads, TagStore present) {
+		Presence presence;
+		int kept = 0;
+
+		cycle++;
+		pending = 0;
+
+		for (BibTag tag : reads.values()) {
+			presence = get(tag.getKey());
+
+			// A tag that was missing, but is back before it was removed.
+			if (presence.present && presence.misses > 0) {
+				flaps++;
+			}
+
+			presence.history = (presence.history << 1) | 1;
+			presence.misses = 0;
+			presence.readInCycle = cycle;
+			presence.tag = tag;
+
+			if (!presence.present && Long.bitCount(presence.history & arrivalWindowMask) >= arrivalReads) {
+				presence.present = true;
+			}
+		}
+
+		// One pass in key order, which keeps the tags still tracked.
+		for (int i = 0; i < size; i++) {
+			presence = tags[i];
+
+			if (presence.readInCycle != cycle) {
+				presence.history <<= 1;
+
+				if (presence.present && ++presence.misses >= removalMisses) {
+					presence.present = false;
+				}
+
+				// Forget tags that have not been read for the whole window.
+				if (!presence.present && (presence.history & arrivalWindowMask) == 0) {
+					release(presence);
+					continue;
+				}
+			}
+
+			if (presence.present) {
+				present.append(keys[i], presence.tag);
+			}
+
+			if (!presence.present || presence.misses > 0) {
+				pending++;
+			}
+
+			keys[kept] = keys[i];
+			tags[kept] = presence;
+			kept++;
+		}
+
+		Arrays.fill(tags, kept, size, null);
+		size = kept;
+	}
+
+	/**
+	 * Get the tag last read with a key.
+	 *
+	 * @return
+	 *   The tag, or null if the key is not tracked.
+	 */
+	public BibTag getTag(long key) {
+		int index = Arrays.binarySearch(keys, 0, size, key);
+
+		return index >= 0 ? tags[index].tag : null;
+	}
+
+	/**
+	 * Replace the tag last read with a key, e.g. after its AFI was written, so
+	 * the old value is not used if the tag misses a cycle.
+	 *
+	 * @return
+	 *   False if the key is not tracked.
+	 */
+	public boolean replace(long key, BibTag tag) {
+		int index = Arrays.binarySearch(keys, 0, size, key);
+
+		if (index < 0) {
+			return false;
+		}
+
+		tags[index].tag = tag;
+
+		return true;
+	}
+
+	/**
+	 * Are no tags tracked, neither on the reader nor arriving or leaving?
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Are tags arriving (read, but not detected yet), missing (detected, but
+	 * not read in the last cycles) or leaving? The outcome then depends on the
+	 * next cycles, so they should not be delayed.
+	 */
+	public boolean hasPending() {
+		return pending > 0;
+	}
+
+	/**
+	 * Get the presence of a key, added if it is not tracked.
+	 */
+	private Presence get(long key) {
+		int index = Arrays.binarySearch(keys, 0, size, key);
+
+		if (index >= 0) {
+			return tags[index];
+		}
+
+		index = -index - 1;
+
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			tags = Arrays.copyOf(tags, size * 2);
+		}
+
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(tags, index, tags, index + 1, size - index);
+
+		Presence presence = unusedSize > 0 ? unused[--unusedSize] : new Presence();
+		unused[unusedSize] = null;
+
+		keys[index] = key;
+		tags[index] = presence;
+		size++;
+
+		return presence;
+	}
+
+	/**
+	 * Keep the entry of a tag that has left, for the next tag that arrives.
+	 */
+	private void release(Presence presence) {
+		presence.history = 0;
+		presence.misses = 0;
+		presence.readInCycle = 0;
+		presence.present = false;
+		presence.tag = null;
+
+		if (unusedSize == unused.length) {
+			unused = Arrays.copyOf(unused, unusedSize * 2);
+		}
+
+		unused[unusedSize++] = presence;
+	}
+
+	/**
+	 * Number of times a tag was missing from a cycle, but read again before
+	 * it was removed.
+	 */
+	public long getFlaps() {
+		return flaps;
+	}
+
+	/**
+	 * Set tags as on the reader, e.g. restored from the journal. They are
+	 * removed as usual if they are not read.
+	 *
+	 * @param restored
+	 *   The tags, by UID.
+	 */
+	public void restore(Map<String, BibTag> restored) {
+		Presence presence;
+
+		for (BibTag tag : restored.values()) {
+			presence = get(tag.getKey());
+			presence.history = arrivalWindowMask;
+			presence.misses = 0;
+			presence.readInCycle = cycle;
+			presence.present = true;
+			presence.tag = tag;
+		}
+	}
+
+	/**
+	 * Forget all tags.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			release(tags[i]);
+			tags[i] = null;
+		}
+
+		size = 0;
+		pending = 0;
+	}
+
+	/**
+	 * The presence of one tag.
+	 */
+	private static class Presence {
+		private long history;
+		private int misses;
+		private long readInCycle;
+		private boolean present;
+		private BibTag tag;
+	}
+}
@@ -16,7 +16,21 @@ public interface TagReaderInterface {
 	
 	public boolean isRunning();
 	
-	public void addEventSetTagAFI(String uid, String afi);
+	public boolean addEventSetTagAFI(String uid, String afi);
 	
 	public void detectCurrentTags();
+	
+	public long getPollPeriod();
+	
+	public int getIdleCycles();
+	
+	public String getReaderId();
+	
+	public TaskScope getScope();
+	
+	public boolean shutdown(long timeoutInMillis);
+	
+	public void setStateListener(ReaderStateListener stateListener);
+	
+	public ReaderMetrics getMetrics();
 }
@@ -0,0 +1,252 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * TagSetDelta.
+ *
+ * The changes to the tags on the reader in one poll cycle.
+ *
+ * A tag that stays on the reader, but is read with another AFI or other data
+ * (e.g. written by another station), is changed. The tag before and after the
+ * change are both kept.
+ */
+public class TagSetDelta {
+	private final long cycle;
+	private final long timestamp;
+	private final List<BibTag> added;
+	private final List<BibTag> removed;
+	private final List<BibTag> changed;
+	private final List<Change> changes;
+
+	/**
+	 * Constructor.
+	 *
+	 * The lists are copied.
+	 *
+	 * @param cycle
+	 *   The number of the poll cycle.
+	 * @param added
+	 *   Tags detected in the cycle.
+	 * @param removed
+	 *   Tags removed in the cycle.
+	 * @param changedFrom
+	 *   Tags that stayed on the reader, as they were before the cycle.
+	 * @param changed
+	 *   The same tags, with the new AFI or new data, in the same order.
+	 */
+	public TagSetDelta(long cycle, List<BibTag> added, List<BibTag> removed, List<BibTag> changedFrom, List<BibTag> changed) {
+		if (changedFrom.size() != changed.size()) {
+			throw new IllegalArgumentException("A changed tag must have a value before and after the change.");
+		}
+
+		ArrayList<Change> changes = new ArrayList<Change>(changed.size());
+
+		for (int i = 0; i < changed.size(); i++) {
+			changes.add(new Change(changedFrom.get(i), changed.get(i)));
+		}
+
+		this.cycle = cycle;
+		this.timestamp = System.currentTimeMillis();
+		this.added = Collections.unmodifiableList(new ArrayList<BibTag>(added));
+		this.removed = Collections.unmodifiableList(new ArrayList<BibTag>(removed));
+		this.changed = Collections.unmodifiableList(new ArrayList<BibTag>(changed));
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	public long getCycle() {
+		return cycle;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public List<BibTag> getAdded() {
+		return added;
+	}
+
+	public List<BibTag> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * The tags changed in the cycle, with the new values.
+	 */
+	public List<BibTag> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * The tags changed in the cycle, with the values before and after.
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Are there no changes?
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	/**
+	 * Merge two deltas into one with the net changes of both, e.g. when the
+	 * earlier delta could not be sent in time.
+	 *
+	 * A tag added and then removed is left out, a tag removed and then added
+	 * again is changed (if it differs), and changes of the same tag are joined.
+	 *
+	 * @param earlier
+	 *   The earlier delta.
+	 * @param later
+	 *   The later delta, which gives the cycle of the result.
+	 * @return
+	 *   The merged delta.
+	 */
+	public static TagSetDelta merge(TagSetDelta earlier, TagSetDelta later) {
+		// Per tag: the tag before both deltas (null if not on the reader), and
+		// the tag after both deltas (null if not on the reader).
+		LinkedHashMap<Long, BibTag[]> tags = new LinkedHashMap<Long, BibTag[]>();
+
+		for (TagSetDelta delta : Arrays.asList(earlier, later)) {
+			for (BibTag tag : delta.removed) {
+				state(tags, tag)[1] = null;
+			}
+
+			for (BibTag tag : delta.added) {
+				BibTag[] state = tags.get(tag.getKey());
+
+				if (state == null) {
+					tags.put(tag.getKey(), new BibTag[] { null, tag });
+				} else {
+					state[1] = tag;
+				}
+			}
+
+			for (Change change : delta.changes) {
+				state(tags, change.from)[1] = change.to;
+			}
+		}
+
+		ArrayList<BibTag> added = new ArrayList<BibTag>();
+		ArrayList<BibTag> removed = new ArrayList<BibTag>();
+		ArrayList<BibTag> changedFrom = new ArrayList<BibTag>();
+		ArrayList<BibTag> changed = new ArrayList<BibTag>();
+
+		for (BibTag[] state : tags.values()) {
+			if (state[0] == null && state[1] != null) {
+				added.add(state[1]);
+			} else if (state[0] != null && state[1] == null) {
+				removed.add(state[0]);
+			} else if (state[0] != null && !state[0].contentEquals(state[1])) {
+				changedFrom.add(state[0]);
+				changed.add(state[1]);
+			}
+		}
+
+		return new TagSetDelta(later.cycle, added, removed, changedFrom, changed);
+	}
+
+	/**
+	 * The state of a tag that was on the reader before the delta, added with
+	 * the tag as the value before if it is not known yet.
+	 */
+	private static BibTag[] state(LinkedHashMap<Long, BibTag[]> tags, BibTag before) {
+		BibTag[] state = tags.get(before.getKey());
+
+		if (state == null) {
+			state = new BibTag[] { before, before };
+			tags.put(before.getKey(), state);
+		}
+
+		return state;
+	}
+
+	/**
+	 * Pass the delta to the per-tag callbacks of a listener (tag_events=tag).
+	 *
+	 * Removed tags are passed to tagRemoved, added tags to tagDetected, and
+	 * changed tags to tagDetected with the new values.
+	 *
+	 * @param listener
+	 *   The listener.
+	 */
+	public void dispatchTo(TagListenerInterface listener) {
+		for (BibTag tag : removed) {
+			listener.tagRemoved(tag);
+		}
+
+		for (BibTag tag : added) {
+			listener.tagDetected(tag);
+		}
+
+		for (BibTag tag : changed) {
+			listener.tagDetected(tag);
+		}
+	}
+
+	/**
+	 * To string.
+	 */
+	public String toString() {
+		return "{ cycle: " + cycle + ", added: " + added + ", removed: " + removed + ", changed: " + changes + " }";
+	}
+
+	/**
+	 * A tag that stayed on the reader, but changed.
+	 */
+	public static class Change {
+		private final BibTag from;
+		private final BibTag to;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param from
+		 *   The tag before the change.
+		 * @param to
+		 *   The tag after the change.
+		 */
+		public Change(BibTag from, BibTag to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public BibTag getFrom() {
+			return from;
+		}
+
+		public BibTag getTo() {
+			return to;
+		}
+
+		/**
+		 * Has the AFI changed?
+		 */
+		public boolean isAFIChanged() {
+			return !Objects.equals(from.getAFI(), to.getAFI());
+		}
+
+		/**
+		 * Has the data changed?
+		 */
+		public boolean isDataChanged() {
+			return !Arrays.equals(from.getRawData(), to.getRawData());
+		}
+
+		/**
+		 * To string.
+		 */
+		public String toString() {
+			return "{ uid: " + to.getUID() + ", afi: " + from.getAFI() + " -> " + to.getAFI()
+					+ (isDataChanged() ? ", data: " + from.getData() + " -> " + to.getData() : "") + " }";
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * TagStore.
+ *
+ * The tags of a poll cycle, by UID. The UIDs are kept as 64 bit numbers in
+ * ascending order, in arrays that are reused from cycle to cycle, so two
+ * stores can be compared in one pass and filling a store allocates nothing
+ * once the arrays are large enough.
+ *
+ * ISO 15693 UIDs are 16 hex digits, and are stored as their value. Other
+ * UIDs are stored as a hash of the string.
+ *
+ * Only used from the reader thread.
+ */
+public class TagStore {
+	private long[] keys;
+	private BibTag[] tags;
+	private int size = 0;
+
+	public TagStore() {
+		this(32);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   The number of tags there is room for at first.
+	 */
+	public TagStore(int capacity) {
+		keys = new long[Math.max(1, capacity)];
+		tags = new BibTag[keys.length];
+	}
+
+	/**
+	 * The key of a UID.
+	 *
+	 * @return
+	 *   The value of 16 hex digits, otherwise a hash of the string.
+	 */
+	public static long key(String uid) {
+		long key = 0;
+		int digit;
+
+		if (uid.length() == 16) {
+			for (int i = 0; i < 16; i++) {
+				digit = Character.digit(uid.charAt(i), 16);
+
+				if (digit < 0) {
+					return hash(uid);
+				}
+
+				key = (key << 4) | digit;
+			}
+
+			return key;
+		}
+
+		return hash(uid);
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of a string.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * The key of the tag at a position, in ascending order.
+	 */
+	public long keyAt(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * The tag at a position, in the order of the keys.
+	 */
+	public BibTag tagAt(int index) {
+		return tags[index];
+	}
+
+	/**
+	 * Get a tag.
+	 *
+	 * @return
+	 *   The tag, or null.
+	 */
+	public BibTag get(String uid) {
+		int index = indexOf(key(uid));
+
+		return index >= 0 && tags[index].getUID().equals(uid) ? tags[index] : null;
+	}
+
+	/**
+	 * The position of a key.
+	 *
+	 * @return
+	 *   The position, or (-(insertion point) - 1) if not found.
+	 */
+	public int indexOf(long key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	/**
+	 * Add a tag with a key larger than all keys in the store, e.g. while
+	 * copying from another store.
+	 */
+	public void append(long key, BibTag tag) {
+		if (size > 0 && key <= keys[size - 1]) {
+			throw new IllegalArgumentException("Keys must be appended in ascending order.");
+		}
+
+		ensureCapacity(size + 1);
+
+		keys[size] = key;
+		tags[size] = tag;
+		size++;
+	}
+
+	/**
+	 * Add a tag, or replace the tag with the same key.
+	 */
+	public void put(long key, BibTag tag) {
+		int index = indexOf(key);
+
+		if (index >= 0) {
+			tags[index] = tag;
+			return;
+		}
+
+		index = -index - 1;
+
+		ensureCapacity(size + 1);
+
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(tags, index, tags, index + 1, size - index);
+
+		keys[index] = key;
+		tags[index] = tag;
+		size++;
+	}
+
+	/**
+	 * Remove all tags. The arrays are kept.
+	 */
+	public void clear() {
+		// Let go of the tags.
+		Arrays.fill(tags, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * The tags, in a new list.
+	 */
+	public ArrayList<BibTag> values() {
+		ArrayList<BibTag> values = new ArrayList<BibTag>(size);
+
+		for (int i = 0; i < size; i++) {
+			values.add(tags[i]);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Grow the arrays, if needed.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > keys.length) {
+			capacity = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, capacity);
+			tags = Arrays.copyOf(tags, capacity);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+
+			builder.append(tags[i].getUID()).append('=').append(tags[i]);
+		}
+
+		return builder.append('}').toString();
+	}
+}
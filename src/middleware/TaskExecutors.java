@@ -0,0 +1,136 @@
+package middleware;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TaskExecutors.
+ *
+ * Creates the threads and executors used by the middleware, so they are
+ * named and configured in one place.
+ *
+ * Virtual threads are used where the JDK has them (Java 21 and later) and
+ * virtual_threads is true. They are found by reflection, so the middleware
+ * still runs on Java 8. Tasks that call the FEIG SDK should run on platform
+ * threads, as native calls pin a virtual thread to its carrier thread.
+ */
+public final class TaskExecutors {
+	private static volatile boolean virtualThreadsEnabled = true;
+	private static final Method OF_VIRTUAL = findMethod("java.lang.Thread", "ofVirtual");
+	private static final Method BUILDER_NAME = findMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+	private static final Method BUILDER_FACTORY = findMethod("java.lang.Thread$Builder", "factory");
+	private static final Method THREAD_PER_TASK = findMethod("java.util.concurrent.Executors", "newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private TaskExecutors() {
+	}
+
+	/**
+	 * Use virtual threads, if the JDK has them?
+	 *
+	 * @param enabled
+	 */
+	public static void setVirtualThreadsEnabled(boolean enabled) {
+		virtualThreadsEnabled = enabled;
+	}
+
+	/**
+	 * Are virtual threads used?
+	 */
+	public static boolean isVirtualThreads() {
+		return virtualThreadsEnabled && OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_FACTORY != null;
+	}
+
+	/**
+	 * Thread factory for tasks that may block on I/O.
+	 *
+	 * @param name
+	 *   Threads are named name-1, name-2, ...
+	 * @return ThreadFactory
+	 *   Creates virtual threads if used, otherwise daemon platform threads.
+	 */
+	public static ThreadFactory taskThreadFactory(String name) {
+		if (isVirtualThreads()) {
+			try {
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, name + "-", 1L);
+
+				return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+			} catch (Exception e) {
+				// Fall back to platform threads.
+			}
+		}
+
+		return platformThreadFactory(name, true);
+	}
+
+	/**
+	 * Thread factory for platform threads, e.g. for tasks that call native code.
+	 *
+	 * @param name
+	 *   Threads are named name-1, name-2, ...
+	 * @param daemon
+	 *   Create daemon threads?
+	 * @return ThreadFactory
+	 */
+	public static ThreadFactory platformThreadFactory(final String name, final boolean daemon) {
+		final AtomicInteger count = new AtomicInteger();
+
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+				thread.setDaemon(daemon);
+
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Executor with a new thread per task, for tasks that may block on I/O.
+	 *
+	 * @param name
+	 *   Name of the threads.
+	 * @return ExecutorService
+	 */
+	public static ExecutorService newTaskExecutor(String name) {
+		ThreadFactory factory = taskThreadFactory(name);
+
+		if (isVirtualThreads() && THREAD_PER_TASK != null) {
+			try {
+				return (ExecutorService) THREAD_PER_TASK.invoke(null, factory);
+			} catch (Exception e) {
+				// Fall back to a pool.
+			}
+		}
+
+		return Executors.newCachedThreadPool(factory);
+	}
+
+	/**
+	 * Executor for periodic tasks, on one platform thread that keeps the
+	 * process alive.
+	 *
+	 * @param name
+	 *   Name of the thread.
+	 * @return ScheduledExecutorService
+	 */
+	public static ScheduledExecutorService newScheduler(String name) {
+		return Executors.newSingleThreadScheduledExecutor(platformThreadFactory(name, false));
+	}
+
+	/**
+	 * Find a public method, or null if the JDK does not have it.
+	 */
+	private static Method findMethod(String className, String methodName, Class<?>... parameterTypes) {
+		try {
+			return Class.forName(className).getMethod(methodName, parameterTypes);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
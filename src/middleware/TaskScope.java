@@ -0,0 +1,184 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskScope.
+ *
+ * The tasks of one part of the middleware, e.g. one reader with its poll,
+ * connect and dispatch tasks. Each task has a name and runs on its own
+ * thread. Closing the scope stops all tasks and waits for them to end, so no
+ * task outlives the part it belongs to.
+ *
+ * Tasks should end when interrupted. A task that fails is logged, and can be
+ * forked again under the same name.
+ */
+public class TaskScope {
+	private final String name;
+	private final LoggerImpl logger;
+	private final ThreadFactory taskThreads;
+	private final ThreadFactory platformThreads;
+	private final LinkedHashMap<String, Thread> tasks = new LinkedHashMap<String, Thread>();
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *   Name of the scope, used in the thread names.
+	 * @param logger
+	 *   The logger.
+	 */
+	public TaskScope(String name, LoggerImpl logger) {
+		this.name = name;
+		this.logger = logger;
+		this.taskThreads = TaskExecutors.taskThreadFactory(name);
+		this.platformThreads = TaskExecutors.platformThreadFactory(name, true);
+	}
+
+	/**
+	 * Start a task that may block on I/O, on a virtual thread if used.
+	 *
+	 * @param taskName
+	 *   Name of the task.
+	 * @param task
+	 * @return
+	 *   False if a task with the name is still running, or the scope is closed.
+	 */
+	public boolean fork(String taskName, Runnable task) {
+		return start(taskName, task, taskThreads);
+	}
+
+	/**
+	 * Start a task that calls native code (the FEIG SDK), on a platform thread.
+	 *
+	 * @param taskName
+	 *   Name of the task.
+	 * @param task
+	 * @return
+	 *   False if a task with the name is still running, or the scope is closed.
+	 */
+	public boolean forkPlatform(String taskName, Runnable task) {
+		return start(taskName, task, platformThreads);
+	}
+
+	/**
+	 * Start a task.
+	 */
+	private synchronized boolean start(final String taskName, final Runnable task, ThreadFactory factory) {
+		if (closed || isAlive(taskName)) {
+			return false;
+		}
+
+		Thread thread = factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error("Task " + name + "/" + taskName + " failed: " + e.getMessage());
+				}
+			}
+		});
+
+		thread.setName(name + "-" + taskName);
+		tasks.put(taskName, thread);
+		thread.start();
+
+		return true;
+	}
+
+	/**
+	 * Is the task with the name running?
+	 *
+	 * @param taskName
+	 */
+	public synchronized boolean isAlive(String taskName) {
+		Thread thread = tasks.get(taskName);
+
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Wait for the task with the name to end.
+	 *
+	 * @param taskName
+	 * @param timeoutInMillis
+	 * @return
+	 *   False if the task is still running.
+	 * @throws InterruptedException
+	 */
+	public boolean join(String taskName, long timeoutInMillis) throws InterruptedException {
+		Thread thread;
+
+		synchronized (this) {
+			thread = tasks.get(taskName);
+		}
+
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.join(timeoutInMillis);
+		}
+
+		return thread == null || !thread.isAlive();
+	}
+
+	/**
+	 * Stop all tasks and wait for them to end.
+	 *
+	 * @param timeoutInMillis
+	 *   Max time to wait for the tasks.
+	 * @return
+	 *   False if a task had not ended within the timeout.
+	 */
+	public boolean close(long timeoutInMillis) {
+		ArrayList<Thread> threads;
+
+		synchronized (this) {
+			closed = true;
+			threads = new ArrayList<Thread>(tasks.values());
+		}
+
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMillis);
+
+		try {
+			for (Thread thread : threads) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+				if (remaining > 0) {
+					thread.join(remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Thread thread : threads) {
+			if (thread.isAlive()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * To string.
+	 */
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder(name).append(" {");
+
+		for (Map.Entry<String, Thread> entry : tasks.entrySet()) {
+			builder.append(' ').append(entry.getKey()).append(entry.getValue().isAlive() ? ": running" : ": ended");
+		}
+
+		return builder.append(" }").toString();
+	}
+}
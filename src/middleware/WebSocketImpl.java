@@ -8,7 +8,8 @@ import org.java_websocket.handshake.ServerHandshake;
 
 public class WebSocketImpl extends WebSocketClient  {
 	private LoggerImpl logger;
-	private boolean connected = false;
+	private volatile boolean connected = false;
+	private volatile boolean binary = false;
 	private WebSocketListener listener;
 	
 	public WebSocketImpl(URI serverUri, Draft draft, WebSocketListener listener, LoggerImpl logger) {
@@ -26,6 +27,7 @@ public class WebSocketImpl extends WebSocketClient  {
 		// WebSocket client connected to server
 		logger.info("WebSocket: connection OPEN");
 		connected = true;
+		listener.webSocketOpened(this);
 	}
 
 	/**
@@ -35,7 +37,7 @@ public class WebSocketImpl extends WebSocketClient  {
 	 */
 	@Override
 	public void onMessage(String message) {
-		listener.webSocketMessage(message);
+		listener.webSocketMessage(this, message);
 	}
 	
 	/**
@@ -47,15 +49,34 @@ public class WebSocketImpl extends WebSocketClient  {
 		return connected;
 	}
 
+	/**
+	 * Has the peer accepted binary frames on this connection?
+	 *
+	 * @return
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Set whether the peer has accepted binary frames on this connection.
+	 *
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
 	/**
 	 * onClose WebSocket.
 	 * 
-	 * @TODO: Reconnect.
+	 * The listener reconnects.
 	 */
 	@Override
 	public void onClose(int i, String string, boolean bln) {
 		logger.info("WebSocket: connection CLOSED");
 		connected = false;
+		listener.webSocketClosed(this, "closed (" + i + ")");
 	}
 
 	/**
@@ -65,5 +86,6 @@ public class WebSocketImpl extends WebSocketClient  {
 	public void onError(Exception e) {
 		logger.error("Error message: " + e.getMessage() + "\n" + e.toString());
 		connected = false;
+		listener.webSocketClosed(this, "error: " + e.getMessage());
 	}
 }
@@ -1,5 +1,9 @@
 package middleware;
 
 public interface WebSocketListener {
-	public void webSocketMessage(String message);
+	public void webSocketOpened(WebSocketImpl webSocket);
+
+	public void webSocketClosed(WebSocketImpl webSocket, String reason);
+
+	public void webSocketMessage(WebSocketImpl webSocket, String message);
 }
@@ -1,6 +1,8 @@
 package middleware;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class WebSocketMessage {
 	private ArrayList<BibTag> tags;
@@ -9,6 +11,16 @@ public class WebSocketMessage {
 	private String event;
 	private String message;
 	private long timestamp; 
+	private Integer attempts;
+	private Long duration;
+	private List<BibTag> added;
+	private List<BibTag> removed;
+	private List<BibTag> changed;
+	private Long cycle;
+	private String format;
+	private String reader;
+	private Map<String, List<String>> readers;
+	private Map<String, Double> metrics;
 	
 	public WebSocketMessage() {
 		this.timestamp = System.currentTimeMillis();
@@ -61,4 +73,84 @@ public class WebSocketMessage {
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
 	}
+
+	public Integer getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(Integer attempts) {
+		this.attempts = attempts;
+	}
+
+	public Long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(Long duration) {
+		this.duration = duration;
+	}
+
+	public List<BibTag> getAdded() {
+		return added;
+	}
+
+	public void setAdded(List<BibTag> added) {
+		this.added = added;
+	}
+
+	public List<BibTag> getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(List<BibTag> removed) {
+		this.removed = removed;
+	}
+
+	public List<BibTag> getChanged() {
+		return changed;
+	}
+
+	public void setChanged(List<BibTag> changed) {
+		this.changed = changed;
+	}
+
+	public Long getCycle() {
+		return cycle;
+	}
+
+	public void setCycle(Long cycle) {
+		this.cycle = cycle;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	public String getReader() {
+		return reader;
+	}
+
+	public void setReader(String reader) {
+		this.reader = reader;
+	}
+
+	public Map<String, List<String>> getReaders() {
+		return readers;
+	}
+
+	public void setReaders(Map<String, List<String>> readers) {
+		this.readers = readers;
+	}
+
+	public Map<String, Double> getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(Map<String, Double> metrics) {
+		this.metrics = metrics;
+	}
 }
@@ -7,8 +7,11 @@
 
 package readers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.DoubleSupplier;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -23,51 +26,91 @@ import de.feig.TagHandler.FedmIscTagHandler;
 import de.feig.TagHandler.FedmIscTagHandler_Result;
 import middleware.AbstractTagReader;
 import middleware.BibTag;
+import middleware.Configuration;
 import middleware.LoggerImpl;
+import middleware.Metrics;
+import middleware.TagCache;
 import middleware.TagListenerInterface;
 
 public class FeigReader extends AbstractTagReader implements FeIscListener {
+	// Status of a response when the reader has more data.
+	private static final int STATUS_MORE_DATA = 0x94;
+
 	private FedmIscReader reader;
+	private TagCache cache;
+	private volatile int tableSize;
+	private final int maxTableSize;
+	private volatile int maxInventorySize = 0;
+	private boolean tableFull = false;
+	// The tags read in a cycle, before the AFIs are read. Reused each cycle.
+	private final ArrayList<String> readUids = new ArrayList<String>();
+	private final ArrayList<byte[]> readData = new ArrayList<byte[]>();
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param logger The logger implementation.
 	 * @param tagListener The tag listener where reader events are passed to.
+	 * @param configuration The options, see config.properties.
 	 */
-	public FeigReader(LoggerImpl logger, TagListenerInterface tagListener, int successfulReadsThreshold, int threadSleepInMillis) {
-		this.logger = logger;
-		this.tagListener = tagListener;
-		this.successfulReadsThreshold = successfulReadsThreshold;
-		this.threadSleepInMillis = threadSleepInMillis;
+	public FeigReader(LoggerImpl logger, TagListenerInterface tagListener, int successfulReadsThreshold, int threadSleepInMillis, Configuration configuration) {
+		super(logger, tagListener, successfulReadsThreshold, threadSleepInMillis, configuration);
+
+		// Block data and AFI are only read again for tags that stay on the
+		// reader after these times, or after the tag has been written to.
+		this.cache = new TagCache(
+			configuration.getLong("block_cache_ttl_in_millis", 5000),
+			configuration.getLong("afi_cache_ttl_in_millis", 5000)
+		);
+
+		// The table grows up to iso_table_max_size when an inventory fills it.
+		this.tableSize = Math.max(1, configuration.getInt("iso_table_size", 20));
+		this.maxTableSize = Math.max(tableSize, configuration.getInt("iso_table_max_size", 256));
+
+		Metrics.DEFAULT.gauge("rfid_iso_table_size", "Tags the ISO table of the reader has room for.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return tableSize;
+			}
+		}, "reader", readerId);
+		Metrics.DEFAULT.gauge("rfid_inventory_max_tags", "Most tags found in an inventory.", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return maxInventorySize;
+			}
+		}, "reader", readerId);
 	}
 
 	/**
 	 * Initialize FeigReader
+	 *
+	 * The reader object is created once, and reused when the reader is
+	 * started again, so no native handles are left behind.
 	 * 
 	 * @return boolean
 	 */
 	private boolean initiateFeigReader() {
 		// Initiate the reader object.
-		try {
-			reader = new FedmIscReader();
-		} catch (Exception ex) {
-			// @TODO: Handle.
-			ex.printStackTrace();
-			logger.error("Error message: " + ex.getMessage() + "\n" + ex.getStackTrace());
-			return false;
+		if (reader == null) {
+			try {
+				reader = new FedmIscReader();
+			} catch (Exception ex) {
+				// @TODO: Handle.
+				ex.printStackTrace();
+				logger.error("Error message: " + ex.getMessage() + "\n" + ex.getStackTrace());
+				return false;
+			}
 		}
 
 		if (reader == null) {
 			return false;
 		}
 
-		// Set the table size of the reader.
-		// As of now it has been set to 20
-		// which means the reader can read an inventory of max 20.
-		// The reader will therefore work best when 20 tags on reader.
+		// Set the table size of the reader, the most tags an inventory can
+		// hold. It is iso_table_size, or larger if it has grown.
 		try {
-			reader.setTableSize(FedmIscReaderConst.ISO_TABLE, 20);
+			reader.setTableSize(FedmIscReaderConst.ISO_TABLE, tableSize);
+			logger.info("ISO table size: {}, max: {}", tableSize, maxTableSize);
 			return true;
 		} catch (FedmException ex) {
 			logger.error("Error code: " + ex.getErrorcode() + "\n" + ex.getStackTrace());
@@ -85,9 +128,11 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 	private void openUSBPort() throws FedmException, FePortDriverException, FeReaderDriverException {
 		// Close connection if any has already been established.
 		closeConnection();
+		cache.clear();
 
-		// Connect to USB.
-		reader.connectUSB(0);
+		// Connect to USB, to the device with the configured id (serial
+		// number), or to the first device found if 0.
+		reader.connectUSB(configuration.getInt("usb_device_id", 0));
 		reader.addEventListener(this, FeIscListener.SEND_STRING_EVENT);
 		reader.addEventListener(this, FeIscListener.RECEIVE_STRING_EVENT);
 	}
@@ -102,7 +147,7 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 	public boolean closeConnection() {
 		try {
 			// Close connection if there is any.
-			if (reader.isConnected()) {
+			if (reader != null && reader.isConnected()) {
 				reader.removeEventListener(this, FeIscListener.SEND_STRING_EVENT);
 				reader.removeEventListener(this, FeIscListener.RECEIVE_STRING_EVENT);
 				reader.disConnect();
@@ -117,7 +162,7 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 
 	@Override
 	public boolean connect() {
-		logger.info("Connecting to FEIG reader.");
+		logger.info("Connecting to FEIG reader: " + readerId);
 
 		// Initialize FEIG Reader.
 		if (!initiateFeigReader()) {
@@ -141,20 +186,38 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 		return true;
 	}
 
+	/**
+	 * Protocol received from the reader. Recorded, if recording.
+	 */
 	@Override
 	public void onReceiveProtocol(FedmIscReader arg0, String arg1) {
+		if (recorder != null) {
+			recorder.protocol(false, arg1);
+		}
 	}
 
 	@Override
 	public void onReceiveProtocol(FedmIscReader arg0, byte[] arg1) {
+		if (recorder != null) {
+			recorder.protocol(false, DatatypeConverter.printHexBinary(arg1));
+		}
 	}
 
+	/**
+	 * Protocol sent to the reader. Recorded, if recording.
+	 */
 	@Override
 	public void onSendProtocol(FedmIscReader arg0, String arg1) {
+		if (recorder != null) {
+			recorder.protocol(true, arg1);
+		}
 	}
 
 	@Override
 	public void onSendProtocol(FedmIscReader arg0, byte[] arg1) {
+		if (recorder != null) {
+			recorder.protocol(true, DatatypeConverter.printHexBinary(arg1));
+		}
 	}
 
 	@Override
@@ -166,6 +229,8 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 	 * @return AFI -1 == error
 	 */
 	public int readAFI(String id) {
+		long startedAt = System.nanoTime();
+
 		try {
 			// Read table.
 			reader.setData(FedmIscReaderID.FEDM_ISC_TMP_B0_REQ_UID, id);
@@ -173,17 +238,32 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 			reader.setData(FedmIscReaderID.FEDM_ISC_TMP_B0_MODE, (byte) 0x00);
 			reader.setData(FedmIscReaderID.FEDM_ISC_TMP_B0_MODE_ADR, (byte) 0x01);
 
-			reader.sendProtocol((byte) 0xB0);
-
 			int idx = reader.findTableIndex(0, FedmIscReaderConst.ISO_TABLE, FedmIscReaderConst.DATA_SNR, id);
 			if (idx < 0) {
 				return -1;
 			}
+
+			// The table may hold the value of our own write. Clear it, so the
+			// value can only come from the tag.
+			reader.setTableData(idx, FedmIscReaderConst.ISO_TABLE, FedmIscReaderConst.DATA_AFI, (byte) 0);
+
+			int status = reader.sendProtocol((byte) 0xB0);
+
+			if (status != 0 || reader.getLastStatus() != 0) {
+				logger.warningRateLimited("afi:" + id, "Could not read AFI for UID: {}, status: {}", id, status);
+				return -1;
+			}
+
 			byte afi = reader.getByteTableData(idx, FedmIscReaderConst.ISO_TABLE, FedmIscReaderConst.DATA_AFI);
 
+			// Keep the value, e.g. after verifying a write.
+			cache.putAFI(id, afi & 0xFF, System.currentTimeMillis());
+
 			return (afi & 0xFF);
 		} catch (Exception e) {
 			logger.error(e.getMessage());
+		} finally {
+			metrics.afiRead.observeSince(startedAt);
 		}
 		return -1;
 	}
@@ -214,12 +294,20 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 			reader.setData(FedmIscReaderID.FEDM_ISC_TMP_B0_MODE, (byte) 0x00);
 			reader.setData(FedmIscReaderID.FEDM_ISC_TMP_B0_MODE_ADR, (byte) 0x01);
 
-			reader.sendProtocol((byte) 0xB0);
+			int status = reader.sendProtocol((byte) 0xB0);
+
+			if (status != 0 || reader.getLastStatus() != 0) {
+				logger.warning("Could not write AFI for UID: {}, status: {}", id, status);
+				return false;
+			}
 
 			return true;
 		} catch (Exception e) {
 			logger.error("Error code: " + e.getMessage());
 			return false;
+		} finally {
+			// The tag has changed, read it again next cycle.
+			cache.invalidate(id);
 		}
 	}
 
@@ -250,9 +338,84 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 		return true;
 	}
 
+	/**
+	 * Get the tags in the field.
+	 *
+	 * When the reader has more tags than fit in a response, it answers with
+	 * the more data status, and the rest is read page by page. Sets tableFull
+	 * if the ISO table had no room for all tags.
+	 */
+	private HashMap<String, FedmIscTagHandler> inventory() throws FedmException, FePortDriverException, FeReaderDriverException {
+		HashMap<String, FedmIscTagHandler> inventory = new HashMap<String, FedmIscTagHandler>();
+		boolean all = true;
+
+		tableFull = false;
+
+		// Each page has at least one tag, so there are no more pages than
+		// the table has room for.
+		for (int page = 0; page < tableSize; page++) {
+			try {
+				inventory.putAll(reader.tagInventory(all, (byte) 0, (byte) 1));
+			} catch (FedmException e) {
+				if (reader.getTableLength(FedmIscReaderConst.ISO_TABLE) < tableSize) {
+					throw e;
+				}
+
+				// No room in the table for the next page.
+				tableFull = true;
+				break;
+			}
+
+			metrics.inventoryPages.inc();
+			all = false;
+
+			if (reader.getLastStatus() != STATUS_MORE_DATA) {
+				break;
+			}
+		}
+
+		tableFull = tableFull || inventory.size() >= tableSize;
+		maxInventorySize = Math.max(maxInventorySize, inventory.size());
+
+		return inventory;
+	}
+
+	/**
+	 * Double the size of the ISO table, up to iso_table_max_size, after an
+	 * inventory filled it.
+	 *
+	 * @return
+	 *   False if the table can not grow.
+	 */
+	private boolean growTable() {
+		int size = Math.min(maxTableSize, tableSize * 2);
+
+		metrics.inventorySaturated.inc();
+
+		if (size <= tableSize) {
+			logger.warningRateLimited("table", "ISO table full with {} tags, at iso_table_max_size.", tableSize);
+			return false;
+		}
+
+		try {
+			reader.setTableSize(FedmIscReaderConst.ISO_TABLE, size);
+		} catch (FedmException e) {
+			logger.error("Could not grow the ISO table to " + size + ", error code: " + e.getErrorcode());
+			return false;
+		}
+
+		logger.info("ISO table full with {} tags, table size: {}", tableSize, size);
+		tableSize = size;
+
+		return true;
+	}
+
 	@Override
 	/**
 	 * Get the tags currently reachable.
+	 *
+	 * Block data and AFI are only read for tags that are not in the cache, so
+	 * a cycle where the same tags stay on the reader only does the inventory.
 	 */
 	protected HashMap<String, BibTag> getTags() throws FedmException, FePortDriverException, FeReaderDriverException {
 		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
@@ -260,39 +423,79 @@ public class FeigReader extends AbstractTagReader implements FeIscListener {
 		FedmIscTagHandler_Result res = new FedmIscTagHandler_Result();
 		int dataReadSuccess = 0;
 		int tagDriver = 0;
-		BibTag tag;
+		long now = System.currentTimeMillis();
+		long startedAt = System.nanoTime();
+		byte[] data;
 		String uid;
-		String afi;
+		int afi;
+
+		HashMap<String, FedmIscTagHandler> inventory = inventory();
+
+		// A full table may have left tags out. Grow it, and read again.
+		while (tableFull && growTable()) {
+			inventory = inventory();
+		}
+
+		metrics.inventory.observeSince(startedAt);
 
-		HashMap<String, FedmIscTagHandler> inventory = reader.tagInventory(true, (byte) 0, (byte) 1);
+		// Forget tags that have left the reader.
+		cache.retain(inventory.keySet());
+
+		readUids.clear();
+		readData.clear();
 
 		// Read tags with data.
 		for (Map.Entry<String, FedmIscTagHandler> entry : inventory.entrySet()) {
 			// Get the UID.
 			uid = (String) entry.getKey();
 
-			// Select tag handler.
-			th = reader.tagSelect(entry.getValue(), tagDriver);
+			data = cache.getData(uid, now);
+
+			if (data == null) {
+				startedAt = System.nanoTime();
+
+				// Select tag handler.
+				th = reader.tagSelect(entry.getValue(), tagDriver);
 
-			// Read the data blocks.
-			dataReadSuccess = th.readMultipleBlocksWithSecStatus(0, 8, res);
+				// Read the data blocks.
+				dataReadSuccess = th.readMultipleBlocksWithSecStatus(0, 8, res);
 
-			// 0 = success. If success, the result is in the res variable.
-			if (dataReadSuccess == 0) {
-				tags.put(uid, new BibTag(uid, DatatypeConverter.printHexBinary(res.data), null));
+				// 0 = success. If success, the result is in the res variable.
+				// The result object is reused for all tags, so the data is copied.
+				if (dataReadSuccess == 0) {
+					data = Arrays.copyOf(res.data, res.data.length);
+					cache.putData(uid, data, now);
+				}
+				else {
+					logger.warningRateLimited("read:" + uid, "Could not read data for UID: {}, ignoring tag.", uid);
+					metrics.readFailures.inc();
+				}
+
+				metrics.blockRead.observeSince(startedAt);
 			}
-			else {
-				logger.error("Could not read data for UID: " + uid + ", ignoring tag.");
+
+			if (data != null) {
+				readUids.add(uid);
+				readData.add(data);
 			}
 		}
 
-		// Read AFI values.
-		for (Map.Entry<String, BibTag> entry : tags.entrySet()) {
-			tag = entry.getValue();
+		// Read AFI values, for tags where it is not known.
+		for (int i = 0; i < readUids.size(); i++) {
+			uid = readUids.get(i);
 
-			afi = Integer.toString(readAFI(tag.getUID()));
+			afi = cache.getAFI(uid, now);
+
+			if (afi < 0) {
+				afi = readTagAFI(uid);
+			}
+
+			// The AFI could not be read, and is not known from earlier cycles.
+			if (afi < 0) {
+				continue;
+			}
 
-			tag.setAFI(afi);
+			tags.put(uid, readTag(uid, readData.get(i), afi));
 		}
 
 		return tags;
@@ -0,0 +1,331 @@
+package readers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import middleware.AbstractTagReader;
+import middleware.BibTag;
+import middleware.Configuration;
+import middleware.LoggerImpl;
+import middleware.PollScheduler;
+import middleware.ProtocolRecorder;
+import middleware.TagListenerInterface;
+
+/**
+ * ReplayReader.
+ *
+ * A tag reader that replays a file recorded by ProtocolRecorder
+ * (record_file), so the tags read in the field go through the same
+ * processing, diffing and events without a device or the FEIG library.
+ *
+ * Each poll cycle returns the tags of the next recorded cycle, and a
+ * recorded failed cycle fails again. With replay_speed 1 the cycles are
+ * replayed at the recorded times, with 2 twice as fast, and with 0 as fast as
+ * possible. At the end of the file, the replay starts again with replay_loop,
+ * otherwise no tags are read.
+ *
+ * AFI writes succeed for tags in the current cycle, and the AFI written is
+ * read until the tag leaves the reader.
+ */
+public class ReplayReader extends AbstractTagReader {
+	private final String file;
+	private final double speed;
+	private final boolean loop;
+	private DataInputStream in;
+	private long recordedTime;
+	private long replayStartedAt;
+	private long recordingStartedAt;
+	private boolean finished = false;
+	private int records = 0;
+	private ArrayList<Recorded> lastCycle = new ArrayList<Recorded>();
+	private HashMap<String, String> writtenAFIs = new HashMap<String, String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param logger The logger implementation.
+	 * @param tagListener The tag listener where reader events are passed to.
+	 * @param configuration The options, see config.properties.
+	 */
+	public ReplayReader(LoggerImpl logger, TagListenerInterface tagListener, int successfulReadsThreshold, int threadSleepInMillis, Configuration configuration) {
+		super(logger, tagListener, successfulReadsThreshold, threadSleepInMillis, configuration);
+
+		this.file = configuration.getString("replay_file", "").replace("{reader}", readerId);
+		this.speed = Math.max(0, Double.parseDouble(configuration.getString("replay_speed", "1")));
+		this.loop = configuration.getBoolean("replay_loop", false);
+
+		// The recording decides when cycles start, so the scheduler does not wait.
+		this.scheduler = new PollScheduler(0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Open the recording.
+	 */
+	@Override
+	public boolean connect() {
+		logger.info("Replaying {} on reader {}, speed: {}", file, readerId, speed);
+
+		try {
+			open();
+			connected = true;
+		} catch (IOException e) {
+			logger.error("Could not open replay file: " + e.getMessage());
+			connected = false;
+		}
+
+		return connected;
+	}
+
+	/**
+	 * Open the recording, and read the header.
+	 */
+	private void open() throws IOException {
+		closeConnection();
+
+		InputStream stream = new FileInputStream(file);
+
+		if (file.endsWith(".gz")) {
+			stream = new GZIPInputStream(stream, 65536);
+		}
+
+		in = new DataInputStream(new BufferedInputStream(stream, 65536));
+
+		if (in.readInt() != ProtocolRecorder.MAGIC || in.readShort() != ProtocolRecorder.VERSION) {
+			throw new IOException("Not a recording: " + file);
+		}
+
+		in.readUTF();
+		recordingStartedAt = in.readLong();
+		recordedTime = 0;
+		replayStartedAt = System.nanoTime();
+		finished = false;
+		records = 0;
+		lastCycle.clear();
+		writtenAFIs.clear();
+	}
+
+	@Override
+	public boolean closeConnection() {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Closed anyway.
+			}
+
+			in = null;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the tags of the next recorded cycle.
+	 *
+	 * @throws Exception
+	 *   If the cycle failed when recorded.
+	 */
+	@Override
+	protected HashMap<String, BibTag> getTags() throws Exception {
+		byte type;
+
+		while (!finished) {
+			try {
+				type = in.readByte();
+				recordedTime += in.readInt();
+				records++;
+			} catch (EOFException e) {
+				if (loop && records > 0) {
+					open();
+					continue;
+				}
+
+				logger.info("Replay finished: {}", readerId);
+				finished = true;
+				lastCycle.clear();
+				break;
+			}
+
+			switch (type) {
+				case ProtocolRecorder.CYCLE:
+					ArrayList<Recorded> cycle = new ArrayList<Recorded>();
+					int count = in.readUnsignedShort();
+
+					for (int i = 0; i < count; i++) {
+						Recorded tag = new Recorded();
+						tag.uid = ProtocolRecorder.readUid(in);
+						tag.afi = ProtocolRecorder.readAfi(in);
+						tag.data = new byte[in.readUnsignedByte()];
+						in.readFully(tag.data);
+						cycle.add(tag);
+					}
+
+					if (!awaitRecordedTime()) {
+						return tags();
+					}
+
+					lastCycle = cycle;
+					return tags();
+
+				case ProtocolRecorder.CYCLE_FAILED:
+					String message = in.readUTF();
+
+					if (!awaitRecordedTime()) {
+						return tags();
+					}
+
+					throw new Exception("Recorded: " + message);
+
+				case ProtocolRecorder.AFI_WRITE:
+					ProtocolRecorder.readUid(in);
+					in.readShort();
+					in.readBoolean();
+					break;
+
+				case ProtocolRecorder.AFI_READ:
+					ProtocolRecorder.readUid(in);
+					in.readShort();
+					break;
+
+				case ProtocolRecorder.SENT:
+				case ProtocolRecorder.RECEIVED:
+					in.readUTF();
+					break;
+
+				default:
+					throw new IOException("Unknown record in " + file + ": " + type);
+			}
+		}
+
+		// Nothing more to replay; do not poll at full speed.
+		try {
+			Thread.sleep(Math.max(1, threadSleepInMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return tags();
+	}
+
+	/**
+	 * Wait until the recorded time of the record, at the replay speed.
+	 *
+	 * @return
+	 *   False if reading has been stopped.
+	 */
+	private boolean awaitRecordedTime() {
+		if (speed == 0) {
+			return running;
+		}
+
+		long due = replayStartedAt + (long) (recordedTime * 1000000L / speed);
+		long remaining;
+
+		while (running && (remaining = due - System.nanoTime()) > 0) {
+			try {
+				// Wake up now and then, so stopping is not held up.
+				Thread.sleep(Math.min(100, remaining / 1000000L + 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return running;
+	}
+
+	/**
+	 * New tags of the last cycle, with the AFIs written.
+	 */
+	private HashMap<String, BibTag> tags() {
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
+		HashMap<String, String> afis = new HashMap<String, String>();
+
+		for (Recorded recorded : lastCycle) {
+			String afi = writtenAFIs.containsKey(recorded.uid) ? writtenAFIs.get(recorded.uid) : recorded.afi;
+
+			tags.put(recorded.uid, new BibTag(recorded.uid, recorded.data.clone(), afi));
+
+			if (writtenAFIs.containsKey(recorded.uid)) {
+				afis.put(recorded.uid, afi);
+			}
+		}
+
+		// Forget AFIs written to tags that have left.
+		writtenAFIs = afis;
+
+		return tags;
+	}
+
+	/**
+	 * Write the AFI of a tag in the current cycle.
+	 */
+	@Override
+	public boolean writeAFI(String uid, String afi) {
+		for (Recorded recorded : lastCycle) {
+			if (recorded.uid.equals(uid)) {
+				writtenAFIs.put(uid, afi);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Read the AFI of a tag in the current cycle.
+	 *
+	 * @return AFI -1 == error
+	 */
+	@Override
+	public int readAFI(String uid) {
+		for (Recorded recorded : lastCycle) {
+			if (recorded.uid.equals(uid)) {
+				String afi = writtenAFIs.containsKey(uid) ? writtenAFIs.get(uid) : recorded.afi;
+
+				try {
+					return Integer.parseInt(afi);
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public boolean clearReader() {
+		return true;
+	}
+
+	/**
+	 * The time since the recording started of the last record replayed, in ms.
+	 */
+	public long getRecordedTime() {
+		return recordedTime;
+	}
+
+	/**
+	 * When the recording started, in ms since 1970.
+	 */
+	public long getRecordingStartedAt() {
+		return recordingStartedAt;
+	}
+
+	/**
+	 * A tag in a recorded cycle.
+	 */
+	private static class Recorded {
+		private String uid;
+		private String afi;
+		private byte[] data;
+	}
+}
@@ -0,0 +1,360 @@
+package readers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import middleware.AbstractTagReader;
+import middleware.BibTag;
+import middleware.Configuration;
+import middleware.LoggerImpl;
+import middleware.TagCache;
+import middleware.TagDecoder;
+import middleware.TagListenerInterface;
+
+/**
+ * SimulatedReader.
+ *
+ * A tag reader without a device, for load tests of the processing and event
+ * pipeline with many tags.
+ *
+ * The reader starts with sim_tags tags, and tags arrive and leave at
+ * sim_arrivals_per_second and sim_departures_per_second, up to sim_max_tags
+ * on the reader. Each command to the simulated device (inventory, block
+ * read, AFI read and write) takes sim_command_latency_in_micros. Block reads
+ * fail with sim_read_failure_probability, and sim_reversed_ratio and
+ * sim_invalid_crc_ratio of the tags have the data in reverse order or a CRC
+ * that does not match. The owner institution of a basic block never passes
+ * the check in processTags(), so tags with an invalid CRC take the path where
+ * they are accepted anyway, and have events as other tags. Block data and AFI
+ * are cached as by FeigReader (block_cache_ttl_in_millis,
+ * afi_cache_ttl_in_millis).
+ *
+ * The time a tag arrived or left is kept until taken by takeChangedAt(), so
+ * a load test can measure the time until the event is received.
+ */
+public class SimulatedReader extends AbstractTagReader {
+	private final Random random;
+	private final int maxTags;
+	private final double arrivalsPerSecond;
+	private final double departuresPerSecond;
+	private final long commandLatencyInNanos;
+	private final double readFailureProbability;
+	private final double reversedRatio;
+	private final double invalidCrcRatio;
+	private final TagCache cache;
+	private final ArrayList<Simulated> present = new ArrayList<Simulated>();
+	private final HashMap<String, Simulated> presentByUid = new HashMap<String, Simulated>();
+	private final ConcurrentHashMap<String, Long> changedAt = new ConcurrentHashMap<String, Long>();
+	private int initialTags;
+	private int nextNumber = 0;
+	private long lastCycleAt = 0;
+	private double arrivals = 0;
+	private double departures = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param logger The logger implementation.
+	 * @param tagListener The tag listener where reader events are passed to.
+	 * @param configuration The options, see config.properties.
+	 */
+	public SimulatedReader(LoggerImpl logger, TagListenerInterface tagListener, int successfulReadsThreshold, int threadSleepInMillis, Configuration configuration) {
+		super(logger, tagListener, successfulReadsThreshold, threadSleepInMillis, configuration);
+
+		this.random = new Random(configuration.getLong("sim_seed", 1));
+		this.initialTags = configuration.getInt("sim_tags", 20);
+		this.maxTags = configuration.getInt("sim_max_tags", 500);
+		this.arrivalsPerSecond = getDouble(configuration, "sim_arrivals_per_second", 0);
+		this.departuresPerSecond = getDouble(configuration, "sim_departures_per_second", 0);
+		this.commandLatencyInNanos = configuration.getLong("sim_command_latency_in_micros", 0) * 1000L;
+		this.readFailureProbability = getDouble(configuration, "sim_read_failure_probability", 0);
+		this.reversedRatio = getDouble(configuration, "sim_reversed_ratio", 0);
+		this.invalidCrcRatio = getDouble(configuration, "sim_invalid_crc_ratio", 0);
+		this.cache = new TagCache(
+			configuration.getLong("block_cache_ttl_in_millis", 5000),
+			configuration.getLong("afi_cache_ttl_in_millis", 5000)
+		);
+	}
+
+	/**
+	 * Read a number option.
+	 */
+	private static double getDouble(Configuration configuration, String key, double defaultValue) {
+		try {
+			return Double.parseDouble(configuration.getString(key, Double.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	@Override
+	public boolean connect() {
+		logger.info("Connecting to simulated reader: {}, tags: {}", readerId, initialTags);
+
+		cache.clear();
+		connected = true;
+
+		return true;
+	}
+
+	@Override
+	public boolean closeConnection() {
+		return true;
+	}
+
+	/**
+	 * Let tags arrive and leave, and get the tags on the reader.
+	 *
+	 * The commands follow FeigReader: an inventory, then block data and AFI
+	 * for tags that are not in the cache.
+	 */
+	@Override
+	protected HashMap<String, BibTag> getTags() {
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
+		long now = System.currentTimeMillis();
+		long startedAt = System.nanoTime();
+		byte[] data;
+		int afi;
+
+		simulateTraffic(startedAt);
+
+		command();
+
+		HashSet<String> inventory = new HashSet<String>(presentByUid.keySet());
+
+		metrics.inventory.observeSince(startedAt);
+
+		// Forget tags that have left the reader.
+		cache.retain(inventory);
+
+		for (Simulated tag : present) {
+			data = cache.getData(tag.uid, now);
+
+			if (data == null) {
+				startedAt = System.nanoTime();
+
+				command();
+
+				if (random.nextDouble() >= readFailureProbability) {
+					data = tag.data.clone();
+					cache.putData(tag.uid, data, now);
+				}
+				else {
+					logger.warningRateLimited("read:" + tag.uid, "Could not read data for UID: {}, ignoring tag.", tag.uid);
+					metrics.readFailures.inc();
+				}
+
+				metrics.blockRead.observeSince(startedAt);
+			}
+
+			if (data != null) {
+				afi = cache.getAFI(tag.uid, now);
+
+				if (afi < 0) {
+					afi = readTagAFI(tag.uid);
+				}
+
+				// The AFI could not be read, and is not known from earlier cycles.
+				if (afi >= 0) {
+					tags.put(tag.uid, readTag(tag.uid, data, afi));
+				}
+			}
+		}
+
+		return tags;
+	}
+
+	/**
+	 * Add and remove tags, for the time since the last cycle.
+	 */
+	private void simulateTraffic(long now) {
+		// The first cycle has the initial tags.
+		if (lastCycleAt == 0) {
+			lastCycleAt = now;
+
+			while (initialTags > 0 && present.size() < maxTags) {
+				arrive(now);
+				initialTags--;
+			}
+
+			return;
+		}
+
+		double seconds = (now - lastCycleAt) / 1e9;
+
+		lastCycleAt = now;
+		arrivals += arrivalsPerSecond * seconds;
+		departures += departuresPerSecond * seconds;
+
+		for (; departures >= 1 && !present.isEmpty(); departures--) {
+			depart(random.nextInt(present.size()), now);
+		}
+
+		for (; arrivals >= 1 && present.size() < maxTags; arrivals--) {
+			arrive(now);
+		}
+
+		// No bursts after the reader has been full or empty.
+		arrivals = Math.min(arrivals, 1);
+		departures = Math.min(departures, 1);
+	}
+
+	/**
+	 * A new tag arrives.
+	 */
+	private void arrive(long now) {
+		Simulated tag = new Simulated();
+		double kind = random.nextDouble();
+
+		tag.uid = String.format("E0040150%08X", nextNumber);
+		tag.data = block(nextNumber, kind >= invalidCrcRatio && kind < invalidCrcRatio + reversedRatio, kind < invalidCrcRatio);
+		tag.afi = random.nextBoolean() ? 7 : 194;
+
+		nextNumber++;
+		present.add(tag);
+		presentByUid.put(tag.uid, tag);
+
+		changedAt.put(tag.uid, now);
+	}
+
+	/**
+	 * A tag leaves.
+	 */
+	private void depart(int index, long now) {
+		Simulated tag = present.get(index);
+
+		// Remove without keeping the order.
+		present.set(index, present.get(present.size() - 1));
+		present.remove(present.size() - 1);
+		presentByUid.remove(tag.uid);
+
+		// If the arrival was not taken, no event was received for the tag,
+		// and none is expected when it leaves.
+		if (changedAt.remove(tag.uid) == null) {
+			changedAt.put(tag.uid, now);
+		}
+	}
+
+	/**
+	 * Create the basic block of tag number i.
+	 */
+	private static byte[] block(int i, boolean reversed, boolean invalidCrc) {
+		byte[] data = new byte[TagDecoder.BLOCK_LENGTH];
+		byte[] mid = ("5000" + i).getBytes(StandardCharsets.UTF_8);
+		byte[] owner = "DK761500".getBytes(StandardCharsets.UTF_8);
+		byte b;
+
+		data[0] = 0x11;
+		data[TagDecoder.SERIES_LENGTH_OFFSET] = 0x01;
+		data[TagDecoder.NUMBER_IN_SERIES_OFFSET] = 0x01;
+		System.arraycopy(mid, 0, data, TagDecoder.PRIMARY_ITEM_IDENTIFIER_OFFSET, Math.min(mid.length, TagDecoder.PRIMARY_ITEM_IDENTIFIER_LENGTH));
+		System.arraycopy(owner, 0, data, TagDecoder.OWNER_INSTITUTION_OFFSET, owner.length);
+		TagDecoder.writeCrc(data);
+
+		if (invalidCrc) {
+			data[TagDecoder.CRC_OFFSET] ^= 0x5A;
+		}
+
+		// Some readers return the bytes of each 4 byte block in reverse order.
+		if (reversed) {
+			for (int j = 0; j < data.length; j += 4) {
+				b = data[j];
+				data[j] = data[j + 3];
+				data[j + 3] = b;
+				b = data[j + 1];
+				data[j + 1] = data[j + 2];
+				data[j + 2] = b;
+			}
+		}
+
+		return data;
+	}
+
+	/**
+	 * Take the time a tag arrived or left, if no event has been received for
+	 * it since.
+	 *
+	 * @return
+	 *   System.nanoTime() of the change, or -1.
+	 */
+	public long takeChangedAt(String uid) {
+		Long time = changedAt.remove(uid);
+
+		return time == null ? -1 : time;
+	}
+
+	/**
+	 * The number of tags on the reader.
+	 */
+	public int getTagCount() {
+		return present.size();
+	}
+
+	/**
+	 * Wait for a command to the simulated device.
+	 */
+	private void command() {
+		if (commandLatencyInNanos > 0) {
+			LockSupport.parkNanos(commandLatencyInNanos);
+		}
+	}
+
+	@Override
+	public int readAFI(String uid) {
+		long startedAt = System.nanoTime();
+		Simulated tag = presentByUid.get(uid);
+
+		command();
+
+		try {
+			if (tag == null) {
+				return -1;
+			}
+
+			cache.putAFI(uid, tag.afi, System.currentTimeMillis());
+
+			return tag.afi;
+		} finally {
+			metrics.afiRead.observeSince(startedAt);
+		}
+	}
+
+	@Override
+	public boolean writeAFI(String uid, String afi) {
+		Simulated tag = presentByUid.get(uid);
+
+		command();
+
+		if (tag == null) {
+			return false;
+		}
+
+		tag.afi = Integer.parseInt(afi) & 0xFF;
+
+		// The tag has changed, read it again next cycle.
+		cache.invalidate(uid);
+
+		return true;
+	}
+
+	@Override
+	public boolean clearReader() {
+		command();
+
+		return true;
+	}
+
+	/**
+	 * A tag on the simulated reader.
+	 */
+	private static class Simulated {
+		private String uid;
+		private byte[] data;
+		private int afi;
+	}
+}
@@ -0,0 +1,36 @@
+package middleware;
+
+import static middleware.TestSupport.check;
+
+/**
+ * AFIReadFailureTest.
+ *
+ * A tag on the reader whose AFI can not be read keeps the AFI last read,
+ * instead of being detected again without an AFI, or removed. A new tag whose AFI
+ * can not be read is left out of the cycle.
+ */
+public class AFIReadFailureTest {
+	public static void main(String[] args) throws Exception {
+		TestReader reader = new TestReader();
+
+		reader.field.put("E004015000000001", 7);
+		reader.cycles(2);
+		check(reader.events.toString().equals("[detected 7]"), "Tag detected: " + reader.events);
+		reader.events.clear();
+
+		// Failing in more cycles than a tag may miss.
+		reader.afiReadFailures = 2;
+		reader.cycles(3);
+		check(reader.events.isEmpty(), "No events when the AFI read fails: " + reader.events);
+		check("7".equals(reader.currentTags.get("E004015000000001").getAFI()), "Tag keeps the AFI: " + reader.currentTags);
+
+		reader.field.put("E004015000000002", 7);
+		// The read of the tag on the reader fails too.
+		reader.afiReadFailures = 2;
+		reader.cycles(1);
+		check(reader.presence.getTag(TagStore.key("E004015000000002")) == null, "New tag left out: " + reader.currentTags);
+
+		reader.cycles(2);
+		check(reader.events.toString().equals("[detected 7]"), "New tag detected with its AFI: " + reader.events);
+	}
+}
@@ -0,0 +1,39 @@
+package middleware;
+
+import static middleware.TestSupport.check;
+
+/**
+ * AFIWriteTest.
+ *
+ * A tag whose AFI was written, and which then misses an inventory, must not
+ * be reported as changed back to the old AFI, nor changed again when it is
+ * read with the new AFI.
+ */
+public class AFIWriteTest {
+	private static final String UID = "E004015000000001";
+
+	public static void main(String[] args) throws Exception {
+		TestReader reader = new TestReader();
+
+		reader.field.put(UID, 7);
+		reader.cycles(2);
+		check(reader.events.size() == 1 && reader.events.get(0).equals("detected 7"), "Tag detected: " + reader.events);
+		reader.events.clear();
+
+		// Written at the end of the cycle.
+		reader.eventsSetAFI.offer(new EventSetAFI(UID, "194"));
+		reader.cycles(1);
+		check(reader.events.size() == 1 && reader.events.get(0).equals("afi 194 true"), "AFI written: " + reader.events);
+		reader.events.clear();
+
+		// One missed inventory, which the debounce tolerates.
+		reader.field.remove(UID);
+		reader.cycles(1);
+		check(reader.events.isEmpty(), "No events when the tag misses a cycle: " + reader.events);
+
+		reader.field.put(UID, 194);
+		reader.cycles(2);
+		check(reader.events.isEmpty(), "No events when the tag is read again: " + reader.events);
+		check("194".equals(reader.currentTags.get(UID).getAFI()), "Tag has the new AFI: " + reader.currentTags);
+	}
+}
@@ -0,0 +1,100 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import static middleware.TestSupport.check;
+
+/**
+ * EventDispatcherTest.
+ *
+ * Deltas queued in a full presence lane are merged, not dropped, so applying
+ * the deltas sent gives the tags on the reader.
+ */
+public class EventDispatcherTest implements TagListenerInterface {
+	private final TreeMap<String, String> tags = new TreeMap<String, String>();
+	private int deltas = 0;
+
+	public static void main(String[] args) throws InterruptedException {
+		EventDispatcherTest test = new EventDispatcherTest();
+		EventDispatcher dispatcher = new EventDispatcher(test, new LoggerImpl("", "off", false, false), 2, EventDispatcher.OVERFLOW_COALESCE);
+		BibTag a = tag("E004015000000001", 7);
+		BibTag b = tag("E004015000000002", 7);
+		BibTag c = tag("E004015000000003", 7);
+
+		// More deltas than the lane holds, before the sender runs.
+		dispatcher.tagsChanged(delta(1, list(a, b), list(), list(), list()));
+		dispatcher.processingNewTags();
+		dispatcher.tagsChanged(delta(2, list(), list(), list(a), list(a.withAFI(194))));
+		dispatcher.tagsChanged(delta(3, list(c), list(), list(), list()));
+		dispatcher.processingNewTags();
+		dispatcher.tagsChanged(delta(4, list(), list(), list(c), list(c.withAFI(194))));
+		dispatcher.tagsChanged(delta(5, list(), list(a.withAFI(194)), list(), list()));
+
+		Thread sender = new Thread(dispatcher);
+		sender.start();
+
+		while (dispatcher.getQueueDepth() > 0) {
+			Thread.sleep(10);
+		}
+
+		dispatcher.stop();
+		sender.join();
+
+		check(test.tags.toString().equals("{E004015000000002=7, E004015000000003=194}"), "Tags after the deltas: " + test.tags);
+		check(test.deltas < 5, "Deltas were merged: " + test.deltas);
+	}
+
+	private static BibTag tag(String uid, int afi) {
+		return new BibTag(uid, new byte[TagDecoder.BLOCK_LENGTH], afi);
+	}
+
+	private static List<BibTag> list(BibTag... tags) {
+		ArrayList<BibTag> list = new ArrayList<BibTag>();
+		Collections.addAll(list, tags);
+		return list;
+	}
+
+	private static TagSetDelta delta(long cycle, List<BibTag> added, List<BibTag> removed, List<BibTag> changedFrom, List<BibTag> changed) {
+		return new TagSetDelta(cycle, added, removed, changedFrom, changed);
+	}
+
+	@Override
+	public void tagsChanged(TagSetDelta delta) {
+		deltas++;
+
+		for (BibTag tag : delta.getRemoved()) {
+			tags.remove(tag.getUID());
+		}
+
+		for (BibTag tag : delta.getAdded()) {
+			tags.put(tag.getUID(), tag.getAFI());
+		}
+
+		for (BibTag tag : delta.getChanged()) {
+			tags.put(tag.getUID(), tag.getAFI());
+		}
+	}
+
+	@Override
+	public void tagDetected(BibTag bibTag) {
+	}
+
+	@Override
+	public void tagRemoved(BibTag bibTag) {
+	}
+
+	@Override
+	public void tagsDetected(ArrayList<BibTag> bibTags) {
+	}
+
+	@Override
+	public void tagAFISet(BibTag bibTag, boolean success, int attempts, long durationInMillis) {
+	}
+
+	@Override
+	public void processingNewTags() {
+	}
+}
@@ -0,0 +1,66 @@
+package middleware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static middleware.TestSupport.check;
+
+/**
+ * JournalRestoreTest.
+ *
+ * The tags on the reader are restored from the journal, and a corrupt
+ * journal is reported, after which the reader starts without tags.
+ */
+public class JournalRestoreTest {
+	private static final String UID = "E004015000000001";
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("journal").toFile();
+		File readerDir = new File(dir, "default");
+		LoggerImpl logger = new LoggerImpl("", "off", false, false);
+		TagJournal journal = new TagJournal(readerDir, 16, 16, 0, logger);
+
+		journal.tagDetected(new BibTag(UID, TestSupport.block(), 7));
+		journal.close();
+
+		Configuration configuration = new Configuration();
+		configuration.set("journal_dir", dir.getPath());
+
+		TestReader reader = new TestReader(configuration);
+		reader.restoreFromJournal();
+		reader.journal.close();
+		check(reader.currentTags.get(UID) != null, "Tag restored: " + reader.currentTags);
+
+		// A negative data length.
+		RandomAccessFile segment = new RandomAccessFile(new File(readerDir, "000000000001.journal"), "rw");
+		segment.seek(18);
+		segment.write(0xFF);
+		segment.close();
+
+		try {
+			TagJournal.find(readerDir, null, 0, Long.MAX_VALUE);
+			check(false, "Corrupt record found");
+		} catch (IOException e) {
+			check(e.getMessage().contains("data length"), "Corrupt record reported: " + e.getMessage());
+		}
+
+		reader = new TestReader(configuration);
+		reader.restoreFromJournal();
+		reader.journal.close();
+		check(reader.currentTags.size() == 0, "No tags restored from a corrupt journal: " + reader.currentTags);
+
+		// The reader still polls.
+		reader.field.put(UID, 7);
+		reader.cycles(2);
+		check(reader.events.toString().equals("[detected 7]"), "Tag detected: " + reader.events);
+
+		for (File file : readerDir.listFiles()) {
+			file.delete();
+		}
+
+		readerDir.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,54 @@
+package middleware;
+
+import static middleware.TestSupport.check;
+
+/**
+ * PollBackoffTest.
+ *
+ * After the reader has backed off, a tag that arrives or leaves is decided on
+ * within 2 poll periods, not 2 backed off periods.
+ */
+public class PollBackoffTest {
+	private static final String UID = "E004015000000001";
+
+	public static void main(String[] args) throws Exception {
+		TestReader reader = new TestReader();
+
+		reader.cycles(40);
+		check(reader.scheduler.getCurrentPeriod() == 2000, "Backed off on an empty reader: " + reader.scheduler.getCurrentPeriod());
+
+		// Read in the first cycle, detected in the second.
+		reader.field.put(UID, 7);
+		check(waitedUntil(reader, true) <= 2 * 200, "Tag detected within 2 periods");
+
+		reader.cycles(40);
+		check(reader.scheduler.getCurrentPeriod() == 2000, "Backed off with the tag on the reader: " + reader.scheduler.getCurrentPeriod());
+
+		// Missing in the first cycle, removed in the second.
+		reader.field.remove(UID);
+		check(waitedUntil(reader, false) <= 2 * 200, "Tag removed within 2 periods");
+	}
+
+	/**
+	 * Run cycles until the tag is on the reader or not, from a cycle that
+	 * starts now.
+	 *
+	 * @return
+	 *   The time waited for the cycles after the first, in ms.
+	 */
+	private static long waitedUntil(TestReader reader, boolean present) throws Exception {
+		long waited = 0;
+
+		for (int i = 0; i < 10; i++) {
+			reader.cycles(1);
+
+			if ((reader.currentTags.get(UID) != null) == present) {
+				return waited;
+			}
+
+			waited += reader.scheduler.getCurrentPeriod();
+		}
+
+		return Long.MAX_VALUE;
+	}
+}
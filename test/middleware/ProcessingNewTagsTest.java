@@ -0,0 +1,49 @@
+package middleware;
+
+import static middleware.TestSupport.check;
+
+/**
+ * ProcessingNewTagsTest.
+ *
+ * rfid.processing is sent once when tags arrive on an empty reader, not in
+ * each cycle until they are detected, and not for each read of a tag that is
+ * never detected.
+ */
+public class ProcessingNewTagsTest {
+	public static void main(String[] args) throws Exception {
+		TestReader reader = new TestReader();
+
+		// Detected in the second cycle.
+		reader.field.put("E004015000000001", 7);
+		reader.cycles(2);
+		check(reader.currentTags.size() == 1, "Tag detected: " + reader.currentTags);
+		check(reader.processing == 1, "Sent once while the tag is detected: " + reader.processing);
+
+		// Removed, and forgotten by the debounce.
+		reader.field.clear();
+		reader.cycles(4);
+		check(reader.currentTags.size() == 0, "Tag removed: " + reader.currentTags);
+		check(reader.processing == 1, "Not sent when the tag leaves: " + reader.processing);
+
+		// A tag read every third cycle is never detected, nor forgotten.
+		for (int i = 0; i < 9; i++) {
+			if (i % 3 == 0) {
+				reader.field.put("E004015000000002", 7);
+			} else {
+				reader.field.clear();
+			}
+
+			reader.cycles(1);
+		}
+
+		check(reader.currentTags.size() == 0, "Tag not detected: " + reader.currentTags);
+		check(reader.processing == 2, "Sent once for a tag that is not detected: " + reader.processing);
+
+		// Forgotten, then another tag arrives.
+		reader.field.clear();
+		reader.cycles(3);
+		reader.field.put("E004015000000003", 7);
+		reader.cycles(2);
+		check(reader.processing == 3, "Sent again when the reader was empty: " + reader.processing);
+	}
+}
@@ -0,0 +1,135 @@
+package middleware;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * TestReader.
+ *
+ * A reader without a device, for the tests. The tags in the field are read
+ * with a valid block, and their AFI is read each cycle. The events sent are
+ * recorded.
+ *
+ * The tests run the poll cycles of the reader with pollCycle(), as the poll
+ * task does, without waiting for the scheduler.
+ */
+class TestReader extends AbstractTagReader implements TagListenerInterface {
+	// The tags in the field, by UID, with their AFI.
+	final TreeMap<String, Integer> field = new TreeMap<String, Integer>();
+	final ArrayList<String> events = new ArrayList<String>();
+	int processing = 0;
+	// Number of AFI reads that fail from now on.
+	int afiReadFailures = 0;
+	private final byte[] data = TestSupport.block();
+
+	/**
+	 * Constructor. Tags are detected when read in 2 of 3 cycles, and removed
+	 * when missing in 2 cycles, with a poll period of 200 ms.
+	 */
+	TestReader() {
+		this(new Configuration());
+	}
+
+	/**
+	 * Constructor, with options, e.g. journal_dir.
+	 */
+	TestReader(Configuration configuration) {
+		super(new LoggerImpl("", "off", false, false), null, 2, 200, configuration);
+		this.tagListener = this;
+	}
+
+	/**
+	 * Run poll cycles.
+	 */
+	void cycles(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			pollCycle();
+		}
+	}
+
+	@Override
+	protected HashMap<String, BibTag> getTags() {
+		HashMap<String, BibTag> tags = new HashMap<String, BibTag>();
+
+		int afi;
+
+		// As FeigReader, for tags whose AFI is not cached.
+		for (String uid : field.keySet()) {
+			afi = readTagAFI(uid);
+
+			if (afi >= 0) {
+				tags.put(uid, readTag(uid, data, afi));
+			}
+		}
+
+		return tags;
+	}
+
+	@Override
+	public boolean connect() {
+		return true;
+	}
+
+	@Override
+	public boolean closeConnection() {
+		return true;
+	}
+
+	@Override
+	public boolean writeAFI(String uid, String afi) {
+		if (!field.containsKey(uid)) {
+			return false;
+		}
+
+		field.put(uid, Integer.parseInt(afi));
+
+		return true;
+	}
+
+	@Override
+	public int readAFI(String uid) {
+		Integer afi = field.get(uid);
+
+		if (afiReadFailures > 0) {
+			afiReadFailures--;
+			return -1;
+		}
+
+		return afi == null ? -1 : afi;
+	}
+
+	@Override
+	public boolean clearReader() {
+		return true;
+	}
+
+	@Override
+	public void tagDetected(BibTag bibTag) {
+		events.add("detected " + bibTag.getAFI());
+	}
+
+	@Override
+	public void tagRemoved(BibTag bibTag) {
+		events.add("removed " + bibTag.getAFI());
+	}
+
+	@Override
+	public void tagsChanged(TagSetDelta delta) {
+		events.add("delta " + delta);
+	}
+
+	@Override
+	public void tagsDetected(ArrayList<BibTag> bibTags) {
+	}
+
+	@Override
+	public void tagAFISet(BibTag bibTag, boolean success, int attempts, long durationInMillis) {
+		events.add("afi " + bibTag.getAFI() + " " + success);
+	}
+
+	@Override
+	public void processingNewTags() {
+		processing++;
+	}
+}
@@ -0,0 +1,36 @@
+package middleware;
+
+/**
+ * TestSupport.
+ *
+ * Helpers shared by the tests.
+ */
+class TestSupport {
+	private TestSupport() {
+	}
+
+	/**
+	 * Fail the test, with a message, if the condition is false.
+	 */
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			System.err.println("FAILED: " + message);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * A valid basic block.
+	 */
+	static byte[] block() {
+		byte[] data = new byte[TagDecoder.BLOCK_LENGTH];
+
+		data[0] = 0x11;
+		data[TagDecoder.SERIES_LENGTH_OFFSET] = 0x01;
+		data[TagDecoder.NUMBER_IN_SERIES_OFFSET] = 0x01;
+		data[TagDecoder.PRIMARY_ITEM_IDENTIFIER_OFFSET] = '1';
+		TagDecoder.writeCrc(data);
+
+		return data;
+	}
+}
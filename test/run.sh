@@ -0,0 +1,24 @@
+#!/bin/sh
+#
+# Build and run the tests.
+#
+# Needs the project jars in lib/. On Java 11 and later also add jaxb-api to
+# lib/. Each test is a class with a main method, which exits with a non-zero
+# status if a check fails.
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+OUT=test/out
+CP="lib/*"
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+
+javac -cp "$CP" -d "$OUT" $(find src test -name "*.java")
+
+for test in $(cd test && find . -name "*Test.java" | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g'); do
+	echo "$test"
+	java -cp "$OUT:$CP" "$test"
+done